@@ -1,10 +1,13 @@
 package io.gitlab.leibnizhu.sbnetty.bootstrap;
 
+import io.gitlab.leibnizhu.sbnetty.session.SessionStore;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.AutoConfigureOrder;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.boot.autoconfigure.condition.SearchStrategy;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.web.servlet.server.ServletWebServerFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -27,11 +30,14 @@ public class EmbeddedNettyAutoConfiguration {
     @Configuration
     @ConditionalOnClass({Bootstrap.class}) // Netty的Bootstrap类必须在classloader中存在，才能启动Netty容器
     @ConditionalOnMissingBean(value = ServletWebServerFactory.class, search = SearchStrategy.CURRENT) //当前Spring容器中不存在EmbeddedServletContainerFactory接口的实例
+    @EnableConfigurationProperties(NettyServerProperties.class) //绑定server.netty.*配置
     public static class EmbeddedNetty {
         //上述条件注解成立的话就会构造EmbeddedNettyFactory这个EmbeddedServletContainerFactory
         @Bean
-        public EmbeddedNettyFactory embeddedNettyFactory() {
-            return new EmbeddedNettyFactory();
+        public EmbeddedNettyFactory embeddedNettyFactory(NettyServerProperties properties, ObjectProvider<SessionStore> sessionStore) {
+            EmbeddedNettyFactory factory = new EmbeddedNettyFactory(properties);
+            factory.setSessionStore(sessionStore.getIfAvailable()); //有SessionStore类型的Bean时使用外部Session存储
+            return factory;
         }
     }
 }
@@ -3,21 +3,27 @@ package io.gitlab.leibnizhu.sbnetty.bootstrap;
 import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.file.Paths;
 import java.util.Random;
 
 import javax.servlet.ServletException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.boot.web.server.Ssl;
 import org.springframework.boot.web.server.WebServer;
 import org.springframework.boot.web.servlet.ServletContextInitializer;
 import org.springframework.boot.web.servlet.server.AbstractServletWebServerFactory;
 import org.springframework.context.ResourceLoaderAware;
 import org.springframework.core.io.ResourceLoader;
 import org.springframework.util.ClassUtils;
+import org.springframework.util.StringUtils;
 
 import io.gitlab.leibnizhu.sbnetty.core.NettyContainer;
 import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+import io.gitlab.leibnizhu.sbnetty.session.OffHeapSessionStore;
+import io.gitlab.leibnizhu.sbnetty.session.SessionIdGenerator;
+import io.gitlab.leibnizhu.sbnetty.session.SessionStore;
 import io.netty.bootstrap.Bootstrap;
 
 /**
@@ -29,7 +35,17 @@ import io.netty.bootstrap.Bootstrap;
 public class EmbeddedNettyFactory extends AbstractServletWebServerFactory implements ResourceLoaderAware {
     private final Logger log = LoggerFactory.getLogger(getClass());
     private static final String SERVER_INFO = "Netty@SpringBoot";
+    private final NettyServerProperties properties;
     private ResourceLoader resourceLoader;
+    private SessionStore sessionStore; //为null时Session只保存在本实例
+
+    public EmbeddedNettyFactory() {
+        this(new NettyServerProperties());
+    }
+
+    public EmbeddedNettyFactory(NettyServerProperties properties) {
+        this.properties = properties;
+    }
 
 	@Override
 	public WebServer getWebServer(ServletContextInitializer... initializers) {
@@ -41,10 +57,27 @@ public class EmbeddedNettyFactory extends AbstractServletWebServerFactory implem
         log.info("Running with " + title + " " + version);
         //是否支持默认Servlet
         if (isRegisterDefaultServlet()) {
-            log.warn("This container does not support a default servlet");
+            log.warn("This container does not support a default servlet, use server.netty.static-resources.* to serve static resources");
+        }
+        if (getHttp2() != null && getHttp2().isEnabled()) {
+            properties.getHttp2().setEnabled(true); //server.http2.enabled等同于server.netty.http2.enabled
+        }
+        if (getCompression() != null && getCompression().getEnabled()) {
+            log.warn("server.compression.* is not supported by this container, use server.netty.compression.* instead");
         }
         //上下文
         NettyContext context = new NettyContext(getContextPath(), new URLClassLoader(new URL[]{}, parentClassLoader), SERVER_INFO);
+        if (sessionStore != null) {
+            context.getSessionManager().setStore(sessionStore, properties.getSession());
+        } else if (properties.getSession().isOffHeapEnabled()) {
+            OffHeapSessionStore offHeapStore = new OffHeapSessionStore(properties.getSession().getOffHeapCapacity());
+            context.getSessionManager().setStore(offHeapStore, properties.getSession());
+        }
+        NettyServerProperties.Session session = properties.getSession();
+        context.getSessionManager().setIdGenerator(new SessionIdGenerator(session.getIdLength(), session.getIdEncoding(), session.getIdAlgorithm()));
+        if (StringUtils.hasText(session.getSnapshotFile())) {
+            context.getSessionManager().setSnapshotFile(Paths.get(session.getSnapshotFile()));
+        }
         for (ServletContextInitializer initializer : initializers) {
             try {
                 initializer.onStartup(context);
@@ -56,7 +89,15 @@ public class EmbeddedNettyFactory extends AbstractServletWebServerFactory implem
         int port = getPort() > 0 ? getPort() : new Random().nextInt(65535 - 1024) + 1024;
         InetSocketAddress address = new InetSocketAddress(port);
         log.info("Server initialized with port: " + port);
-        return new NettyContainer(address, context); //初始化容器并返回
+        Ssl ssl = getSsl() != null && getSsl().isEnabled() ? getSsl() : null; //server.ssl.*
+        return new NettyContainer(address, context, properties, ssl, ssl != null ? getOrCreateSslStoreProvider() : null); //初始化容器并返回
+    }
+
+    /**
+     * 使用外部Session存储，多个实例共用时不需要粘性路由
+     */
+    public void setSessionStore(SessionStore sessionStore) {
+        this.sessionStore = sessionStore;
     }
 
     @Override
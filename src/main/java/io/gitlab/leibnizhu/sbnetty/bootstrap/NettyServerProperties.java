@@ -0,0 +1,819 @@
+package io.gitlab.leibnizhu.sbnetty.bootstrap;
+
+import io.gitlab.leibnizhu.sbnetty.core.DispatchMode;
+import io.gitlab.leibnizhu.sbnetty.core.SslProviderType;
+import io.gitlab.leibnizhu.sbnetty.core.TransportType;
+import io.gitlab.leibnizhu.sbnetty.session.SessionIdEncoding;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Netty容器的配置项，前缀为 server.netty
+ * 包装类型的配置项为null时不设置对应的ChannelOption，保持Netty/操作系统的默认值
+ *
+ * @author Leibniz
+ */
+@ConfigurationProperties(prefix = "server.netty")
+public class NettyServerProperties {
+    /**
+     * 接收连接的boss线程数
+     */
+    private int bossThreads = 1;
+    /**
+     * 处理读写的worker线程数，0表示使用Netty默认值(CPU核数*2)
+     */
+    private int workerThreads = 0;
+    /**
+     * 服务端Channel的SO_BACKLOG
+     */
+    private int backlog = 100;
+    /**
+     * 服务端Channel的SO_REUSEADDR
+     */
+    private boolean reuseAddress = true;
+    /**
+     * 网络传输实现
+     */
+    private TransportType transport = TransportType.AUTO;
+
+    private final Dispatch dispatch = new Dispatch();
+    private final Http http = new Http();
+    private final Child child = new Child();
+    private final Epoll epoll = new Epoll();
+    private final StaticResources staticResources = new StaticResources();
+    private final Compression compression = new Compression();
+    private final Http2 http2 = new Http2();
+    private final Ssl ssl = new Ssl();
+    private final Recycler recycler = new Recycler();
+    private final Session session = new Session();
+
+    public int getBossThreads() {
+        return bossThreads;
+    }
+
+    public void setBossThreads(int bossThreads) {
+        this.bossThreads = bossThreads;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    public boolean isReuseAddress() {
+        return reuseAddress;
+    }
+
+    public void setReuseAddress(boolean reuseAddress) {
+        this.reuseAddress = reuseAddress;
+    }
+
+    public TransportType getTransport() {
+        return transport;
+    }
+
+    public void setTransport(TransportType transport) {
+        this.transport = transport;
+    }
+
+    public Dispatch getDispatch() {
+        return dispatch;
+    }
+
+    public Http getHttp() {
+        return http;
+    }
+
+    public Child getChild() {
+        return child;
+    }
+
+    public Epoll getEpoll() {
+        return epoll;
+    }
+
+    public StaticResources getStaticResources() {
+        return staticResources;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public Http2 getHttp2() {
+        return http2;
+    }
+
+    public Ssl getSsl() {
+        return ssl;
+    }
+
+    public Recycler getRecycler() {
+        return recycler;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Servlet分发相关配置
+     */
+    public static class Dispatch {
+        /**
+         * Servlet的执行方式
+         */
+        private DispatchMode mode = DispatchMode.PINNED;
+        /**
+         * PINNED模式的线程数，WORK_STEALING模式的并行度
+         */
+        private int threads = 50;
+        /**
+         * 请求路径->分发器(Servlet及其过滤器链)缓存的最大条数，0表示不缓存
+         */
+        private int cacheSize = 0;
+
+        public DispatchMode getMode() {
+            return mode;
+        }
+
+        public void setMode(DispatchMode mode) {
+            this.mode = mode;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+
+        public int getCacheSize() {
+            return cacheSize;
+        }
+
+        public void setCacheSize(int cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+    }
+
+    /**
+     * HttpServerCodec相关配置
+     */
+    public static class Http {
+        private int maxInitialLineLength = 4096;
+        private int maxHeaderSize = 8192;
+        private int maxChunkSize = 8192;
+        private boolean validateHeaders = false;
+        /**
+         * 同一连接上已读入但响应未结束的请求数上限(HTTP/1.1 pipelining)，达到上限后暂停读取该连接
+         */
+        private int maxInFlightRequests = 16;
+        /**
+         * 是否在收到请求头后立即分发带请求体的请求，请求体边接收边读取(表单和multipart请求仍等待完整请求体)
+         * dispatch.mode为event-loop时不生效，因为在IO线程中阻塞读取请求体会导致死锁
+         */
+        private boolean earlyDispatch = false;
+        /**
+         * 提前分发时，未被读取的请求体超过该字节数后暂停读取连接
+         */
+        private int bodyHighWaterMark = 256 * 1024;
+        /**
+         * 提前分发时，未被读取的请求体降到该字节数以下后恢复读取连接
+         */
+        private int bodyLowWaterMark = 64 * 1024;
+        /**
+         * 阻塞写出响应时，连接超过写缓冲高水位后Servlet线程等待其恢复可写的超时时间(毫秒)，超时后关闭连接，0表示一直等待
+         */
+        private long writeTimeout = 30000;
+
+        public int getMaxInitialLineLength() {
+            return maxInitialLineLength;
+        }
+
+        public void setMaxInitialLineLength(int maxInitialLineLength) {
+            this.maxInitialLineLength = maxInitialLineLength;
+        }
+
+        public int getMaxHeaderSize() {
+            return maxHeaderSize;
+        }
+
+        public void setMaxHeaderSize(int maxHeaderSize) {
+            this.maxHeaderSize = maxHeaderSize;
+        }
+
+        public int getMaxChunkSize() {
+            return maxChunkSize;
+        }
+
+        public void setMaxChunkSize(int maxChunkSize) {
+            this.maxChunkSize = maxChunkSize;
+        }
+
+        public boolean isValidateHeaders() {
+            return validateHeaders;
+        }
+
+        public void setValidateHeaders(boolean validateHeaders) {
+            this.validateHeaders = validateHeaders;
+        }
+
+        public int getMaxInFlightRequests() {
+            return maxInFlightRequests;
+        }
+
+        public void setMaxInFlightRequests(int maxInFlightRequests) {
+            this.maxInFlightRequests = maxInFlightRequests;
+        }
+
+        public boolean isEarlyDispatch() {
+            return earlyDispatch;
+        }
+
+        public void setEarlyDispatch(boolean earlyDispatch) {
+            this.earlyDispatch = earlyDispatch;
+        }
+
+        public int getBodyHighWaterMark() {
+            return bodyHighWaterMark;
+        }
+
+        public void setBodyHighWaterMark(int bodyHighWaterMark) {
+            this.bodyHighWaterMark = bodyHighWaterMark;
+        }
+
+        public int getBodyLowWaterMark() {
+            return bodyLowWaterMark;
+        }
+
+        public void setBodyLowWaterMark(int bodyLowWaterMark) {
+            this.bodyLowWaterMark = bodyLowWaterMark;
+        }
+
+        public long getWriteTimeout() {
+            return writeTimeout;
+        }
+
+        public void setWriteTimeout(long writeTimeout) {
+            this.writeTimeout = writeTimeout;
+        }
+    }
+
+    /**
+     * 已接收连接(子Channel)的ChannelOption
+     */
+    public static class Child {
+        private Boolean tcpNoDelay;
+        private Boolean keepAlive;
+        private Integer receiveBufferSize;
+        private Integer sendBufferSize;
+        /**
+         * 写缓冲低水位，低于该值后Channel重新变为可写
+         */
+        private Integer writeBufferLowWaterMark;
+        /**
+         * 写缓冲高水位，超过该值后Channel.isWritable()返回false
+         */
+        private Integer writeBufferHighWaterMark;
+
+        public Boolean getTcpNoDelay() {
+            return tcpNoDelay;
+        }
+
+        public void setTcpNoDelay(Boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+        }
+
+        public Boolean getKeepAlive() {
+            return keepAlive;
+        }
+
+        public void setKeepAlive(Boolean keepAlive) {
+            this.keepAlive = keepAlive;
+        }
+
+        public Integer getReceiveBufferSize() {
+            return receiveBufferSize;
+        }
+
+        public void setReceiveBufferSize(Integer receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+        }
+
+        public Integer getSendBufferSize() {
+            return sendBufferSize;
+        }
+
+        public void setSendBufferSize(Integer sendBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+        }
+
+        public Integer getWriteBufferLowWaterMark() {
+            return writeBufferLowWaterMark;
+        }
+
+        public void setWriteBufferLowWaterMark(Integer writeBufferLowWaterMark) {
+            this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+        }
+
+        public Integer getWriteBufferHighWaterMark() {
+            return writeBufferHighWaterMark;
+        }
+
+        public void setWriteBufferHighWaterMark(Integer writeBufferHighWaterMark) {
+            this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+        }
+    }
+
+    /**
+     * 只在使用epoll或io_uring传输时生效的配置
+     */
+    public static class Epoll {
+        /**
+         * 服务端Channel的SO_REUSEPORT
+         */
+        private Boolean reusePort;
+        /**
+         * 绑定到同一端口的服务端Channel数，大于1时自动开启SO_REUSEPORT，由内核在多个acceptor间分配新连接
+         */
+        private int acceptors = 1;
+        /**
+         * 子Channel的TCP_QUICKACK
+         */
+        private Boolean tcpQuickAck;
+        /**
+         * 服务端Channel的TCP_FASTOPEN队列长度，0表示不启用
+         */
+        private Integer tcpFastOpen;
+
+        public Boolean getReusePort() {
+            return reusePort;
+        }
+
+        public void setReusePort(Boolean reusePort) {
+            this.reusePort = reusePort;
+        }
+
+        public int getAcceptors() {
+            return acceptors;
+        }
+
+        public void setAcceptors(int acceptors) {
+            this.acceptors = acceptors;
+        }
+
+        public Boolean getTcpQuickAck() {
+            return tcpQuickAck;
+        }
+
+        public void setTcpQuickAck(Boolean tcpQuickAck) {
+            this.tcpQuickAck = tcpQuickAck;
+        }
+
+        public Integer getTcpFastOpen() {
+            return tcpFastOpen;
+        }
+
+        public void setTcpFastOpen(Integer tcpFastOpen) {
+            this.tcpFastOpen = tcpFastOpen;
+        }
+    }
+
+    /**
+     * 容器内置的静态资源处理，在匹配到默认Servlet的请求的过滤器链末尾执行
+     */
+    public static class StaticResources {
+        /**
+         * 是否启用
+         */
+        private boolean enabled = false;
+        /**
+         * 静态资源的URL前缀(不含contextPath)，默认使用专用前缀，其他请求不需要查找静态资源
+         */
+        private String path = "/static/";
+        /**
+         * 查找静态资源的位置，按顺序查找，支持classpath:和file:前缀
+         */
+        private List<String> locations = new ArrayList<>(Collections.singletonList("classpath:/static/"));
+        /**
+         * 内存缓存的总字节数上限(包括预压缩的版本)，0表示不缓存
+         */
+        private long cacheMaxSize = 0;
+        /**
+         * 大小不超过该值的文件才放入缓存
+         */
+        private int cacheMaxFileSize = 64 * 1024;
+        /**
+         * 缓存时是否预先压缩出gzip(及brotli，brotli4j可用时)版本
+         */
+        private boolean precompress = true;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public void setPath(String path) {
+            this.path = path;
+        }
+
+        public List<String> getLocations() {
+            return locations;
+        }
+
+        public void setLocations(List<String> locations) {
+            this.locations = locations;
+        }
+
+        public long getCacheMaxSize() {
+            return cacheMaxSize;
+        }
+
+        public void setCacheMaxSize(long cacheMaxSize) {
+            this.cacheMaxSize = cacheMaxSize;
+        }
+
+        public int getCacheMaxFileSize() {
+            return cacheMaxFileSize;
+        }
+
+        public void setCacheMaxFileSize(int cacheMaxFileSize) {
+            this.cacheMaxFileSize = cacheMaxFileSize;
+        }
+
+        public boolean isPrecompress() {
+            return precompress;
+        }
+
+        public void setPrecompress(boolean precompress) {
+            this.precompress = precompress;
+        }
+    }
+
+    /**
+     * 响应压缩(gzip/deflate，brotli4j或zstd-jni在classpath中时还支持br/zstd)
+     */
+    public static class Compression {
+        /**
+         * 是否启用
+         */
+        private boolean enabled = false;
+        /**
+         * gzip/deflate的压缩级别，1~9
+         */
+        private int level = 6;
+        /**
+         * 响应体小于该字节数时不压缩(只对有Content-Length的响应有效)
+         */
+        private int minResponseSize = 2048;
+        /**
+         * 压缩的MIME类型，可以用"text/*"，不含"/"的项作为扩展名通过MimeTypeUtil解析
+         */
+        private List<String> mimeTypes = new ArrayList<>(Arrays.asList("text/html", "text/xml", "text/plain",
+                "text/css", "text/javascript", "application/javascript", "application/json", "application/xml"));
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public void setLevel(int level) {
+            this.level = level;
+        }
+
+        public int getMinResponseSize() {
+            return minResponseSize;
+        }
+
+        public void setMinResponseSize(int minResponseSize) {
+            this.minResponseSize = minResponseSize;
+        }
+
+        public List<String> getMimeTypes() {
+            return mimeTypes;
+        }
+
+        public void setMimeTypes(List<String> mimeTypes) {
+            this.mimeTypes = mimeTypes;
+        }
+    }
+
+    /**
+     * HTTP/2，明文连接(h2c)支持prior knowledge和Upgrade: h2c，TLS连接通过ALPN协商h2
+     */
+    public static class Http2 {
+        /**
+         * 是否启用，server.http2.enabled=true时同样启用
+         */
+        private boolean enabled = false;
+        /**
+         * 每个连接最多同时处理的流数
+         */
+        private int maxConcurrentStreams = 100;
+        /**
+         * 每个流的初始流控窗口(SETTINGS_INITIAL_WINDOW_SIZE)
+         */
+        private int initialWindowSize = 65535;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxConcurrentStreams() {
+            return maxConcurrentStreams;
+        }
+
+        public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+            this.maxConcurrentStreams = maxConcurrentStreams;
+        }
+
+        public int getInitialWindowSize() {
+            return initialWindowSize;
+        }
+
+        public void setInitialWindowSize(int initialWindowSize) {
+            this.initialWindowSize = initialWindowSize;
+        }
+    }
+
+    /**
+     * TLS引擎及会话恢复相关配置，证书、协议、加密套件等仍使用Spring Boot的server.ssl.*
+     */
+    public static class Ssl {
+        /**
+         * TLS引擎实现
+         */
+        private SslProviderType provider = SslProviderType.AUTO;
+        /**
+         * 服务端会话缓存的最大会话数
+         */
+        private long sessionCacheSize = 20480;
+        /**
+         * 会话缓存及票据的有效期，也是OpenSSL票据密钥的轮换周期，单位秒
+         */
+        private long sessionTimeout = 300;
+        /**
+         * 是否签发会话票据(RFC 5077)，客户端凭票据恢复会话时服务端无需保存会话状态
+         */
+        private boolean sessionTickets = true;
+        /**
+         * 是否启用OCSP stapling，只支持OpenSSL
+         */
+        private boolean ocspStapling = false;
+        /**
+         * OCSP stapling使用的DER格式OCSP响应文件，文件更新后会重新读取
+         */
+        private String ocspResponseFile;
+        /**
+         * TLS握手超时时间，单位毫秒
+         */
+        private long handshakeTimeout = 10000;
+
+        public SslProviderType getProvider() {
+            return provider;
+        }
+
+        public void setProvider(SslProviderType provider) {
+            this.provider = provider;
+        }
+
+        public long getSessionCacheSize() {
+            return sessionCacheSize;
+        }
+
+        public void setSessionCacheSize(long sessionCacheSize) {
+            this.sessionCacheSize = sessionCacheSize;
+        }
+
+        public long getSessionTimeout() {
+            return sessionTimeout;
+        }
+
+        public void setSessionTimeout(long sessionTimeout) {
+            this.sessionTimeout = sessionTimeout;
+        }
+
+        public boolean isSessionTickets() {
+            return sessionTickets;
+        }
+
+        public void setSessionTickets(boolean sessionTickets) {
+            this.sessionTickets = sessionTickets;
+        }
+
+        public boolean isOcspStapling() {
+            return ocspStapling;
+        }
+
+        public void setOcspStapling(boolean ocspStapling) {
+            this.ocspStapling = ocspStapling;
+        }
+
+        public String getOcspResponseFile() {
+            return ocspResponseFile;
+        }
+
+        public void setOcspResponseFile(String ocspResponseFile) {
+            this.ocspResponseFile = ocspResponseFile;
+        }
+
+        public long getHandshakeTimeout() {
+            return handshakeTimeout;
+        }
+
+        public void setHandshakeTimeout(long handshakeTimeout) {
+            this.handshakeTimeout = handshakeTimeout;
+        }
+    }
+
+    /**
+     * 请求对象回收：RequestSession及其中的请求/响应对象、输入输出流在请求结束后放回按IO线程缓存的对象池重用
+     */
+    public static class Recycler {
+        /**
+         * 是否启用
+         */
+        private boolean enabled = false;
+        /**
+         * 每个IO线程最多缓存的对象组数
+         */
+        private int maxCapacityPerThread = 256;
+        /**
+         * 调试模式，回收的对象不再重用，请求结束后再使用请求/响应对象时抛出异常，异常原因中有回收时的调用栈
+         */
+        private boolean debug = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxCapacityPerThread() {
+            return maxCapacityPerThread;
+        }
+
+        public void setMaxCapacityPerThread(int maxCapacityPerThread) {
+            this.maxCapacityPerThread = maxCapacityPerThread;
+        }
+
+        public boolean isDebug() {
+            return debug;
+        }
+
+        public void setDebug(boolean debug) {
+            this.debug = debug;
+        }
+    }
+
+    /**
+     * Session存储：容器中有SessionStore类型的Bean，或启用了堆外存储时生效；以及停止时保存的Session快照
+     */
+    public static class Session {
+        /**
+         * 本地近端缓存最多保留的Session数
+         */
+        private int nearCacheSize = 10000;
+        /**
+         * 近端缓存中的Session写入后保留的时间，之后重新从存储加载，以看到其他实例的修改，单位毫秒
+         */
+        private long nearCacheTtl = 10000;
+        /**
+         * 写回线程每批最多交给SessionStore.save()的修改数
+         */
+        private int writeBehindBatchSize = 128;
+        /**
+         * 没有SessionStore类型的Bean时，是否把Session序列化后保存在堆外内存(OffHeapSessionStore)
+         */
+        private boolean offHeapEnabled = false;
+        /**
+         * 堆外存储最多占用的内存字节数，超过时淘汰最久没有访问的Session
+         */
+        private long offHeapCapacity = 256L * 1024 * 1024;
+        /**
+         * Session快照文件，设置后容器停止时把Session保存到这个文件，下次启动后在第一次访问时按ID加载；使用外部或堆外存储时不生效
+         */
+        private String snapshotFile;
+        /**
+         * Session ID的随机字节数，不少于8
+         */
+        private int idLength = 16;
+        /**
+         * Session ID的编码方式
+         */
+        private SessionIdEncoding idEncoding = SessionIdEncoding.HEX;
+        /**
+         * 生成Session ID的SecureRandom算法，如DRBG、NativePRNGNonBlocking，为空时优先使用DRBG，没有时使用平台默认
+         */
+        private String idAlgorithm;
+
+        public int getNearCacheSize() {
+            return nearCacheSize;
+        }
+
+        public void setNearCacheSize(int nearCacheSize) {
+            this.nearCacheSize = nearCacheSize;
+        }
+
+        public long getNearCacheTtl() {
+            return nearCacheTtl;
+        }
+
+        public void setNearCacheTtl(long nearCacheTtl) {
+            this.nearCacheTtl = nearCacheTtl;
+        }
+
+        public int getWriteBehindBatchSize() {
+            return writeBehindBatchSize;
+        }
+
+        public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+            this.writeBehindBatchSize = writeBehindBatchSize;
+        }
+
+        public boolean isOffHeapEnabled() {
+            return offHeapEnabled;
+        }
+
+        public void setOffHeapEnabled(boolean offHeapEnabled) {
+            this.offHeapEnabled = offHeapEnabled;
+        }
+
+        public long getOffHeapCapacity() {
+            return offHeapCapacity;
+        }
+
+        public void setOffHeapCapacity(long offHeapCapacity) {
+            this.offHeapCapacity = offHeapCapacity;
+        }
+
+        public String getSnapshotFile() {
+            return snapshotFile;
+        }
+
+        public void setSnapshotFile(String snapshotFile) {
+            this.snapshotFile = snapshotFile;
+        }
+
+        public int getIdLength() {
+            return idLength;
+        }
+
+        public void setIdLength(int idLength) {
+            this.idLength = idLength;
+        }
+
+        public SessionIdEncoding getIdEncoding() {
+            return idEncoding;
+        }
+
+        public void setIdEncoding(SessionIdEncoding idEncoding) {
+            this.idEncoding = idEncoding;
+        }
+
+        public String getIdAlgorithm() {
+            return idAlgorithm;
+        }
+
+        public void setIdAlgorithm(String idAlgorithm) {
+            this.idAlgorithm = idAlgorithm;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * 添加在服务端Channel上，统计每个acceptor接收的连接数
+ * 服务端Channel读到的每条消息都是一个新接收的子Channel
+ *
+ * @author Leibniz
+ */
+class AcceptorMetricsHandler extends ChannelInboundHandlerAdapter {
+    private final NettyContainerMetrics metrics;
+    private final int acceptorIndex;
+
+    AcceptorMetricsHandler(NettyContainerMetrics metrics, int acceptorIndex) {
+        this.metrics = metrics;
+        this.acceptorIndex = acceptorIndex;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        metrics.connectionAccepted(acceptorIndex);
+        ctx.fireChannelRead(msg);
+    }
+}
@@ -0,0 +1,57 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.netty.channel.Channel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连接的autoRead开关，每个连接一个
+ * 多个原因都可能要求暂停读取(如pipelining请求数达到上限、请求体缓冲超过高水位)，
+ * 每个原因占一位，所有原因都解除后才恢复读取，避免互相覆盖
+ * 可以在任意线程调用，实际的autoRead设置总是在IO线程中根据当前状态进行
+ *
+ * @author Leibniz
+ */
+public class AutoReadGate {
+    /**
+     * 同一连接上未完成的请求数达到上限
+     */
+    public static final int PIPELINE_LIMIT = 1;
+    /**
+     * 尚未被Servlet读取的请求体超过高水位
+     */
+    public static final int REQUEST_BODY = 1 << 1;
+
+    private final Channel channel;
+    private final AtomicInteger reasons = new AtomicInteger();
+
+    public AutoReadGate(Channel channel) {
+        this.channel = channel;
+    }
+
+    public void suspend(int reason) {
+        int prev = reasons.getAndAccumulate(reason, (current, r) -> current | r);
+        if (prev == 0) {
+            update();
+        }
+    }
+
+    public void resume(int reason) {
+        int prev = reasons.getAndAccumulate(reason, (current, r) -> current & ~r);
+        if (prev != 0 && (prev & ~reason) == 0) {
+            update();
+        }
+    }
+
+    public boolean isSuspended(int reason) {
+        return (reasons.get() & reason) != 0;
+    }
+
+    private void update() {
+        if (channel.eventLoop().inEventLoop()) {
+            channel.config().setAutoRead(reasons.get() == 0);
+        } else {
+            channel.eventLoop().execute(() -> channel.config().setAutoRead(reasons.get() == 0));
+        }
+    }
+}
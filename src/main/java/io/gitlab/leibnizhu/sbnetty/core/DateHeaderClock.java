@@ -0,0 +1,61 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.netty.handler.codec.DateFormatter;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Date响应头的时钟，所有连接共享
+ * 容器启动后由一个IO线程的定时任务每秒(对齐到整秒)刷新一次，预先编码为AsciiString，写响应头时直接引用
+ * 未启动定时任务时(如容器外单独使用NettyContext)，读取时发现过期再刷新
+ *
+ * @author Leibniz
+ */
+class DateHeaderClock {
+    private static final long PERIOD_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    private volatile AsciiString value;
+    private volatile long valueSecond; //value对应的秒数
+    private volatile ScheduledFuture<?> refreshTask;
+
+    DateHeaderClock() {
+        refresh();
+    }
+
+    /**
+     * 在指定的线程上开始定时刷新
+     */
+    synchronized void start(EventExecutor executor) {
+        stop();
+        refresh();
+        long initialDelay = PERIOD_MILLIS - System.currentTimeMillis() % PERIOD_MILLIS;
+        refreshTask = executor.scheduleAtFixedRate(this::refresh, initialDelay, PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+    }
+
+    /**
+     * @return 当前时间的RFC 1123格式，精确到秒
+     */
+    AsciiString get() {
+        if (refreshTask == null && System.currentTimeMillis() / PERIOD_MILLIS != valueSecond) {
+            refresh();
+        }
+        return value;
+    }
+
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        value = AsciiString.cached(DateFormatter.format(new Date(now)));
+        valueSecond = now / PERIOD_MILLIS;
+    }
+}
@@ -0,0 +1,148 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Servlet分发的执行策略，决定RequestDispatcherHandler在哪个线程上调用FilterChain
+ *
+ * @author Leibniz
+ */
+abstract class DispatchExecutor {
+    private static final Log log = LogFactory.getLog(DispatchExecutor.class);
+
+    /**
+     * @return 添加RequestDispatcherHandler时绑定的EventExecutorGroup，null表示handler直接运行在IO线程上
+     */
+    EventExecutorGroup handlerGroup() {
+        return null;
+    }
+
+    /**
+     * @param ctx RequestDispatcherHandler的ChannelHandlerContext
+     * @return 执行Servlet的Executor，如果就是ctx.executor()则在当前线程直接执行
+     */
+    abstract Executor executor(ChannelHandlerContext ctx);
+
+    /**
+     * 容器停止时释放线程资源
+     */
+    abstract void shutdown() throws InterruptedException;
+
+    static DispatchExecutor create(DispatchMode mode, int threads) {
+        switch (mode) {
+            case EVENT_LOOP:
+                return new EventLoopDispatchExecutor();
+            case WORK_STEALING:
+                return new PoolDispatchExecutor(newWorkStealingPool(threads));
+            case VIRTUAL_THREAD:
+                ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+                if (virtualThreadExecutor == null) {
+                    log.warn("Virtual threads require JDK 21+, falling back to " + DispatchMode.WORK_STEALING);
+                    return new PoolDispatchExecutor(newWorkStealingPool(threads));
+                }
+                return new PoolDispatchExecutor(virtualThreadExecutor);
+            case PINNED:
+            default:
+                return new PinnedDispatchExecutor(threads);
+        }
+    }
+
+    private static ExecutorService newWorkStealingPool(int parallelism) {
+        AtomicInteger index = new AtomicInteger();
+        ForkJoinPool.ForkJoinWorkerThreadFactory factory = pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("netty-servlet-ws-" + index.incrementAndGet());
+            return thread;
+        };
+        return new ForkJoinPool(parallelism, factory, null, true); //asyncMode=true，任务按FIFO执行
+    }
+
+    /**
+     * 通过反射调用JDK 21的Executors.newVirtualThreadPerTaskExecutor()，项目本身按Java 8编译
+     *
+     * @return 虚拟线程Executor，JDK不支持时返回null
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 原有行为：handler绑定到DefaultEventExecutorGroup，每个连接固定由其中一个线程处理
+     */
+    private static class PinnedDispatchExecutor extends DispatchExecutor {
+        private final DefaultEventExecutorGroup group;
+
+        PinnedDispatchExecutor(int threads) {
+            this.group = new DefaultEventExecutorGroup(threads, new DefaultThreadFactory("netty-servlet"));
+        }
+
+        @Override
+        EventExecutorGroup handlerGroup() {
+            return group;
+        }
+
+        @Override
+        Executor executor(ChannelHandlerContext ctx) {
+            return ctx.executor();
+        }
+
+        @Override
+        void shutdown() throws InterruptedException {
+            group.shutdownGracefully().await();
+        }
+    }
+
+    /**
+     * 直接在IO线程上执行Servlet
+     */
+    private static class EventLoopDispatchExecutor extends DispatchExecutor {
+        @Override
+        Executor executor(ChannelHandlerContext ctx) {
+            return ctx.executor();
+        }
+
+        @Override
+        void shutdown() {
+        }
+    }
+
+    /**
+     * handler运行在IO线程上，再把每个请求提交到不与连接绑定的线程池
+     */
+    private static class PoolDispatchExecutor extends DispatchExecutor {
+        private final ExecutorService executorService;
+
+        PoolDispatchExecutor(ExecutorService executorService) {
+            this.executorService = executorService;
+        }
+
+        @Override
+        Executor executor(ChannelHandlerContext ctx) {
+            return executorService;
+        }
+
+        @Override
+        void shutdown() throws InterruptedException {
+            executorService.shutdown();
+            executorService.awaitTermination(30, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+/**
+ * Servlet业务逻辑的执行方式，通过 server.netty.dispatch.mode 配置
+ *
+ * @author Leibniz
+ */
+public enum DispatchMode {
+    /**
+     * 每个连接固定绑定到DefaultEventExecutorGroup中的一个线程上执行（原有行为）
+     */
+    PINNED,
+    /**
+     * 直接在IO线程(EventLoop)上执行，只适用于完全非阻塞的Servlet
+     */
+    EVENT_LOOP,
+    /**
+     * 提交到不与连接绑定的ForkJoinPool中执行，空闲线程可以窃取其他线程的任务
+     */
+    WORK_STEALING,
+    /**
+     * 每个请求一个虚拟线程，需要JDK 21+，低版本JDK会退化为WORK_STEALING
+     */
+    VIRTUAL_THREAD
+}
@@ -0,0 +1,96 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.gitlab.leibnizhu.sbnetty.registration.NettyFilterRegistration;
+
+import javax.servlet.DispatcherType;
+import java.util.EnumSet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Filter的一条映射，对应一个urlPattern或一个servletName
+ * 匹配规则同Servlet规范：精确匹配、"/xxx/*"路径匹配、"*.xxx"扩展名匹配，"/*"匹配所有请求
+ */
+final class FilterMapping {
+    private enum Kind {ALL, EXACT, PREFIX, EXTENSION, SERVLET_NAME}
+
+    private final NettyFilterRegistration registration;
+    private final EnumSet<DispatcherType> dispatcherTypes;
+    private final Kind kind;
+    private final String pattern; //PREFIX时为去掉"/*"的前缀，EXTENSION时为".xxx"，SERVLET_NAME时为servletName
+
+    private FilterMapping(NettyFilterRegistration registration, EnumSet<DispatcherType> dispatcherTypes, Kind kind, String pattern) {
+        this.registration = checkNotNull(registration);
+        //未指定时只处理REQUEST
+        this.dispatcherTypes = dispatcherTypes == null || dispatcherTypes.isEmpty()
+                ? EnumSet.of(DispatcherType.REQUEST) : EnumSet.copyOf(dispatcherTypes);
+        this.kind = kind;
+        this.pattern = pattern;
+    }
+
+    static FilterMapping forUrlPattern(NettyFilterRegistration registration, EnumSet<DispatcherType> dispatcherTypes, String urlPattern) {
+        checkNotNull(urlPattern);
+        if (urlPattern.equals("/*")) {
+            return new FilterMapping(registration, dispatcherTypes, Kind.ALL, urlPattern);
+        } else if (urlPattern.endsWith("/*")) {
+            return new FilterMapping(registration, dispatcherTypes, Kind.PREFIX, urlPattern.substring(0, urlPattern.length() - 2));
+        } else if (urlPattern.startsWith("*.")) {
+            return new FilterMapping(registration, dispatcherTypes, Kind.EXTENSION, urlPattern.substring(1));
+        } else {
+            return new FilterMapping(registration, dispatcherTypes, Kind.EXACT, urlPattern.isEmpty() ? "/" : urlPattern);
+        }
+    }
+
+    static FilterMapping forServletName(NettyFilterRegistration registration, EnumSet<DispatcherType> dispatcherTypes, String servletName) {
+        return new FilterMapping(registration, dispatcherTypes, Kind.SERVLET_NAME, checkNotNull(servletName));
+    }
+
+    NettyFilterRegistration getRegistration() {
+        return registration;
+    }
+
+    boolean appliesTo(DispatcherType dispatcherType) {
+        return dispatcherTypes.contains(dispatcherType);
+    }
+
+    boolean isServletNameMapping() {
+        return kind == Kind.SERVLET_NAME;
+    }
+
+    /**
+     * @return 对该Servlet的所有请求都会匹配，不需要再看请求路径
+     */
+    boolean matchesAll(String servletName) {
+        return kind == Kind.ALL || (kind == Kind.SERVLET_NAME && pattern.equals(servletName));
+    }
+
+    /**
+     * 判断请求路径是否匹配，不产生新的对象
+     *
+     * @param path  请求路径
+     * @param start 去掉contextPath后的起始位置
+     * @param end   去掉查询字符串后的结束位置
+     */
+    boolean matches(String path, int start, int end) {
+        int length = end - start;
+        int patternLength = pattern.length();
+        switch (kind) {
+            case ALL:
+                return true;
+            case EXACT:
+                return length == patternLength && path.regionMatches(start, pattern, 0, patternLength);
+            case PREFIX:
+                return length >= patternLength && path.regionMatches(start, pattern, 0, patternLength)
+                        && (length == patternLength || path.charAt(start + patternLength) == '/');
+            case EXTENSION:
+                return length > patternLength && path.regionMatches(end - patternLength, pattern, 0, patternLength);
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return registration.getName() + "->" + (kind == Kind.PREFIX ? pattern + "/*" : kind == Kind.EXTENSION ? "*" + pattern : pattern);
+    }
+}
@@ -0,0 +1,147 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.*;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.util.AsciiString;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+
+/**
+ * HTTP/2支持，明文连接(h2c)上客户端可以直接发送HTTP/2连接前言(prior knowledge)，也可以先发送带Upgrade: h2c的HTTP/1.1请求，
+ * TLS连接上在握手时通过ALPN协商h2或http/1.1
+ * 切换后连接上是Http2FrameCodec和Http2MultiplexHandler，每个流是一个子Channel，
+ * 子Channel上用Http2StreamFrameToHttpObjectCodec转换为HttpObject后复用ServletHandlers，每个流对应一个RequestSession
+ * 子Channel的可写状态反映流的发送窗口，autoRead关闭时不再归还接收窗口，所以响应输出流和请求体输入流的背压按流生效
+ * 没有切换时，收到第一个HTTP/1.1请求后才添加HTTP/1.1的处理链
+ *
+ * @author Leibniz
+ */
+final class Http2Initializer {
+    private static final Log log = LogFactory.getLog(Http2Initializer.class);
+    private static final int MAX_UPGRADE_CONTENT_LENGTH = 64 * 1024; //带请求体的Upgrade请求需要先聚合
+
+    private final NettyServerProperties.Http2 config;
+    private final NettyServerProperties.Http http;
+    private final ServletHandlers servletHandlers;
+    private final ChannelHandler streamInitializer;
+
+    Http2Initializer(NettyServerProperties.Http2 config, NettyServerProperties.Http http, ServletHandlers servletHandlers) {
+        this.config = config;
+        this.http = http;
+        this.servletHandlers = servletHandlers;
+        this.streamInitializer = new ChannelInitializer<Http2StreamChannel>() {
+            @Override
+            protected void initChannel(Http2StreamChannel ch) {
+                ch.pipeline().addLast("codec", new Http2StreamFrameToHttpObjectCodec(true, http.isValidateHeaders()));
+                servletHandlers.addTo(ch);
+            }
+        };
+    }
+
+    /**
+     * 在连接的pipeline上添加h2c的检测和切换
+     *
+     * @param sourceCodec 没有切换时使用的HTTP/1.1编解码器
+     */
+    void configure(Channel ch, HttpServerCodec sourceCodec) {
+        HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler(sourceCodec, protocol ->
+                AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)
+                        ? new Http2ServerUpgradeCodec(newFrameCodec(), new Http2MultiplexHandler(streamInitializer),
+                        ConnectionExceptionHandler.INSTANCE) : null,
+                MAX_UPGRADE_CONTENT_LENGTH);
+        ChannelPipeline p = ch.pipeline();
+        p.addLast("h2c", new CleartextHttp2ServerUpgradeHandler(sourceCodec, upgradeHandler, new PriorKnowledgeHandler()));
+        p.addLast("http1", new Http1Handler());
+    }
+
+    /**
+     * 在TLS连接的pipeline(SslHandler之后)上添加ALPN协商，握手完成后按协商结果添加HTTP/2或HTTP/1.1的处理链
+     *
+     * @param http1Codec 协商结果为http/1.1(或客户端不支持ALPN)时使用的编解码器
+     */
+    void configureSecure(Channel ch, HttpServerCodec http1Codec) {
+        ch.pipeline().addLast("alpn", new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1) {
+            @Override
+            protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+                if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                    addHttp2Handlers(ctx);
+                } else {
+                    ctx.pipeline().addLast("codec", http1Codec);
+                    servletHandlers.addTo(ctx.channel());
+                }
+            }
+        });
+    }
+
+    /**
+     * 在ctx之后添加Http2FrameCodec和Http2MultiplexHandler，添加Http2MultiplexHandler时要求pipeline中已有Http2FrameCodec
+     */
+    private void addHttp2Handlers(ChannelHandlerContext ctx) {
+        ChannelPipeline p = ctx.pipeline();
+        p.addAfter(ctx.name(), "h2codec", newFrameCodec());
+        p.addAfter("h2codec", "h2multiplex", new Http2MultiplexHandler(streamInitializer));
+        p.addAfter("h2multiplex", "h2exception", ConnectionExceptionHandler.INSTANCE);
+    }
+
+    private Http2FrameCodec newFrameCodec() {
+        Http2Settings settings = Http2Settings.defaultSettings()
+                .maxConcurrentStreams(config.getMaxConcurrentStreams())
+                .initialWindowSize(config.getInitialWindowSize())
+                .maxHeaderListSize(http.getMaxHeaderSize());
+        return Http2FrameCodecBuilder.forServer()
+                .initialSettings(settings)
+                .validateHeaders(http.isValidateHeaders())
+                .build();
+    }
+
+    /**
+     * prior knowledge时替换HTTP/1.1编解码器，在当前位置添加HTTP/2的Handler
+     */
+    private final class PriorKnowledgeHandler extends ChannelHandlerAdapter {
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            addHttp2Handlers(ctx);
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    /**
+     * 处理连接级别(不属于某个流)的异常，客户端断开连接很常见，不打印堆栈
+     */
+    @ChannelHandler.Sharable
+    private static final class ConnectionExceptionHandler extends ChannelInboundHandlerAdapter {
+        static final ConnectionExceptionHandler INSTANCE = new ConnectionExceptionHandler();
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            if (cause instanceof IOException) {
+                log.debug("HTTP/2 connection " + ctx.channel() + " closed: " + cause.getMessage());
+            } else {
+                log.warn("Unexpected exception caught on HTTP/2 connection " + ctx.channel(), cause);
+            }
+            ctx.close();
+        }
+    }
+
+    /**
+     * 收到没有切换到HTTP/2的请求时，换成HTTP/1.1的处理链
+     */
+    private final class Http1Handler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof HttpMessage) {
+                servletHandlers.addTo(ctx.channel());
+                ctx.pipeline().remove(this);
+            }
+            ctx.fireChannelRead(msg);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.unix.UnixChannelOption;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringChannelOption;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+
+/**
+ * io_uring传输，依赖是可选的，只有在NettyTransport确认类存在后才会加载这个类
+ *
+ * @author Leibniz
+ */
+class IOUringTransport extends NettyTransport {
+
+    static boolean isAvailable() {
+        return IOUring.isAvailable();
+    }
+
+    static Throwable unavailabilityCause() {
+        return IOUring.unavailabilityCause();
+    }
+
+    @Override
+    String name() {
+        return "io_uring";
+    }
+
+    /**
+     * 目前的io_uring传输只能写出ByteBuf
+     */
+    @Override
+    boolean supportsFileRegion() {
+        return false;
+    }
+
+    @Override
+    EventLoopGroup newEventLoopGroup(int threads) {
+        return new IOUringEventLoopGroup(threads);
+    }
+
+    @Override
+    Class<? extends ServerChannel> serverChannelClass() {
+        return IOUringServerSocketChannel.class;
+    }
+
+    @Override
+    boolean isNative() {
+        return true;
+    }
+
+    @Override
+    void applyNativeOptions(ServerBootstrap sb, NettyServerProperties.Epoll options, boolean reusePort) {
+        option(sb, UnixChannelOption.SO_REUSEPORT, reusePort ? Boolean.TRUE : options.getReusePort());
+        option(sb, IOUringChannelOption.TCP_FASTOPEN, options.getTcpFastOpen());
+        childOption(sb, IOUringChannelOption.TCP_QUICKACK, options.getTcpQuickAck());
+    }
+}
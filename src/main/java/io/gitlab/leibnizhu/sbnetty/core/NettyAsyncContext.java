@@ -1,6 +1,7 @@
 package io.gitlab.leibnizhu.sbnetty.core;
 
 import com.google.common.collect.ImmutableList;
+import io.gitlab.leibnizhu.sbnetty.request.NettyHttpServletRequest;
 import io.netty.channel.ChannelHandlerContext;
 
 import javax.servlet.*;
@@ -8,20 +9,25 @@ import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  *
  */
 public class NettyAsyncContext implements AsyncContext {
     private ServletRequest servletRequest;
+    private final ServletRequest originalRequest; //startAsync()可能传入包装过的请求，写回Session需要容器的请求对象
     private final ChannelHandlerContext ctx;
+    private final Executor executor; //与请求相同的Servlet执行线程池
     private ServletResponse servletResponse;
     private boolean asyncStarted;
     private List<AsyncListener> listeners;
 
-    public NettyAsyncContext(ServletRequest servletRequest, ChannelHandlerContext ctx) {
+    public NettyAsyncContext(ServletRequest servletRequest, ChannelHandlerContext ctx, Executor executor) {
         this.servletRequest = servletRequest;
+        this.originalRequest = servletRequest;
         this.ctx = ctx;
+        this.executor = executor;
         this.listeners = new ArrayList<>();
     }
 
@@ -74,7 +80,7 @@ public class NettyAsyncContext implements AsyncContext {
         httpRequest.setAttribute(ASYNC_REQUEST_URI, httpRequest.getRequestURI());
         httpRequest.setAttribute(ASYNC_SERVLET_PATH, httpRequest.getServletPath());
         final NettyRequestDispatcher dispatcher = (NettyRequestDispatcher) context.getRequestDispatcher(path);
-        ctx.executor().submit(new Runnable() {
+        executor.execute(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -93,6 +99,9 @@ public class NettyAsyncContext implements AsyncContext {
 
     @Override
     public void complete() {
+        if (originalRequest instanceof NettyHttpServletRequest) {
+            ((NettyHttpServletRequest) originalRequest).flushSession(); //异步请求不经过RequestSession.destroy()
+        }
         try {
             servletResponse.getOutputStream().close();
         } catch (IOException e) {
@@ -103,7 +112,7 @@ public class NettyAsyncContext implements AsyncContext {
 
     @Override
     public void start(Runnable run) {
-        ctx.executor().submit(run, Object.class);
+        executor.execute(run);
     }
 
     @Override
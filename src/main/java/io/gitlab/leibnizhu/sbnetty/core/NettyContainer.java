@@ -1,25 +1,24 @@
 package io.gitlab.leibnizhu.sbnetty.core;
 
-import com.google.common.base.StandardSystemProperty;
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.epoll.EpollChannelOption;
-import io.netty.channel.epoll.EpollEventLoopGroup;
-import io.netty.channel.epoll.EpollServerSocketChannel;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpServerCodec;
-import io.netty.handler.stream.ChunkedWriteHandler;
-import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.handler.ssl.SslHandler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.web.server.Ssl;
+import org.springframework.boot.web.server.SslStoreProvider;
 import org.springframework.boot.web.server.WebServer;
 import org.springframework.boot.web.server.WebServerException;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
-
-import static com.google.common.base.Preconditions.checkNotNull;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Netty servle容器
@@ -33,15 +32,37 @@ public class NettyContainer implements WebServer {
 
     private final InetSocketAddress address; //监听端口地址
     private final NettyContext servletContext; //Context
+    private final NettyServerProperties properties; //server.netty.*配置
+    private final Ssl ssl; //server.ssl.*配置，未启用TLS时为null
+    private final SslStoreProvider sslStoreProvider;
 
     //Netty所需的线程池，分别用于接收/监听请求以及处理请求读写
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
-    private DefaultEventExecutorGroup servletExecutor;
+    private DispatchExecutor servletExecutor; //执行Servlet业务逻辑
+    private StaticResourceHandler staticResourceHandler; //未启用静态资源处理时为null
+    private SslTerminator sslTerminator; //未启用TLS时为null
+    private final List<Channel> serverChannels = new ArrayList<>(); //监听端口的服务端Channel，SO_REUSEPORT模式下有多个
 
     public NettyContainer(InetSocketAddress address, NettyContext servletContext) {
+        this(address, servletContext, new NettyServerProperties());
+    }
+
+    public NettyContainer(InetSocketAddress address, NettyContext servletContext, NettyServerProperties properties) {
+        this(address, servletContext, properties, null, null);
+    }
+
+    /**
+     * @param ssl              启用TLS时的server.ssl.*配置，不启用时为null
+     * @param sslStoreProvider 非null时从中获取KeyStore/TrustStore
+     */
+    public NettyContainer(InetSocketAddress address, NettyContext servletContext, NettyServerProperties properties,
+                          Ssl ssl, SslStoreProvider sslStoreProvider) {
         this.address = address;
         this.servletContext = servletContext;
+        this.properties = properties;
+        this.ssl = ssl;
+        this.sslStoreProvider = sslStoreProvider;
     }
 
     @Override
@@ -49,42 +70,133 @@ public class NettyContainer implements WebServer {
         servletContext.setInitialised(false);
 
         ServerBootstrap sb = new ServerBootstrap();
-        //根据不同系统初始化对应的EventLoopGroup
-        if ("Linux".equals(StandardSystemProperty.OS_NAME.value())) {
-            bossGroup = new EpollEventLoopGroup(1);
-            workerGroup = new EpollEventLoopGroup();//不带参数，线程数传入0,实际解析为 Math.max(1, SystemPropertyUtil.getInt("io.netty.eventLoopThreads", Runtime.getRuntime().availableProcessors() * 2));
-            sb.channel(EpollServerSocketChannel.class)
-                    .group(bossGroup, workerGroup);
-        } else {
-            bossGroup = new NioEventLoopGroup(1);
-            workerGroup = new NioEventLoopGroup();
-            sb.channel(NioServerSocketChannel.class)
-                    .group(bossGroup, workerGroup);
-        }
-        sb.option(ChannelOption.SO_REUSEADDR, true)
-                .option(ChannelOption.SO_BACKLOG, 100);
+        //根据配置及native库的可用性选择传输实现
+        NettyTransport transport = NettyTransport.resolve(properties.getTransport());
+        int acceptors = acceptorCount(transport);
+        bossGroup = transport.newEventLoopGroup(Math.max(properties.getBossThreads(), acceptors)); //每个acceptor独占一个boss线程
+        workerGroup = transport.newEventLoopGroup(properties.getWorkerThreads());//线程数为0时,实际解析为 Math.max(1, SystemPropertyUtil.getInt("io.netty.eventLoopThreads", Runtime.getRuntime().availableProcessors() * 2));
+        sb.channel(transport.serverChannelClass())
+                .group(bossGroup, workerGroup);
+        sb.option(ChannelOption.SO_REUSEADDR, properties.isReuseAddress())
+                .option(ChannelOption.SO_BACKLOG, properties.getBacklog());
+        applyChildOptions(sb, properties.getChild());
+        transport.applyNativeOptions(sb, properties.getEpoll(), acceptors > 1);
+        log.info("Using " + transport.name() + " transport");
         log.info("Bootstrap configuration: " + sb.toString());
 
-        servletExecutor = new DefaultEventExecutorGroup(50);
+        NettyContainerMetrics metrics = servletContext.getMetrics();
+        metrics.initAcceptors(acceptors);
+        metrics.initEventLoops(workerGroup);
+        servletContext.getDateHeaderClock().start(workerGroup.next()); //Date响应头每秒刷新一次
+        servletContext.getSessionManager().start(workerGroup.next()); //Session过期时间轮每秒推进一次
+        AtomicInteger acceptorIndex = new AtomicInteger();
+        sb.handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(new AcceptorMetricsHandler(metrics, acceptorIndex.getAndIncrement()));
+            }
+        });
+
+        NettyServerProperties.Dispatch dispatch = properties.getDispatch();
+        servletExecutor = DispatchExecutor.create(dispatch.getMode(), dispatch.getThreads());
+        log.info("Servlet dispatch mode: " + dispatch.getMode());
+        servletContext.setDispatcherCacheSize(dispatch.getCacheSize());
+        NettyServerProperties.StaticResources staticResources = properties.getStaticResources();
+        staticResourceHandler = staticResources.isEnabled()
+                ? new StaticResourceHandler(servletContext.getClassLoader(), staticResources, transport.supportsFileRegion()) : null;
+        RequestDispatcherHandler dispatcherHandler = new RequestDispatcherHandler(servletContext, servletExecutor, staticResourceHandler);
+        NettyServerProperties.Http http = properties.getHttp();
+        boolean earlyDispatch = http.isEarlyDispatch();
+        if (earlyDispatch && dispatch.getMode() == DispatchMode.EVENT_LOOP) {
+            log.warn("Early dispatch is not supported in EVENT_LOOP dispatch mode, request bodies will be aggregated");
+            earlyDispatch = false;
+        }
+        boolean streamRequestBody = earlyDispatch;
+        ResponseCompressor.Settings compression = properties.getCompression().isEnabled()
+                ? new ResponseCompressor.Settings(properties.getCompression()) : null;
+        RequestSessionPool sessionPool = new RequestSessionPool(properties.getRecycler());
+        if (sessionPool.isEnabled()) {
+            log.info("Request object recycling: " + (sessionPool.isDebug() ? "debug (recycled objects are poisoned, not reused)" : "enabled"));
+        }
+        ServletHandlers servletHandlers = new ServletHandlers(servletContext, http, compression, dispatcherHandler, servletExecutor,
+                streamRequestBody, sessionPool);
+        Http2Initializer http2 = properties.getHttp2().isEnabled() ? new Http2Initializer(properties.getHttp2(), http, servletHandlers) : null;
+        sslTerminator = null != ssl ? SslTerminator.create(ssl, sslStoreProvider, properties.getSsl(), http2 != null) : null;
+        SslTerminator tls = sslTerminator;
+        if (null != tls) {
+            log.info("TLS enabled with " + tls.description() + " engine");
+            metrics.initTls(tls.tracksResumption());
+            tls.scheduleTicketKeyRotation(workerGroup.next());
+        }
+        log.info("HTTP/2: " + (http2 == null ? "disabled" : null != tls ? "h2 (ALPN)" : "h2c"));
         sb.childHandler(new ChannelInitializer<SocketChannel>() {
             @Override
             protected void initChannel(SocketChannel ch) throws Exception {
-                ChannelPipeline p = ch.pipeline();
-                p.addLast("codec", new HttpServerCodec(4096, 8192, 8192, false)); //HTTP编码解码Handler
-                p.addLast("chunked", new ChunkedWriteHandler());
-                p.addLast("aggregator", new RequestSessionAggregator(servletContext)); //聚合http请求，等待http请求完全解析完成后，在交给工作线程
-                p.addLast(checkNotNull(servletExecutor), "filterChain", new RequestDispatcherHandler(servletContext)); //获取请求分发器，让对应的Servlet处理请求，同时处理404情况
+                EventLoop eventLoop = ch.eventLoop();
+                metrics.connectionOpened(eventLoop);
+                ch.closeFuture().addListener(future -> metrics.connectionClosed(eventLoop));
+                HttpServerCodec codec = new HttpServerCodec(http.getMaxInitialLineLength(), http.getMaxHeaderSize(),
+                        http.getMaxChunkSize(), http.isValidateHeaders()); //HTTP编码解码Handler
+                if (null != tls) {
+                    SslHandler sslHandler = tls.newHandler(ch.alloc());
+                    sslHandler.handshakeFuture().addListener(future ->
+                            metrics.tlsHandshakeCompleted(future.isSuccess(), future.isSuccess() && tls.isResumed(sslHandler)));
+                    ch.pipeline().addLast("ssl", sslHandler);
+                }
+                if (http2 != null && null != tls) {
+                    http2.configureSecure(ch, codec); //TLS连接上通过ALPN协商，不支持h2c
+                } else if (http2 != null) {
+                    http2.configure(ch, codec); //HTTP/1.1的处理链在确定不切换到HTTP/2后添加
+                } else {
+                    ch.pipeline().addLast("codec", codec);
+                    servletHandlers.addTo(ch);
+                }
             }
         });
 
         servletContext.setInitialised(true);
 
-        ChannelFuture future = sb.bind(address).awaitUninterruptibly();
-        Throwable cause = future.cause();
-        if (null != cause) {
-            throw new WebServerException("Could not start Netty server", cause);
+        //SO_REUSEPORT模式下多次bind同一端口，每个服务端Channel注册到不同的boss线程上
+        SocketAddress bindAddress = address;
+        for (int i = 0; i < acceptors; i++) {
+            ChannelFuture future = sb.bind(bindAddress).awaitUninterruptibly();
+            Throwable cause = future.cause();
+            if (null != cause) {
+                throw new WebServerException("Could not start Netty server", cause);
+            }
+            serverChannels.add(future.channel());
+            bindAddress = future.channel().localAddress(); //端口为0时，其余acceptor绑定第一次分配到的端口
+        }
+        log.info(servletContext.getServerInfo() + " started on port: " + getPort() + " with " + acceptors + " acceptor(s)");
+    }
+
+    /**
+     * 设置已接收连接的ChannelOption，未配置的保持默认值
+     */
+    private void applyChildOptions(ServerBootstrap sb, NettyServerProperties.Child child) {
+        NettyTransport.childOption(sb, ChannelOption.TCP_NODELAY, child.getTcpNoDelay());
+        NettyTransport.childOption(sb, ChannelOption.SO_KEEPALIVE, child.getKeepAlive());
+        NettyTransport.childOption(sb, ChannelOption.SO_RCVBUF, child.getReceiveBufferSize());
+        NettyTransport.childOption(sb, ChannelOption.SO_SNDBUF, child.getSendBufferSize());
+        Integer low = child.getWriteBufferLowWaterMark();
+        Integer high = child.getWriteBufferHighWaterMark();
+        if (low != null || high != null) {
+            WriteBufferWaterMark defaults = WriteBufferWaterMark.DEFAULT;
+            sb.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                    low != null ? low : defaults.low(), high != null ? high : defaults.high()));
         }
-        log.info(servletContext.getServerInfo() + " started on port: " + getPort());
+    }
+
+    /**
+     * @return 需要bind的服务端Channel数，多acceptor只支持native传输
+     */
+    private int acceptorCount(NettyTransport transport) {
+        int acceptors = Math.max(1, properties.getEpoll().getAcceptors());
+        if (acceptors > 1 && !transport.isNative()) {
+            log.warn("Multiple acceptors require the epoll or io_uring transport, binding a single acceptor");
+            return 1;
+        }
+        return acceptors;
     }
 
     /**
@@ -95,7 +207,12 @@ public class NettyContainer implements WebServer {
     @Override
     public void stop() throws WebServerException {
         log.info("Embedded Netty Servlet Container(by Leibniz.Hu) is now shuting down.");
+        servletContext.getDateHeaderClock().stop();
         try {
+            for (Channel serverChannel : serverChannels) {
+                serverChannel.close().await();
+            }
+            serverChannels.clear();
             if (null != bossGroup) {
                 bossGroup.shutdownGracefully().await();
             }
@@ -103,15 +220,47 @@ public class NettyContainer implements WebServer {
                 workerGroup.shutdownGracefully().await();
             }
             if (null != servletExecutor) {
-                servletExecutor.shutdownGracefully().await();
+                servletExecutor.shutdown();
             }
+            servletContext.getSessionManager().stop(); //不再接收请求后才写回Session的修改、保存快照
         } catch (InterruptedException e) {
             throw new WebServerException("Container stop interrupted", e);
+        } finally {
+            //各自释放，一个失败不影响另一个
+            if (null != staticResourceHandler) {
+                try {
+                    staticResourceHandler.close();
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Failed to release static resource cache", e);
+                }
+                staticResourceHandler = null;
+            }
+            if (null != sslTerminator) {
+                try {
+                    sslTerminator.close();
+                } catch (RuntimeException e) {
+                    log.warn("Failed to release SSL context", e);
+                }
+                sslTerminator = null;
+            }
         }
     }
 
+    /**
+     * @return 容器运行指标
+     */
+    public NettyContainerMetrics getMetrics() {
+        return servletContext.getMetrics();
+    }
+
+    /**
+     * @return 启动后返回服务端Channel实际绑定的端口(配置为0时由系统分配)，未启动时返回配置的端口
+     */
     @Override
     public int getPort() {
+        if (!serverChannels.isEmpty()) {
+            return ((InetSocketAddress) serverChannels.get(0).localAddress()).getPort();
+        }
         return address.getPort();
     }
 }
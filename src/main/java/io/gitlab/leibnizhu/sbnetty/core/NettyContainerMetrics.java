@@ -0,0 +1,397 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 容器运行指标，通过NettyContainer.getMetrics()获取
+ * 记录过程只做原子计数，速率等派生值在读取时计算
+ *
+ * @author Leibniz
+ */
+public class NettyContainerMetrics {
+    private static final long RATE_SAMPLE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /*====== 连接接收 相关指标 开始 ======*/
+    private final LongAdder acceptedConnections = new LongAdder();
+    private volatile AtomicLongArray acceptedPerAcceptor = new AtomicLongArray(1);
+    private long lastRateSampleTime = System.nanoTime();
+    private long lastRateSampleCount;
+    private double acceptRate;
+
+    //IO线程 -> 当前连接数，启动时根据workerGroup初始化，之后只读
+    private volatile Map<EventExecutor, AtomicLong> connectionsPerEventLoop = Collections.emptyMap();
+
+    void initAcceptors(int acceptors) {
+        acceptedPerAcceptor = new AtomicLongArray(acceptors);
+    }
+
+    void initEventLoops(Iterable<EventExecutor> eventLoops) {
+        Map<EventExecutor, AtomicLong> map = new LinkedHashMap<>();
+        for (EventExecutor eventLoop : eventLoops) {
+            map.put(eventLoop, new AtomicLong());
+        }
+        connectionsPerEventLoop = map;
+    }
+
+    void connectionAccepted(int acceptorIndex) {
+        acceptedConnections.increment();
+        acceptedPerAcceptor.incrementAndGet(acceptorIndex);
+    }
+
+    void connectionOpened(EventLoop eventLoop) {
+        AtomicLong counter = connectionsPerEventLoop.get(eventLoop);
+        if (counter != null) {
+            counter.incrementAndGet();
+        }
+    }
+
+    void connectionClosed(EventLoop eventLoop) {
+        AtomicLong counter = connectionsPerEventLoop.get(eventLoop);
+        if (counter != null) {
+            counter.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return 启动以来接收的连接总数
+     */
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    /**
+     * @return 每个acceptor(服务端Channel)接收的连接数，下标即acceptor序号
+     */
+    public long[] getAcceptedPerAcceptor() {
+        AtomicLongArray counters = acceptedPerAcceptor;
+        long[] result = new long[counters.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counters.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return 每秒接收的连接数，为相邻两次采样(间隔至少1秒)之间的平均值
+     */
+    public synchronized double getAcceptRate() {
+        long now = System.nanoTime();
+        long elapsed = now - lastRateSampleTime;
+        if (elapsed >= RATE_SAMPLE_INTERVAL) {
+            long count = acceptedConnections.sum();
+            acceptRate = (count - lastRateSampleCount) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+            lastRateSampleCount = count;
+            lastRateSampleTime = now;
+        }
+        return acceptRate;
+    }
+
+    /**
+     * @return 每个IO线程上当前的连接数，key为IO线程序号
+     */
+    public Map<Integer, Long> getConnectionsPerEventLoop() {
+        Map<Integer, Long> result = new LinkedHashMap<>();
+        int index = 0;
+        for (AtomicLong counter : connectionsPerEventLoop.values()) {
+            result.put(index++, counter.get());
+        }
+        return result;
+    }
+    /*====== 连接接收 相关指标 结束 ======*/
+
+    /*====== 阻塞写出 相关指标 开始 ======*/
+    private final LongAdder blockedWrites = new LongAdder();
+    private final LongAdder blockedWriteNanos = new LongAdder();
+    private final AtomicInteger writersBlocked = new AtomicInteger();
+    private final LongAdder writeTimeouts = new LongAdder();
+
+    /**
+     * Servlet线程因连接不可写开始阻塞等待，由ResponseSequencer调用
+     */
+    public void writeBlocked() {
+        blockedWrites.increment();
+        writersBlocked.incrementAndGet();
+    }
+
+    /**
+     * Servlet线程结束阻塞等待，由ResponseSequencer调用
+     *
+     * @param nanos   阻塞时长
+     * @param timeout 是否因超时结束
+     */
+    public void writeUnblocked(long nanos, boolean timeout) {
+        writersBlocked.decrementAndGet();
+        blockedWriteNanos.add(nanos);
+        if (timeout) {
+            writeTimeouts.increment();
+        }
+    }
+
+    /**
+     * @return 启动以来Servlet线程因连接不可写而阻塞的次数
+     */
+    public long getBlockedWrites() {
+        return blockedWrites.sum();
+    }
+
+    /**
+     * @return 启动以来Servlet线程因连接不可写而阻塞的总时长(毫秒)
+     */
+    public long getBlockedWriteMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedWriteNanos.sum());
+    }
+
+    /**
+     * @return 当前因连接不可写而阻塞的Servlet线程数
+     */
+    public int getWritersBlocked() {
+        return writersBlocked.get();
+    }
+
+    /**
+     * @return 启动以来阻塞等待超时的次数
+     */
+    public long getWriteTimeouts() {
+        return writeTimeouts.sum();
+    }
+    /*====== 阻塞写出 相关指标 结束 ======*/
+
+    /*====== 分发器缓存 相关指标 开始 ======*/
+    private final LongAdder dispatcherCacheHits = new LongAdder();
+    private final LongAdder dispatcherCacheMisses = new LongAdder();
+
+    void dispatcherCacheHit() {
+        dispatcherCacheHits.increment();
+    }
+
+    void dispatcherCacheMiss() {
+        dispatcherCacheMisses.increment();
+    }
+
+    /**
+     * @return 启动以来请求路径命中分发器缓存的次数，未启用缓存时为0
+     */
+    public long getDispatcherCacheHits() {
+        return dispatcherCacheHits.sum();
+    }
+
+    /**
+     * @return 启动以来请求路径未命中分发器缓存的次数，未启用缓存时为0
+     */
+    public long getDispatcherCacheMisses() {
+        return dispatcherCacheMisses.sum();
+    }
+    /*====== 分发器缓存 相关指标 结束 ======*/
+
+    /*====== TLS握手 相关指标 开始 ======*/
+    private final LongAdder tlsHandshakes = new LongAdder();
+    private final LongAdder tlsHandshakeFailures = new LongAdder();
+    private final LongAdder tlsResumedHandshakes = new LongAdder();
+    private volatile boolean tlsResumptionTracked;
+
+    void initTls(boolean resumptionTracked) {
+        tlsResumptionTracked = resumptionTracked;
+    }
+
+    void tlsHandshakeCompleted(boolean success, boolean resumed) {
+        if (!success) {
+            tlsHandshakeFailures.increment();
+            return;
+        }
+        tlsHandshakes.increment();
+        if (resumed) {
+            tlsResumedHandshakes.increment();
+        }
+    }
+
+    /**
+     * @return 启动以来成功的TLS握手次数(包括恢复会话的握手)
+     */
+    public long getTlsHandshakes() {
+        return tlsHandshakes.sum();
+    }
+
+    /**
+     * @return 启动以来失败(包括超时)的TLS握手次数
+     */
+    public long getTlsHandshakeFailures() {
+        return tlsHandshakeFailures.sum();
+    }
+
+    /**
+     * @return 启动以来通过会话缓存或会话票据恢复会话的握手次数，JDK SSL或未启用TLS时为-1
+     */
+    public long getTlsResumedHandshakes() {
+        return tlsResumptionTracked ? tlsResumedHandshakes.sum() : -1;
+    }
+    /*====== TLS握手 相关指标 结束 ======*/
+
+    /*====== Session过期 相关指标 开始 ======*/
+    private final LongAdder sessionSweeps = new LongAdder();
+    private final LongAdder sessionSweepNanos = new LongAdder();
+    private final AtomicLong maxSessionSweepNanos = new AtomicLong();
+    private volatile long lastSessionSweepNanos;
+    private final LongAdder expiredSessions = new LongAdder();
+
+    /**
+     * 过期时间轮推进一次(一个tick)，由NettySessionManager调用
+     *
+     * @param nanos   本次推进占用定时任务所在IO线程的时长
+     * @param expired 本次无效化的Session数
+     */
+    public void sessionSweepCompleted(long nanos, int expired) {
+        sessionSweeps.increment();
+        sessionSweepNanos.add(nanos);
+        maxSessionSweepNanos.accumulateAndGet(nanos, Math::max);
+        lastSessionSweepNanos = nanos;
+        expiredSessions.add(expired);
+    }
+
+    /**
+     * @return 启动以来过期时间轮推进的次数
+     */
+    public long getSessionSweeps() {
+        return sessionSweeps.sum();
+    }
+
+    /**
+     * @return 启动以来过期时间轮推进的总耗时(微秒)
+     */
+    public long getSessionSweepMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(sessionSweepNanos.sum());
+    }
+
+    /**
+     * @return 单次推进的最长耗时(微秒)，即过期检查造成的最长停顿
+     */
+    public long getMaxSessionSweepPauseMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxSessionSweepNanos.get());
+    }
+
+    /**
+     * @return 最近一次推进的耗时(微秒)
+     */
+    public long getLastSessionSweepPauseMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(lastSessionSweepNanos);
+    }
+
+    /**
+     * @return 启动以来因超时被无效化的Session数
+     */
+    public long getExpiredSessions() {
+        return expiredSessions.sum();
+    }
+    /*====== Session过期 相关指标 结束 ======*/
+
+
+    /*====== Session存储 相关指标 开始 ======*/
+    private final LongAdder sessionLoads = new LongAdder();
+    private final LongAdder sessionLoadMisses = new LongAdder();
+    private final LongAdder sessionWrites = new LongAdder();
+    private final LongAdder sessionWriteBatches = new LongAdder();
+    private final LongAdder sessionWriteNanos = new LongAdder();
+    private final LongAdder sessionWriteFailures = new LongAdder();
+
+    /**
+     * 近端缓存中没有，从SessionStore加载了一次Session，由NettySessionManager调用
+     *
+     * @param found 存储中是否有这个Session
+     */
+    public void sessionLoaded(boolean found) {
+        sessionLoads.increment();
+        if (!found) {
+            sessionLoadMisses.increment();
+        }
+    }
+
+    /**
+     * 写回线程向SessionStore写入了一批修改，由NettySessionManager调用
+     *
+     * @param deltas 本批的修改数
+     * @param nanos  SessionStore.save()的耗时
+     */
+    public void sessionBatchSaved(int deltas, long nanos) {
+        sessionWrites.add(deltas);
+        sessionWriteBatches.increment();
+        sessionWriteNanos.add(nanos);
+    }
+
+    /**
+     * 一批修改写入SessionStore失败(已丢弃)，由NettySessionManager调用
+     */
+    public void sessionBatchFailed(int deltas) {
+        sessionWriteFailures.add(deltas);
+    }
+
+    /**
+     * @return 启动以来从SessionStore加载Session的次数
+     */
+    public long getSessionLoads() {
+        return sessionLoads.sum();
+    }
+
+    /**
+     * @return 其中存储中没有(或已过期)的次数
+     */
+    public long getSessionLoadMisses() {
+        return sessionLoadMisses.sum();
+    }
+
+    /**
+     * @return 启动以来写入SessionStore的修改数
+     */
+    public long getSessionWrites() {
+        return sessionWrites.sum();
+    }
+
+    /**
+     * @return 启动以来调用SessionStore.save()的次数，与getSessionWrites()之比即平均每批的修改数
+     */
+    public long getSessionWriteBatches() {
+        return sessionWriteBatches.sum();
+    }
+
+    /**
+     * @return 启动以来SessionStore.save()的总耗时(微秒)
+     */
+    public long getSessionWriteMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(sessionWriteNanos.sum());
+    }
+
+    /**
+     * @return 启动以来写入失败而丢弃的修改数
+     */
+    public long getSessionWriteFailures() {
+        return sessionWriteFailures.sum();
+    }
+    /*====== Session存储 相关指标 结束 ======*/
+
+
+    /*====== Session ID 相关指标 开始 ======*/
+    private final LongAdder sessionIdCollisions = new LongAdder();
+
+    /**
+     * 新生成的Session ID已被使用，由NettySessionManager调用
+     */
+    public void sessionIdCollided() {
+        sessionIdCollisions.increment();
+    }
+
+    /**
+     * @return 启动以来生成的Session ID与已有Session冲突而重新生成的次数，正常情况下应一直为0
+     */
+    public long getSessionIdCollisions() {
+        return sessionIdCollisions.sum();
+    }
+    /*====== Session ID 相关指标 结束 ======*/
+}
@@ -1,23 +1,27 @@
 package io.gitlab.leibnizhu.sbnetty.core;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import io.gitlab.leibnizhu.sbnetty.registration.NettyFilterRegistration;
 import io.gitlab.leibnizhu.sbnetty.registration.NettyServletRegistration;
+import io.gitlab.leibnizhu.sbnetty.response.ResponseSizeEstimator;
 import io.gitlab.leibnizhu.sbnetty.session.NettySessionManager;
 import io.gitlab.leibnizhu.sbnetty.utils.MimeTypeUtil;
 import io.gitlab.leibnizhu.sbnetty.utils.RequestUrlPatternMapper;
+import io.netty.util.AsciiString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.*;
 import javax.servlet.descriptor.JspConfigDescriptor;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -31,13 +35,22 @@ public class NettyContext implements ServletContext {
     private final String contextPath; //保证不以“/”结尾
     private final ClassLoader classLoader;
     private final String serverInfo;
+    private final AsciiString serverInfoHeader; //Server响应头，编码一次后所有响应共享
+    private final DateHeaderClock dateHeaderClock = new DateHeaderClock(); //Date响应头
     private volatile boolean initialized; //记录是否初始化完毕
     private RequestUrlPatternMapper servletUrlPatternMapper;
     private NettySessionManager sessionManager;
+    private final NettyContainerMetrics metrics = new NettyContainerMetrics(); //容器运行指标
+    private final ResponseSizeEstimator responseSizeEstimator = new ResponseSizeEstimator(); //按请求路径估计响应缓冲区大小
 
     private final Map<String, NettyServletRegistration> servlets = new HashMap<>(); //getServletRegistration()等方法要用，key是ServletName
-    private final Map<String, NettyFilterRegistration> filters = new HashMap<>(); //getFilterRegistration()等方法要用，Key是FilterName
+    private final Map<String, NettyFilterRegistration> filters = new LinkedHashMap<>(); //getFilterRegistration()等方法要用，Key是FilterName，保持注册顺序
     private final Map<String, String> servletMappings = new HashMap<>(); //保存请求路径urlPattern与Servlet名的映射,urlPattern是不带contextPath的
+    private final List<FilterMapping> filterMappings = new ArrayList<>(); //Filter的映射，按匹配顺序排列
+    private int matchBeforeMappings; //isMatchAfter=false的映射数，这些映射排在最前面
+    private volatile Map<String, ServletFilterChains> filterChains = new ConcurrentHashMap<>(); //ServletName->编译好的过滤器链，映射变化时整体丢弃
+    private int dispatcherCacheSize; //请求路径->分发器缓存的最大条数，0表示不缓存
+    private volatile Cache<String, NettyRequestDispatcher> dispatcherCache; //映射变化时整体丢弃
     private final Hashtable<String, Object> attributes = new Hashtable<>();
 
     /**
@@ -54,6 +67,7 @@ public class NettyContext implements ServletContext {
         this.contextPath = contextPath;
         this.classLoader = classLoader;
         this.serverInfo = serverInfo;
+        this.serverInfoHeader = AsciiString.cached(serverInfo);
         this.servletUrlPatternMapper = new RequestUrlPatternMapper(contextPath);
         this.sessionManager = new NettySessionManager(this);
     }
@@ -62,6 +76,46 @@ public class NettyContext implements ServletContext {
         return sessionManager;
     }
 
+    public NettyContainerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ResponseSizeEstimator getResponseSizeEstimator() {
+        return responseSizeEstimator;
+    }
+
+    /**
+     * @return Server响应头的值
+     */
+    public AsciiString getServerInfoHeader() {
+        return serverInfoHeader;
+    }
+
+    /**
+     * @return Date响应头的值，每秒刷新
+     */
+    public AsciiString getDateHeaderValue() {
+        return dateHeaderClock.get();
+    }
+
+    DateHeaderClock getDateHeaderClock() {
+        return dateHeaderClock;
+    }
+
+    /**
+     * 启用请求路径->分发器的缓存，适合请求集中在少数URI的场景
+     *
+     * @param maximumSize 最大条数，0表示不缓存
+     */
+    void setDispatcherCacheSize(int maximumSize) {
+        this.dispatcherCacheSize = maximumSize;
+        this.dispatcherCache = newDispatcherCache();
+    }
+
+    private Cache<String, NettyRequestDispatcher> newDispatcherCache() {
+        return dispatcherCacheSize > 0 ? CacheBuilder.newBuilder().maximumSize(dispatcherCacheSize).build() : null;
+    }
+
     void setInitialised(boolean initialized) {
         this.initialized = initialized;
     }
@@ -78,11 +132,37 @@ public class NettyContext implements ServletContext {
         checkNotInitialised();
         servletMappings.put(urlPattern, checkNotNull(name));
         servletUrlPatternMapper.addServlet(urlPattern, servlet, name);
+        mappingsChanged();
     }
 
-    public void addFilterMapping(EnumSet<DispatcherType> dispatcherTypes, boolean isMatchAfter, String urlPattern) {
+    public void addFilterMapping(NettyFilterRegistration registration, EnumSet<DispatcherType> dispatcherTypes, boolean isMatchAfter, String urlPattern) {
         checkNotInitialised();
-        //TODO 过滤器的urlPatter解析
+        addFilterMapping(FilterMapping.forUrlPattern(registration, dispatcherTypes, urlPattern), isMatchAfter);
+    }
+
+    public void addFilterServletNameMapping(NettyFilterRegistration registration, EnumSet<DispatcherType> dispatcherTypes, boolean isMatchAfter, String servletName) {
+        checkNotInitialised();
+        addFilterMapping(FilterMapping.forServletName(registration, dispatcherTypes, servletName), isMatchAfter);
+    }
+
+    /**
+     * 同Servlet规范，isMatchAfter=false的映射排在已有映射之前，isMatchAfter=true的排在最后，各自保持注册顺序
+     */
+    private synchronized void addFilterMapping(FilterMapping mapping, boolean isMatchAfter) {
+        if (isMatchAfter) {
+            filterMappings.add(mapping);
+        } else {
+            filterMappings.add(matchBeforeMappings++, mapping);
+        }
+        mappingsChanged();
+    }
+
+    /**
+     * Servlet或Filter的映射变化后，丢弃已经编译好的过滤器链
+     */
+    private void mappingsChanged() {
+        filterChains = new ConcurrentHashMap<>();
+        dispatcherCache = newDispatcherCache();
     }
 
     /**
@@ -151,24 +231,21 @@ public class NettyContext implements ServletContext {
         return thePaths;
     }
 
+    /**
+     * 先在classpath根目录下查找，再到static/目录下查找
+     * 只判断资源是否存在，不打开资源
+     */
     @Override
     public URL getResource(String path) throws MalformedURLException {
         if (!path.startsWith("/"))
             throw new MalformedURLException("Path '" + path + "' does not start with '/'");
-        URL url = new URL(getClassLoader().getResource(""), path.substring(1));
-        try {
-            url.openStream();
-        } catch(FileNotFoundException e){
-            url = new URL(getClassLoader().getResource(""), "static/" + path.substring(1));
-            try {
-                url.openStream();
-            } catch (IOException e1) {
-                log.warn("Resource not exist: " + path);
-                url = null;
-            }
-        } catch (Throwable t) {
-            log.error("Throwing exception when getting InputStream of " + path + " in /", t);
-            url = null;
+        String name = path.substring(1);
+        URL url = getClassLoader().getResource(name);
+        if (url == null) {
+            url = getClassLoader().getResource("static/" + name);
+        }
+        if (url == null) {
+            log.warn("Resource not exist: " + path);
         }
         return url;
     }
@@ -188,27 +265,110 @@ public class NettyContext implements ServletContext {
     @Override
     public RequestDispatcher getRequestDispatcher(String path) {
         String servletName = servletUrlPatternMapper.getServletNameByRequestURI(path);
-        /*String servletName = servletMappings.get(path);
         if (servletName == null) {
-            servletName = servletMappings.get("/");
-        }*/
-        Servlet servlet;
+            return null;
+        }
         try {
-            servlet = null == servletName ? null : servlets.get(servletName).getServlet(true);
+            ServletFilterChains chains = getFilterChains(servletName);
+            return chains == null ? null : new NettyRequestDispatcher(chains, path, servletUrlPatternMapper.isDefaultServletMatch(path));
+        } catch (ServletException e) {
+            log.error("Throwing exception when getting Filter from NettyFilterRegistration of path " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * 处理请求时获取分发器，按去掉查询字符串、路径参数并规范化后的请求路径匹配，启用缓存时先查缓存
+     * 这样带;jsessionid=等路径参数、"//"、"."或".."的路径共用一条缓存，不会挤掉热点路径
+     * 匹配不到Servlet的路径、".."超出根路径的路径不缓存
+     */
+    NettyRequestDispatcher getRequestDispatcherForRequest(String requestURI) {
+        int queryIndex = requestURI.indexOf('?');
+        String path = normalizePath(queryIndex < 0 ? requestURI : requestURI.substring(0, queryIndex));
+        Cache<String, NettyRequestDispatcher> cache = dispatcherCache;
+        if (path == null) {
+            return (NettyRequestDispatcher) getRequestDispatcher(requestURI);
+        }
+        if (cache == null) {
+            return (NettyRequestDispatcher) getRequestDispatcher(path);
+        }
+        NettyRequestDispatcher dispatcher = cache.getIfPresent(path);
+        if (dispatcher != null) {
+            metrics.dispatcherCacheHit();
+            return dispatcher;
+        }
+        metrics.dispatcherCacheMiss();
+        dispatcher = (NettyRequestDispatcher) getRequestDispatcher(path);
+        if (dispatcher != null) {
+            //放入取缓存时的实例，期间映射变化的话随旧缓存一起丢弃
+            cache.put(path, dispatcher);
+        }
+        return dispatcher;
+    }
+
+    /**
+     * 去掉各段的路径参数(";"之后的部分)，合并连续的"/"，处理"."和".."
+     * 大多数路径不需要处理，直接返回原字符串
+     *
+     * @return 规范化后的路径，".."超出根路径时返回null
+     */
+    static String normalizePath(String path) {
+        if (path.indexOf(';') < 0 && !path.contains("//") && !path.contains("/.")) {
+            return path;
+        }
+        List<String> segments = new ArrayList<>();
+        boolean directory = false; //最后一段是"."或".."
+        for (String segment : path.split("/")) {
+            int paramIndex = segment.indexOf(';');
+            if (paramIndex >= 0) {
+                segment = segment.substring(0, paramIndex);
+            }
+            directory = false;
+            if (segment.equals("..")) {
+                if (segments.isEmpty()) {
+                    return null;
+                }
+                segments.remove(segments.size() - 1);
+                directory = true;
+            } else if (segment.equals(".")) {
+                directory = true;
+            } else if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        StringBuilder normalized = new StringBuilder(path.length());
+        for (String segment : segments) {
+            normalized.append('/').append(segment);
+        }
+        if (normalized.length() == 0 || directory || path.endsWith("/")) {
+            normalized.append('/');
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * 获取Servlet编译好的过滤器链，第一次访问该Servlet时编译
+     */
+    private ServletFilterChains getFilterChains(String servletName) throws ServletException {
+        Map<String, ServletFilterChains> chainsMap = filterChains;
+        ServletFilterChains chains = chainsMap.get(servletName);
+        if (chains == null) {
+            NettyServletRegistration registration = servlets.get(servletName);
+            Servlet servlet = registration == null ? null : registration.getServlet(true);
             if (servlet == null) {
                 return null;
             }
-            //TODO 过滤器的urlPatter解析
-            List<Filter> allNeedFilters = new ArrayList<>();
-            for (NettyFilterRegistration registration : this.filters.values()) {
-                allNeedFilters.add(registration.getFilter());
+            List<FilterMapping> mappings;
+            synchronized (this) {
+                mappings = new ArrayList<>(filterMappings);
+            }
+            chains = new ServletFilterChains(contextPath, servletName, servlet, mappings);
+            ServletFilterChains previous = chainsMap.putIfAbsent(servletName, chains);
+            if (previous != null) {
+                chains = previous;
             }
-            FilterChain filterChain = new NettyFilterChain(servlet, allNeedFilters);
-            return new NettyRequestDispatcher( filterChain,path);
-        } catch (ServletException e) {
-            log.error("Throwing exception when getting Filter from NettyFilterRegistration of path " + path, e);
-            return null;
         }
+        return chains;
     }
 
     @Override
@@ -324,6 +484,7 @@ public class NettyContext implements ServletContext {
     private ServletRegistration.Dynamic addServlet(String servletName, String className, Servlet servlet) {
         NettyServletRegistration servletRegistration = new NettyServletRegistration(this, servletName, className, servlet);
         servlets.put(servletName, servletRegistration);
+        mappingsChanged();
         return servletRegistration;
     }
 
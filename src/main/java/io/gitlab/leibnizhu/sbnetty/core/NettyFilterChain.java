@@ -2,7 +2,6 @@ package io.gitlab.leibnizhu.sbnetty.core;
 
 import javax.servlet.*;
 import java.io.IOException;
-import java.util.Iterator;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -11,28 +10,36 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 public class NettyFilterChain implements FilterChain {
     /**
-     * 考虑到每个请求只有一个线程处理，而且ServletContext在每次请求时都会new 一个SimpleFilterChain对象
-     * 所以这里把过滤器链的Iterator作为FilterChain的私有变量，没有线程安全问题
+     * 过滤器数组由ServletFilterChains预先编译好，多个请求共享，只读
+     * 每个请求只有一个线程处理，而且每次请求都会new 一个NettyFilterChain对象
+     * 所以这里只用一个下标作为游标，没有线程安全问题
      */
-    private final Iterator<Filter> filterIterator;
+    private final Filter[] filters;
     private final Servlet servlet;
+    private final StaticResourceHandler staticResources; //REQUEST分发且启用了静态资源处理时才有，否则为null
+    private int position;
 
-    public NettyFilterChain(Servlet servlet, Iterable<Filter> filters) throws ServletException {
-        this.filterIterator = checkNotNull(filters).iterator();
+    public NettyFilterChain(Servlet servlet, Filter[] filters) {
+        this(servlet, filters, null);
+    }
+
+    NettyFilterChain(Servlet servlet, Filter[] filters, StaticResourceHandler staticResources) {
+        this.filters = checkNotNull(filters);
         this.servlet = checkNotNull(servlet);
+        this.staticResources = staticResources;
     }
 
     /**
      * 每个Filter在处理完请求之后调用FilterChain的这个方法。
      * 这时候应该找到下一个Filter，调用其doFilter()方法。
-     * 如果没有下一个了，应该调用servlet的service()方法了
+     * 如果没有下一个了，先查找静态资源，没有找到再调用servlet的service()方法
      */
     @Override
     public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
-        if (filterIterator.hasNext()) {
-            Filter filter = filterIterator.next();
+        if (position < filters.length) {
+            Filter filter = filters[position++];
             filter.doFilter(request, response, this);
-        } else {
+        } else if (staticResources == null || !staticResources.handle(request, response)) {
             servlet.service(request, response);
         }
     }
@@ -8,21 +8,26 @@ import java.io.IOException;
 
 /**
  * 分发器，除了传统的forward和include，把正常的Servlet调用也放在这里dispatch()方法
+ * 本身不保存请求相关的状态，可以被多个请求共享，每次分发时才new一个过滤器链游标
  */
 public class NettyRequestDispatcher implements RequestDispatcher {
-    private final FilterChain filterChain;
+    private final ServletFilterChains filterChains;
     private final String path;
+    private final Filter[] requestFilters; //REQUEST分发时的过滤器，创建时确定
+    private final boolean defaultServlet; //路径匹配到的是默认Servlet("/")，只有这时才查找静态资源
 
-    NettyRequestDispatcher(FilterChain filterChain, String path) {
-        this.filterChain = filterChain;
+    NettyRequestDispatcher(ServletFilterChains filterChains, String path, boolean defaultServlet) {
+        this.filterChains = filterChains;
         this.path = path;
+        this.requestFilters = filterChains.filters(DispatcherType.REQUEST, path);
+        this.defaultServlet = defaultServlet;
     }
 
     @Override
     public void forward(ServletRequest request, ServletResponse response) throws ServletException, IOException {
         request.setAttribute(NettyHttpServletRequest.DISPATCHER_TYPE, DispatcherType.FORWARD);
         NettyHttpServletRequest servletRequest = (NettyHttpServletRequest) request;
-        filterChain.doFilter(new HttpServletRequestWrapper(servletRequest) {
+        filterChains.newChain(DispatcherType.FORWARD, path).doFilter(new HttpServletRequestWrapper(servletRequest) {
             @Override
             public String getRequestURI() {
                 return path;
@@ -36,8 +41,16 @@ public class NettyRequestDispatcher implements RequestDispatcher {
         // TODO implement
     }
 
-    void dispatch(ServletRequest request, ServletResponse response) throws ServletException, IOException {
+    public void dispatch(ServletRequest request, ServletResponse response) throws ServletException, IOException {
+        dispatch(request, response, null);
+    }
+
+    /**
+     * @param staticResources 不为null且路径匹配到默认Servlet时，在过滤器链末尾、调用Servlet之前查找静态资源，
+     *                        映射到其他Servlet的路径不查找，也不会被同名的静态资源覆盖
+     */
+    void dispatch(ServletRequest request, ServletResponse response, StaticResourceHandler staticResources) throws ServletException, IOException {
         request.setAttribute(NettyHttpServletRequest.DISPATCHER_TYPE, DispatcherType.REQUEST);
-        filterChain.doFilter(request, response);
+        new NettyFilterChain(filterChains.getServlet(), requestFilters, defaultServlet ? staticResources : null).doFilter(request, response);
     }
 }
@@ -0,0 +1,139 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.UnixChannelOption;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.ClassUtils;
+
+/**
+ * 对EventLoopGroup和服务端Channel实现的抽象，运行时检测native传输是否可用
+ *
+ * @author Leibniz
+ */
+abstract class NettyTransport {
+    private static final Log log = LogFactory.getLog(NettyTransport.class);
+    private static final String IO_URING_CLASS = "io.netty.incubator.channel.uring.IOUring";
+
+    abstract String name();
+
+    abstract EventLoopGroup newEventLoopGroup(int threads);
+
+    abstract Class<? extends ServerChannel> serverChannelClass();
+
+    /**
+     * @return 是否支持SO_REUSEPORT等Linux socket选项
+     */
+    boolean isNative() {
+        return false;
+    }
+
+    /**
+     * @return 是否支持写出FileRegion(零拷贝发送文件)
+     */
+    boolean supportsFileRegion() {
+        return true;
+    }
+
+    /**
+     * 设置native传输特有的ChannelOption
+     */
+    void applyNativeOptions(ServerBootstrap sb, NettyServerProperties.Epoll options, boolean reusePort) {
+    }
+
+    /**
+     * 按配置选择传输实现，配置的实现不可用时回退到AUTO的选择结果
+     */
+    static NettyTransport resolve(TransportType type) {
+        switch (type) {
+            case EPOLL:
+                if (Epoll.isAvailable()) {
+                    return new EpollTransport();
+                }
+                log.warn("Epoll transport is not available, falling back to " + TransportType.AUTO, Epoll.unavailabilityCause());
+                break;
+            case IO_URING:
+                if (!ClassUtils.isPresent(IO_URING_CLASS, NettyTransport.class.getClassLoader())) {
+                    log.warn("io_uring transport is not on the classpath, falling back to " + TransportType.AUTO);
+                } else if (IOUringTransport.isAvailable()) {
+                    return new IOUringTransport();
+                } else {
+                    log.warn("io_uring transport is not available, falling back to " + TransportType.AUTO, IOUringTransport.unavailabilityCause());
+                }
+                break;
+            case NIO:
+                return new NioTransport();
+            default:
+                break;
+        }
+        return Epoll.isAvailable() ? new EpollTransport() : new NioTransport();
+    }
+
+    static <T> void option(ServerBootstrap sb, ChannelOption<T> option, T value) {
+        if (value != null) {
+            sb.option(option, value);
+        }
+    }
+
+    static <T> void childOption(ServerBootstrap sb, ChannelOption<T> option, T value) {
+        if (value != null) {
+            sb.childOption(option, value);
+        }
+    }
+
+    private static class NioTransport extends NettyTransport {
+        @Override
+        String name() {
+            return "nio";
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+    }
+
+    private static class EpollTransport extends NettyTransport {
+        @Override
+        String name() {
+            return "epoll";
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        @Override
+        Class<? extends ServerChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        boolean isNative() {
+            return true;
+        }
+
+        @Override
+        void applyNativeOptions(ServerBootstrap sb, NettyServerProperties.Epoll options, boolean reusePort) {
+            option(sb, UnixChannelOption.SO_REUSEPORT, reusePort ? Boolean.TRUE : options.getReusePort());
+            option(sb, EpollChannelOption.TCP_FASTOPEN, options.getTcpFastOpen());
+            childOption(sb, EpollChannelOption.TCP_QUICKACK, options.getTcpQuickAck());
+        }
+    }
+}
@@ -6,19 +6,26 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.concurrent.Executor;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * 读入请求数据时，对请求URI获取分发器，找不到返回404错误.
  * 找到则调用FilterChain进行业务逻辑，最后关闭输出流
+ * 业务逻辑在哪个线程执行由DispatchExecutor决定
  */
 @ChannelHandler.Sharable
 class RequestDispatcherHandler extends SimpleChannelInboundHandler<RequestSession> {
     private final Log logger = LogFactory.getLog(getClass());
     private final NettyContext context;
+    private final DispatchExecutor dispatchExecutor;
+    private final StaticResourceHandler staticResourceHandler; //未启用时为null
 
-    RequestDispatcherHandler(NettyContext context) {
+    RequestDispatcherHandler(NettyContext context, DispatchExecutor dispatchExecutor, StaticResourceHandler staticResourceHandler) {
         this.context = checkNotNull(context);
+        this.dispatchExecutor = checkNotNull(dispatchExecutor);
+        this.staticResourceHandler = staticResourceHandler;
     }
 
     @Override
@@ -28,14 +35,33 @@ class RequestDispatcherHandler extends SimpleChannelInboundHandler<RequestSessio
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, RequestSession requestSession) throws Exception {
+        Executor executor = dispatchExecutor.executor(ctx);
+        requestSession.setExecutor(executor);
+        if (executor == ctx.executor()) {
+            dispatch(requestSession);
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                dispatch(requestSession);
+            } catch (Throwable t) {
+                //已经不在pipeline中执行，异常不会传递到exceptionCaught()，在这里同样处理
+                logger.error("Unexpected exception caught during request", t);
+                ctx.close();
+            }
+        });
+    }
+
+    private void dispatch(RequestSession requestSession) throws Exception {
         String requestURI = requestSession.getServletRequest().getRequestURI();
         try {
-            NettyRequestDispatcher dispatcher = (NettyRequestDispatcher) context.getRequestDispatcher(requestURI);
+            NettyRequestDispatcher dispatcher = context.getRequestDispatcherForRequest(requestURI);
             if (dispatcher == null) {
                 requestSession.getServletResponse().sendError(404);
                 return;
             }
-            dispatcher.dispatch(requestSession.getServletRequest(), requestSession.getServletResponse());
+            //静态资源在过滤器链末尾处理，和Servlet一样经过Filter
+            dispatcher.dispatch(requestSession.getServletRequest(), requestSession.getServletResponse(), staticResourceHandler);
         } finally {
             if (!requestSession.getServletRequest().isAsyncStarted()) {
                 requestSession.destroy();
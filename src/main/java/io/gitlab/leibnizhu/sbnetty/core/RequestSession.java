@@ -3,23 +3,42 @@ package io.gitlab.leibnizhu.sbnetty.core;
 import io.gitlab.leibnizhu.sbnetty.request.HttpRequestInputStream;
 import io.gitlab.leibnizhu.sbnetty.request.NettyHttpServletRequest;
 import io.gitlab.leibnizhu.sbnetty.response.NettyHttpServletResponse;
+import io.gitlab.leibnizhu.sbnetty.response.ResponseSequencer;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
 import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
+import io.netty.util.Recycler;
 import io.netty.util.ReferenceCountUtil;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
-
-
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个请求的处理过程：Netty请求、Servlet请求/响应对象及输入输出流
+ * 从RequestSessionPool获取时，整组对象在请求结束后回收重用，回收协议：
+ * 接收方(RequestSessionAggregator，直到收完请求体或连接断开)和处理方(直到destroy())各持有一个引用，
+ * 处理方的引用在destroy()写出的最后一次响应完成后才释放，两个引用都释放后重置所有对象的状态再放回对象池；
+ * 开始了异步处理或使用了ReadListener/WriteListener的请求，回调可能在destroy()之后才执行，不回收
+ */
 public class RequestSession {
+    private static final int OWNERS = 2; //接收方和处理方
+
     private final AtomicBoolean destroyed = new AtomicBoolean(false);
+    private final AtomicInteger owners = new AtomicInteger(OWNERS);
+    private final RequestSessionPool pool; //直接创建时为null，不回收
+    private final Recycler.Handle<RequestSession> handle; //不是从Recycler获取时为null
 
-    private final HttpRequest nettyRequest;
+    private HttpRequest nettyRequest;
+    private int sequence; //在所属连接上的请求序号，用于pipelining时按序写出响应
     private final NettyHttpServletRequest servletRequest;
     private final NettyHttpServletResponse servletResponse;
 
@@ -35,9 +54,29 @@ public class RequestSession {
         return servletResponse;
     }
 
-    public RequestSession(ChannelHandlerContext ctx, HttpRequest request, NettyContext servletContext) {
-        this.nettyRequest = request;
+    public int getSequence() {
+        return sequence;
+    }
+
+    public RequestSession(ChannelHandlerContext ctx, HttpRequest request, NettyContext servletContext, ResponseSequencer sequencer) {
+        this(null, null);
+        init(ctx, request, servletContext, sequencer);
+    }
+
+    RequestSession(RequestSessionPool pool, Recycler.Handle<RequestSession> handle) {
+        this.pool = pool;
+        this.handle = handle;
         this.inputStream = new HttpRequestInputStream();
+        this.servletRequest = new NettyHttpServletRequest(inputStream);
+        this.servletResponse = new NettyHttpServletResponse(servletRequest);
+    }
+
+    /**
+     * 开始处理一个请求，新建或从对象池中取出后调用
+     */
+    void init(ChannelHandlerContext ctx, HttpRequest request, NettyContext servletContext, ResponseSequencer sequencer) {
+        this.nettyRequest = request;
+        this.sequence = sequencer.nextSequence();
 
         if (request.method().equals(HttpMethod.POST)) {
             String contentType = String.valueOf(request.headers().get(HttpHeaderNames.CONTENT_TYPE));
@@ -48,24 +87,99 @@ public class RequestSession {
                 httpPostRequestDecoder = new HttpPostRequestDecoder(request);
             }
         }
-        this.servletRequest = new NettyHttpServletRequest(ctx, servletContext, request, httpPostRequestDecoder, inputStream);
-        this.servletResponse = new NettyHttpServletResponse(ctx, servletContext, servletRequest);
+        servletRequest.init(ctx, servletContext, request, httpPostRequestDecoder);
+        servletResponse.init(ctx, servletContext, sequencer, sequence);
+    }
+
+
+    /**
+     * @return 是否可以在请求体到达前分发：有请求体，且不是需要完整解析的表单/multipart请求
+     */
+    boolean isBodyStreamable() {
+        return httpPostRequestDecoder == null
+                && (HttpUtil.isTransferEncodingChunked(nettyRequest) || HttpUtil.getContentLength(nettyRequest, 0L) > 0);
     }
 
+    /**
+     * 提前分发前调用，请求体边接收边读取，未读取的数据超过高水位时暂停读取连接
+     */
+    void streamBody(AutoReadGate readGate, int highWaterMark, int lowWaterMark) {
+        inputStream.enableFlowControl(readGate, highWaterMark, lowWaterMark);
+    }
 
+    /**
+     * 由RequestDispatcherHandler设置，之后异步Servlet的任务也提交到这个Executor执行
+     */
+    void setExecutor(Executor executor) {
+        servletRequest.setDispatchExecutor(executor);
+        inputStream.setExecutor(executor);
+    }
+
+    /**
+     * 处理方结束请求：写回Session的修改，关闭输入输出流(结束响应)，释放请求占用的资源
+     * 最后一次响应写出完成后释放处理方的引用
+     */
     public void destroy() {
         if (!destroyed.compareAndSet(false, true)) {
             return;
         }
 
+        servletRequest.flushSession();
         closeQuietly(inputStream);
-        closeQuietly(servletResponse.getOutputStream());
+        closeQuietly(servletResponse::closeOutput); //使用过getWriter()时不能再调用getOutputStream()
 
         if (httpPostRequestDecoder != null) {
             httpPostRequestDecoder.destroy();
             httpPostRequestDecoder = null;
         }
         ReferenceCountUtil.release(nettyRequest);
+
+        ChannelFuture written = servletResponse.getCloseFuture();
+        if (written != null && isRecyclable()) {
+            //响应头对象和输出流在写出完成前仍被pipeline和写出结果的回调引用
+            written.addListener(future -> release());
+        }
+    }
+
+    /**
+     * 已提前分发的请求在请求体接收完之前连接断开时调用，只关闭输入流，唤醒等待请求体的Servlet线程，
+     * 其余资源由处理方destroy()时释放
+     */
+    void abortBody() {
+        closeQuietly(inputStream);
+    }
+
+    private boolean isRecyclable() {
+        return !servletRequest.isAsyncStarted() && !inputStream.hasReadListener() && !servletResponse.hasWriteListener();
+    }
+
+    /**
+     * 释放接收方或处理方的引用，都释放后回收
+     */
+    void release() {
+        if (owners.decrementAndGet() == 0 && pool != null) {
+            recycle();
+        }
+    }
+
+    /**
+     * 重置请求、响应对象及输入输出流到新建时的状态，放回对象池
+     * 回收调试模式下不放回，而是标记为已回收，之后对这些对象的使用会抛出IllegalStateException
+     */
+    private void recycle() {
+        servletResponse.recycle();
+        servletRequest.recycle();
+        nettyRequest = null;
+        sequence = 0;
+        destroyed.set(false);
+        owners.set(OWNERS);
+        if (pool.isDebug()) {
+            Throwable recycledAt = new Throwable("Request recycled by " + Thread.currentThread().getName());
+            servletRequest.markRecycled(recycledAt);
+            servletResponse.markRecycled(recycledAt);
+        } else if (handle != null) {
+            handle.recycle(this);
+        }
     }
 
     public static void closeQuietly(final Closeable closeable) {
@@ -85,6 +199,10 @@ public class RequestSession {
 
         if (httpPostRequestDecoder != null) {
             httpPostRequestDecoder.offer(msg);
+            if (msg instanceof LastHttpContent) {
+                //请求体交给了解码器，输入流直接结束，避免读取时一直等待
+                inputStream.offer(LastHttpContent.EMPTY_LAST_CONTENT);
+            }
         } else {
             inputStream.offer(msg);
         }
@@ -1,5 +1,6 @@
 package io.gitlab.leibnizhu.sbnetty.core;
 
+import io.gitlab.leibnizhu.sbnetty.response.ResponseSequencer;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
@@ -8,31 +9,58 @@ import io.netty.util.ReferenceCountUtil;
 /**
  * 不使用HttpObjectAggregator，因为在处理文件上传时，HttpObjectAggregator将文件内容存储在内存中，
  * 在处理大文件上传时，会有内存溢出风险
+ * 每个连接一个实例，pipelining时每个请求从ResponseSequencer获取序号
+ * 开启提前分发(earlyDispatch)时，带请求体的非表单请求在收到请求头后立即分发，请求体边接收边由Servlet读取
+ * 作为接收方持有RequestSession的引用，直到收完请求体或连接断开
  */
 public class RequestSessionAggregator extends SimpleChannelInboundHandler<HttpObject> {
 
     private RequestSession requestSession;
+    private boolean dispatched; //当前requestSession是否已经提前分发
     private final NettyContext servletContext;
+    private final RequestSessionPool sessionPool;
+    private final ResponseSequencer sequencer;
+    private final AutoReadGate readGate;
+    private final boolean earlyDispatch;
+    private final int bodyHighWaterMark;
+    private final int bodyLowWaterMark;
 
-    public RequestSessionAggregator(NettyContext servletContext) {
+    RequestSessionAggregator(NettyContext servletContext, RequestSessionPool sessionPool, ResponseSequencer sequencer, AutoReadGate readGate,
+                             boolean earlyDispatch, int bodyHighWaterMark, int bodyLowWaterMark) {
         this.servletContext = servletContext;
+        this.sessionPool = sessionPool;
+        this.sequencer = sequencer;
+        this.readGate = readGate;
+        this.earlyDispatch = earlyDispatch;
+        this.bodyHighWaterMark = bodyHighWaterMark;
+        this.bodyLowWaterMark = bodyLowWaterMark;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
         if (msg instanceof HttpRequest) {
             HttpRequest request = ReferenceCountUtil.retain((HttpRequest) msg);
-            requestSession = new RequestSession(ctx, request, servletContext);
-            if (HttpUtil.is100ContinueExpected(request)) { //请求头包含Expect: 100-continue
-                ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+            requestSession = sessionPool.acquire(ctx, request, servletContext, sequencer);
+            if (HttpUtil.is100ContinueExpected(request)) { //请求头包含Expect: 100-continue，前面的响应写完后才能写出
+                sequencer.write(requestSession.getSequence(),
+                        new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE), false, true);
             }
-        } else if (msg instanceof HttpContent) {
+            dispatched = earlyDispatch && requestSession.isBodyStreamable();
+            if (dispatched) {
+                requestSession.streamBody(readGate, bodyHighWaterMark, bodyLowWaterMark);
+                ctx.fireChannelRead(requestSession);
+            }
+        }
+        if (msg instanceof HttpContent) { //FullHttpRequest(如HTTP/2没有请求体的流、没有成功的Upgrade请求)同时是请求头和请求体
             requestSession.offer((HttpContent) msg);
             if (msg instanceof LastHttpContent) {
-                ctx.fireChannelRead(requestSession);
+                if (!dispatched) {
+                    ctx.fireChannelRead(requestSession);
+                }
+                requestSession.release();
                 requestSession = null;
             }
-        } else {
+        } else if (!(msg instanceof HttpRequest)) {
             ctx.close();
         }
     }
@@ -40,7 +68,13 @@ public class RequestSessionAggregator extends SimpleChannelInboundHandler<HttpOb
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
         if (requestSession != null) {
-            requestSession.destroy();
+            if (dispatched) {
+                requestSession.abortBody(); //唤醒等待请求体的Servlet线程，由处理方销毁
+            } else {
+                requestSession.destroy();
+            }
+            requestSession.release();
+            requestSession = null;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,59 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.gitlab.leibnizhu.sbnetty.response.ResponseSequencer;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.Recycler;
+
+/**
+ * 创建RequestSession，启用对象回收时从Netty的Recycler中获取
+ * Recycler按线程缓存，RequestSession在IO线程中创建，在其他线程(如Servlet线程)回收的对象会交还给创建它的IO线程
+ * 一个RequestSession连同Servlet请求/响应对象、输入输出流及其中的Map、List、锁整组重用，回收协议见RequestSession
+ * 回收调试模式下对象只重置不重用，并记录回收时的调用栈，请求结束后仍在使用请求/响应对象的代码会得到IllegalStateException，
+ * 可以在开启对象回收前用来检查应用是否在请求结束后还持有这些对象
+ *
+ * @author Leibniz
+ */
+final class RequestSessionPool {
+    private static final int CHUNK_SIZE = 32;
+
+    private final Recycler<RequestSession> recycler; //未启用对象回收时为null
+    private final boolean debug;
+
+    RequestSessionPool(NettyServerProperties.Recycler config) {
+        this.debug = config.isDebug();
+        //ratio=1：每个新建的对象都可以回收，默认每8个才回收1个，池子填满得太慢
+        this.recycler = config.isEnabled() && !debug ? new Recycler<RequestSession>(config.getMaxCapacityPerThread(), 1, CHUNK_SIZE) {
+            @Override
+            protected RequestSession newObject(Handle<RequestSession> handle) {
+                return new RequestSession(RequestSessionPool.this, handle);
+            }
+        } : null;
+    }
+
+    /**
+     * @return 开始处理请求的RequestSession，回收需要接收方和处理方都释放引用，见RequestSession
+     */
+    RequestSession acquire(ChannelHandlerContext ctx, HttpRequest request, NettyContext servletContext, ResponseSequencer sequencer) {
+        RequestSession session;
+        if (recycler != null) {
+            session = recycler.get();
+        } else {
+            session = new RequestSession(debug ? this : null, null);
+        }
+        session.init(ctx, request, servletContext, sequencer);
+        return session;
+    }
+
+    boolean isDebug() {
+        return debug;
+    }
+
+    /**
+     * @return 是否启用了对象回收或回收调试模式
+     */
+    boolean isEnabled() {
+        return recycler != null || debug;
+    }
+}
@@ -0,0 +1,129 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.gitlab.leibnizhu.sbnetty.utils.MimeTypeUtil;
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.CompressionOptions;
+import io.netty.handler.codec.compression.StandardCompressionOptions;
+import io.netty.handler.codec.compression.Zstd;
+import io.netty.handler.codec.http.*;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 响应压缩，在HttpContentCompressor的基础上增加最小长度和MIME类型白名单
+ * 输出流关闭时整个响应体都在缓冲区中的响应带有Content-Length，小于最小长度的不压缩；
+ * 分块(chunked)的响应说明内容已经超过了输出缓冲区，只按MIME类型判断
+ * 部分内容(206)的响应和已经有Content-Encoding的响应(如预压缩的静态资源)不压缩
+ *
+ * @author Leibniz
+ */
+public class ResponseCompressor extends HttpContentCompressor {
+    private static final Log log = LogFactory.getLog(ResponseCompressor.class);
+    private static final int WINDOW_BITS = 15;
+    private static final int MEM_LEVEL = 8;
+
+    private final Settings settings;
+
+    public ResponseCompressor(Settings settings) {
+        super(settings.minResponseSize, settings.options);
+        this.settings = settings;
+    }
+
+    @Override
+    protected Result beginEncode(HttpResponse httpResponse, String acceptEncoding) throws Exception {
+        HttpHeaders headers = httpResponse.headers();
+        if (httpResponse.status().code() == HttpResponseStatus.PARTIAL_CONTENT.code() || headers.contains(HttpHeaderNames.CONTENT_RANGE)) {
+            return null; //压缩后Content-Range就不对了
+        }
+        if (!isCompressible(headers.get(HttpHeaderNames.CONTENT_TYPE))) {
+            return null;
+        }
+        long contentLength = HttpUtil.getContentLength(httpResponse, -1L);
+        if (contentLength >= 0 && contentLength < settings.minResponseSize) {
+            return null;
+        }
+        return super.beginEncode(httpResponse, acceptEncoding);
+    }
+
+    /**
+     * @param contentType Content-Type响应头，可以带参数
+     * @return 该类型的响应是否可能被压缩，不会被压缩的响应体可以绕过压缩直接写出(如FileRegion)
+     */
+    public boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String mimeType = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ENGLISH);
+        if (settings.mimeTypes.contains(mimeType)) {
+            return true;
+        }
+        int slash = mimeType.indexOf('/');
+        return slash > 0 && settings.mimeTypes.contains(mimeType.substring(0, slash + 1) + "*");
+    }
+
+    /**
+     * 解析后的压缩配置，所有连接共享
+     */
+    public static final class Settings {
+        private final int minResponseSize;
+        private final Set<String> mimeTypes; //小写，不含参数，可以是"text/*"
+        private final CompressionOptions[] options;
+
+        public Settings(NettyServerProperties.Compression config) {
+            this.minResponseSize = Math.max(0, config.getMinResponseSize());
+            this.mimeTypes = resolveMimeTypes(config.getMimeTypes());
+            this.options = compressionOptions(config.getLevel());
+            log.info("Response compression enabled, level: " + config.getLevel() + ", min response size: " + minResponseSize
+                    + ", brotli: " + Brotli.isAvailable() + ", zstd: " + Zstd.isAvailable() + ", MIME types: " + mimeTypes);
+        }
+
+        /**
+         * 白名单中不含"/"的项作为扩展名，通过MimeTypeUtil解析为MIME类型
+         */
+        private static Set<String> resolveMimeTypes(List<String> configured) {
+            Set<String> mimeTypes = new HashSet<>();
+            for (String item : configured) {
+                String trimmed = item.trim().toLowerCase(Locale.ENGLISH);
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                if (trimmed.indexOf('/') > 0) {
+                    mimeTypes.add(trimmed);
+                } else {
+                    String extension = trimmed.startsWith(".") ? trimmed.substring(1) : trimmed;
+                    String mimeType = MimeTypeUtil.getMimeTypeByFileName("file." + extension);
+                    if (mimeType == null) {
+                        log.warn("Unknown file extension in compression MIME types: " + item);
+                    } else {
+                        mimeTypes.add(mimeType.toLowerCase(Locale.ENGLISH));
+                    }
+                }
+            }
+            return mimeTypes;
+        }
+
+        /**
+         * gzip和deflate使用配置的压缩级别，brotli和zstd在对应的native库可用时使用Netty的默认参数
+         */
+        private static CompressionOptions[] compressionOptions(int level) {
+            List<CompressionOptions> options = new ArrayList<>();
+            if (Brotli.isAvailable()) {
+                options.add(StandardCompressionOptions.brotli());
+            }
+            if (Zstd.isAvailable()) {
+                options.add(StandardCompressionOptions.zstd());
+            }
+            options.add(StandardCompressionOptions.gzip(level, WINDOW_BITS, MEM_LEVEL));
+            options.add(StandardCompressionOptions.deflate(level, WINDOW_BITS, MEM_LEVEL));
+            return options.toArray(new CompressionOptions[0]);
+        }
+    }
+}
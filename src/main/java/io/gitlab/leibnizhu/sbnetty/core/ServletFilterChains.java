@@ -0,0 +1,191 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * 一个Servlet预先编译好的过滤器链，每个DispatcherType一份
+ * 映射到该Servlet的Filter在第一次使用时就确定下来，之后只读
+ * 能匹配的Filter组合(URL pattern类)不多，每种组合对应一个不可变的Filter数组，每次请求只需要new一个游标NettyFilterChain
+ */
+final class ServletFilterChains {
+    private static final Filter[] NO_FILTERS = new Filter[0];
+
+    private final String contextPath;
+    private final Servlet servlet;
+    private final CompiledChain[] chains = new CompiledChain[DispatcherType.values().length];
+
+    ServletFilterChains(String contextPath, String servletName, Servlet servlet, List<FilterMapping> filterMappings) throws ServletException {
+        this.contextPath = contextPath;
+        this.servlet = checkNotNull(servlet);
+        for (DispatcherType type : DispatcherType.values()) {
+            chains[type.ordinal()] = new CompiledChain(servletName, type, filterMappings);
+        }
+    }
+
+    Servlet getServlet() {
+        return servlet;
+    }
+
+    /**
+     * @param type 分发类型
+     * @param path 请求路径，可能带contextPath和查询字符串
+     * @return 本次请求的过滤器链游标
+     */
+    NettyFilterChain newChain(DispatcherType type, String path) {
+        return new NettyFilterChain(servlet, filters(type, path));
+    }
+
+    Filter[] filters(DispatcherType type, String path) {
+        CompiledChain chain = chains[type.ordinal()];
+        if (chain.fixed != null) {
+            return chain.fixed;
+        }
+        //只匹配去掉contextPath和查询字符串的部分
+        int start = hasContextPath(path) ? contextPath.length() : 0;
+        int end = path.indexOf('?');
+        if (end < 0) {
+            end = path.length();
+        }
+        if (start >= end) {
+            path = "/";
+            start = 0;
+            end = 1;
+        }
+        return chain.filters(path, start, end);
+    }
+
+    /**
+     * @return path在contextPath之内，即以contextPath开头且之后是"/"、查询字符串或结束，"/application"不在"/app"之内
+     */
+    private boolean hasContextPath(String path) {
+        if (!path.startsWith(contextPath)) {
+            return false;
+        }
+        if (path.length() == contextPath.length()) {
+            return true;
+        }
+        char next = path.charAt(contextPath.length());
+        return next == '/' || next == '?';
+    }
+
+    /**
+     * 一个(Servlet, DispatcherType)的过滤器链
+     * Filter顺序同Servlet规范：先按注册顺序排URL pattern匹配的，再按注册顺序排servletName匹配的，同一个Filter只出现一次
+     */
+    private static final class CompiledChain {
+        private final Filter[] filters; //所有可能匹配的Filter，按最终顺序排列
+        private final boolean[] unconditional; //是否不需要看请求路径
+        private final FilterMapping[][] conditions; //每个Filter需要看请求路径的映射，任一匹配即可
+        private final Filter[] fixed; //与请求路径无关时唯一的过滤器链，否则为null
+        private volatile LongObjectMap<Filter[]> chainsByMatch = new LongObjectHashMap<>(); //匹配位图->过滤器链，copy-on-write
+
+        CompiledChain(String servletName, DispatcherType type, List<FilterMapping> filterMappings) throws ServletException {
+            List<FilterMapping> candidates = new ArrayList<>();
+            for (FilterMapping mapping : filterMappings) {
+                if (mapping.appliesTo(type) && !mapping.isServletNameMapping()) {
+                    candidates.add(mapping);
+                }
+            }
+            for (FilterMapping mapping : filterMappings) {
+                if (mapping.appliesTo(type) && mapping.matchesAll(servletName) && mapping.isServletNameMapping()) {
+                    candidates.add(mapping);
+                }
+            }
+            //同一个Filter的多条映射合并
+            List<Filter> filterList = new ArrayList<>();
+            List<Boolean> unconditionalList = new ArrayList<>();
+            List<List<FilterMapping>> conditionList = new ArrayList<>();
+            for (FilterMapping mapping : candidates) {
+                Filter filter = mapping.getRegistration().getFilter();
+                int index = filterList.indexOf(filter);
+                if (index < 0) {
+                    index = filterList.size();
+                    filterList.add(filter);
+                    unconditionalList.add(false);
+                    conditionList.add(new ArrayList<>());
+                }
+                if (mapping.matchesAll(servletName)) {
+                    unconditionalList.set(index, true);
+                } else {
+                    conditionList.get(index).add(mapping);
+                }
+            }
+            int size = filterList.size();
+            this.filters = filterList.toArray(NO_FILTERS);
+            this.unconditional = new boolean[size];
+            this.conditions = new FilterMapping[size][];
+            boolean pathIndependent = true;
+            for (int i = 0; i < size; i++) {
+                unconditional[i] = unconditionalList.get(i);
+                conditions[i] = unconditional[i] ? null : conditionList.get(i).toArray(new FilterMapping[0]);
+                pathIndependent &= unconditional[i];
+            }
+            this.fixed = pathIndependent ? filters : null;
+        }
+
+        Filter[] filters(String path, int start, int end) {
+            if (filters.length > Long.SIZE) {
+                //Filter太多无法用位图表示，直接逐个匹配
+                return select(path, start, end);
+            }
+            long matched = 0;
+            for (int i = 0; i < filters.length; i++) {
+                if (unconditional[i] || matchesAny(conditions[i], path, start, end)) {
+                    matched |= 1L << i;
+                }
+            }
+            Filter[] chain = chainsByMatch.get(matched);
+            if (chain == null) {
+                chain = addChain(matched);
+            }
+            return chain;
+        }
+
+        private synchronized Filter[] addChain(long matched) {
+            Filter[] chain = chainsByMatch.get(matched);
+            if (chain == null) {
+                List<Filter> selected = new ArrayList<>(Long.bitCount(matched));
+                for (int i = 0; i < filters.length; i++) {
+                    if ((matched & (1L << i)) != 0) {
+                        selected.add(filters[i]);
+                    }
+                }
+                chain = selected.toArray(NO_FILTERS);
+                LongObjectMap<Filter[]> copy = new LongObjectHashMap<>(chainsByMatch.size() + 1);
+                copy.putAll(chainsByMatch);
+                copy.put(matched, chain);
+                chainsByMatch = copy;
+            }
+            return chain;
+        }
+
+        private Filter[] select(String path, int start, int end) {
+            List<Filter> selected = new ArrayList<>(filters.length);
+            for (int i = 0; i < filters.length; i++) {
+                if (unconditional[i] || matchesAny(conditions[i], path, start, end)) {
+                    selected.add(filters[i]);
+                }
+            }
+            return selected.toArray(NO_FILTERS);
+        }
+
+        private static boolean matchesAny(FilterMapping[] mappings, String path, int start, int end) {
+            for (FilterMapping mapping : mappings) {
+                if (mapping.matches(path, start, end)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.gitlab.leibnizhu.sbnetty.response.ResponseSequencer;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+/**
+ * HTTP编解码之后的处理链：把HttpObject聚合为RequestSession，按请求顺序写出响应，分发到Servlet
+ * HTTP/1.1的连接和HTTP/2的每个流(子Channel)都使用这条处理链，只是前面的编解码器不同
+ *
+ * @author Leibniz
+ */
+final class ServletHandlers {
+    private final NettyContext servletContext;
+    private final NettyServerProperties.Http http;
+    private final ResponseCompressor.Settings compression; //未启用压缩时为null
+    private final RequestDispatcherHandler dispatcherHandler;
+    private final DispatchExecutor servletExecutor;
+    private final boolean streamRequestBody;
+    private final RequestSessionPool sessionPool;
+
+    ServletHandlers(NettyContext servletContext, NettyServerProperties.Http http, ResponseCompressor.Settings compression,
+                    RequestDispatcherHandler dispatcherHandler, DispatchExecutor servletExecutor, boolean streamRequestBody,
+                    RequestSessionPool sessionPool) {
+        this.servletContext = servletContext;
+        this.http = http;
+        this.compression = compression;
+        this.dispatcherHandler = dispatcherHandler;
+        this.servletExecutor = servletExecutor;
+        this.streamRequestBody = streamRequestBody;
+        this.sessionPool = sessionPool;
+    }
+
+    /**
+     * 在pipeline末尾(HTTP编解码器之后)添加处理链
+     */
+    void addTo(Channel ch) {
+        ChannelPipeline p = ch.pipeline();
+        if (compression != null) {
+            p.addLast("compressor", new ResponseCompressor(compression)); //在chunked之后处理出站数据，ChunkedInput产生的分块也会被压缩
+        }
+        p.addLast("chunked", new ChunkedWriteHandler());
+        AutoReadGate readGate = new AutoReadGate(ch);
+        NettyContainerMetrics metrics = servletContext.getMetrics();
+        ResponseSequencer sequencer = new ResponseSequencer(http.getMaxInFlightRequests(), http.getWriteTimeout(), readGate, metrics);
+        p.addLast("aggregator", new RequestSessionAggregator(servletContext, sessionPool, sequencer, readGate, streamRequestBody,
+                http.getBodyHighWaterMark(), http.getBodyLowWaterMark())); //聚合http请求，等待http请求完全解析完成后，在交给工作线程
+        p.addLast("sequencer", sequencer); //pipelining时限制同时处理的请求数，并按请求顺序写出响应
+        p.addLast(servletExecutor.handlerGroup(), "filterChain", dispatcherHandler); //获取请求分发器，让对应的Servlet处理请求，同时处理404情况
+    }
+}
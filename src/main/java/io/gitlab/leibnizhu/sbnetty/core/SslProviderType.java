@@ -0,0 +1,21 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+/**
+ * TLS引擎实现，通过 server.netty.ssl.provider 配置
+ *
+ * @author Leibniz
+ */
+public enum SslProviderType {
+    /**
+     * 优先使用OpenSSL，不可用时使用JDK
+     */
+    AUTO,
+    /**
+     * netty-tcnative提供的OpenSSL/BoringSSL(需要netty-tcnative-boringssl-static依赖)，不可用时使用JDK
+     */
+    OPENSSL,
+    /**
+     * JDK自带的SSLEngine，所有平台都可用
+     */
+    JDK
+}
@@ -0,0 +1,319 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.*;
+import io.netty.internal.tcnative.SSL;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.web.server.Ssl;
+import org.springframework.boot.web.server.SslStoreProvider;
+import org.springframework.boot.web.server.WebServerException;
+import org.springframework.util.ResourceUtils;
+import org.springframework.util.StringUtils;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TLS终止，按Spring Boot的server.ssl.*(证书、协议、加密套件、客户端认证)和server.netty.ssl.*创建SslContext，为每个连接创建SslHandler
+ * 优先使用netty-tcnative(OpenSSL/BoringSSL)，握手和加解密的CPU开销比JDK SSL低很多，不可用时回退到JDK
+ * 会话恢复：服务端会话缓存 + 会话票据，恢复会话的握手省去了证书签名和密钥交换
+ * Netty默认关闭OpenSSL的会话票据，启用时由这里生成票据密钥，每个会话有效期轮换一次，上一个密钥保留用于解密，TLSv1.3的会话恢复依赖票据
+ * 启用HTTP/2时通过ALPN协商h2或http/1.1
+ *
+ * @author Leibniz
+ */
+final class SslTerminator implements Closeable {
+    private static final Log log = LogFactory.getLog(SslTerminator.class);
+    private static final long OCSP_CHECK_INTERVAL = TimeUnit.MINUTES.toNanos(1); //检查OCSP响应文件是否更新的间隔
+    private static final String DEFAULT_STORE_TYPE = "JKS";
+    private static final int TICKET_KEY_PART_SIZE = 16; //票据密钥的name、HMAC密钥、AES密钥各16字节
+
+    private final SslContext sslContext;
+    private final SslProvider provider;
+    private final NettyServerProperties.Ssl config;
+    private final Path ocspResponseFile; //未启用OCSP stapling时为null
+    private volatile byte[] ocspResponse;
+    private volatile long ocspLastModified;
+    private volatile long nextOcspCheck;
+    private final SecureRandom random = new SecureRandom();
+    private OpenSslSessionTicketKey ticketKey; //当前用于加密票据的密钥，只在轮换任务中访问
+    private ScheduledFuture<?> ticketKeyRotation;
+
+    private SslTerminator(SslContext sslContext, SslProvider provider, NettyServerProperties.Ssl config, Path ocspResponseFile) {
+        this.sslContext = sslContext;
+        this.provider = provider;
+        this.config = config;
+        this.ocspResponseFile = ocspResponseFile;
+        if (ocspResponseFile != null) {
+            reloadOcspResponse();
+            nextOcspCheck = System.nanoTime() + OCSP_CHECK_INTERVAL;
+        }
+    }
+
+    /**
+     * @param storeProvider 非null时从中获取KeyStore/TrustStore(如PEM证书)，否则按ssl中的key-store/trust-store加载
+     * @param http2         是否通过ALPN协商h2
+     */
+    static SslTerminator create(Ssl ssl, SslStoreProvider storeProvider, NettyServerProperties.Ssl config, boolean http2) {
+        SslProvider provider = resolveProvider(config.getProvider());
+        try {
+            SslContextBuilder builder = SslContextBuilder.forServer(keyManagerFactory(ssl, storeProvider))
+                    .sslProvider(provider)
+                    .sessionCacheSize(config.getSessionCacheSize())
+                    .sessionTimeout(config.getSessionTimeout());
+            TrustManagerFactory trustManagerFactory = trustManagerFactory(ssl, storeProvider);
+            if (trustManagerFactory != null) {
+                builder.trustManager(trustManagerFactory);
+            }
+            builder.clientAuth(clientAuth(ssl.getClientAuth()));
+            if (ssl.getEnabledProtocols() != null) {
+                builder.protocols(ssl.getEnabledProtocols());
+            }
+            if (ssl.getCiphers() != null) {
+                builder.ciphers(Arrays.asList(ssl.getCiphers()));
+            } else if (http2) {
+                builder.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE); //RFC 7540要求的加密套件
+            }
+            if (http2) {
+                builder.applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1));
+            }
+            Path ocspResponseFile = null;
+            if (config.isOcspStapling()) {
+                if (provider == SslProvider.JDK || !OpenSsl.isOcspSupported()) {
+                    log.warn("OCSP stapling requires OpenSSL, it is disabled");
+                } else if (!StringUtils.hasText(config.getOcspResponseFile())) {
+                    log.warn("server.netty.ssl.ocsp-response-file is not set, OCSP stapling is disabled");
+                } else {
+                    builder.enableOcsp(true);
+                    ocspResponseFile = Paths.get(config.getOcspResponseFile());
+                }
+            }
+            if (!config.isSessionTickets() && provider == SslProvider.JDK) {
+                log.warn("Session tickets of JDK SSL are controlled by -Djdk.tls.server.enableSessionTicketExtension");
+            }
+            SslTerminator terminator = new SslTerminator(builder.build(), provider, config, ocspResponseFile);
+            if (config.isSessionTickets()) {
+                terminator.rotateTicketKey();
+            }
+            return terminator;
+        } catch (Exception e) {
+            throw new WebServerException("Could not load SSL configuration", e);
+        }
+    }
+
+    /**
+     * 按配置选择TLS引擎，OpenSSL不可用时回退到JDK
+     * OpenSSL使用引用计数的版本，SslHandler移除时立即释放native的SSL对象，不依赖finalizer
+     */
+    private static SslProvider resolveProvider(SslProviderType type) {
+        switch (type) {
+            case JDK:
+                return SslProvider.JDK;
+            case OPENSSL:
+                if (!OpenSsl.isAvailable()) {
+                    log.warn("OpenSSL is not available, falling back to JDK SSL", OpenSsl.unavailabilityCause());
+                    return SslProvider.JDK;
+                }
+                return SslProvider.OPENSSL_REFCNT;
+            default:
+                return OpenSsl.isAvailable() ? SslProvider.OPENSSL_REFCNT : SslProvider.JDK;
+        }
+    }
+
+    private static KeyManagerFactory keyManagerFactory(Ssl ssl, SslStoreProvider storeProvider) throws Exception {
+        KeyStore keyStore = storeProvider != null ? storeProvider.getKeyStore()
+                : loadStore(ssl.getKeyStore(), ssl.getKeyStoreType(), ssl.getKeyStoreProvider(), ssl.getKeyStorePassword());
+        if (keyStore == null) {
+            throw new IllegalStateException("server.ssl.key-store or server.ssl.certificate must be configured");
+        }
+        char[] keyPassword = keyPassword(ssl, storeProvider);
+        if (ssl.getKeyAlias() != null) {
+            keyStore = singleEntry(keyStore, ssl.getKeyAlias(), keyPassword);
+        }
+        KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore, keyPassword);
+        return factory;
+    }
+
+    private static TrustManagerFactory trustManagerFactory(Ssl ssl, SslStoreProvider storeProvider) throws Exception {
+        KeyStore trustStore = storeProvider != null ? storeProvider.getTrustStore()
+                : loadStore(ssl.getTrustStore(), ssl.getTrustStoreType(), ssl.getTrustStoreProvider(), ssl.getTrustStorePassword());
+        if (trustStore == null) {
+            return null;
+        }
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(trustStore);
+        return factory;
+    }
+
+    private static char[] keyPassword(Ssl ssl, SslStoreProvider storeProvider) {
+        String password = storeProvider != null ? storeProvider.getKeyPassword() : null;
+        if (password == null) {
+            password = ssl.getKeyPassword() != null ? ssl.getKeyPassword() : ssl.getKeyStorePassword();
+        }
+        return password != null ? password.toCharArray() : null;
+    }
+
+    private static KeyStore loadStore(String location, String type, String provider, String password) throws Exception {
+        if (!StringUtils.hasText(location)) {
+            return null;
+        }
+        type = type != null ? type : DEFAULT_STORE_TYPE;
+        KeyStore store = provider != null ? KeyStore.getInstance(type, provider) : KeyStore.getInstance(type);
+        try (InputStream in = ResourceUtils.getURL(location).openStream()) {
+            store.load(in, password != null ? password.toCharArray() : null);
+        }
+        return store;
+    }
+
+    /**
+     * 指定了server.ssl.key-alias时，只把该别名的密钥交给KeyManagerFactory
+     */
+    private static KeyStore singleEntry(KeyStore keyStore, String alias, char[] keyPassword) throws Exception {
+        if (!keyStore.containsAlias(alias)) {
+            throw new IllegalStateException("Key alias '" + alias + "' not found in key store");
+        }
+        KeyStore.ProtectionParameter protection = new KeyStore.PasswordProtection(keyPassword);
+        KeyStore single = KeyStore.getInstance(keyStore.getType());
+        single.load(null, null);
+        single.setEntry(alias, keyStore.getEntry(alias, protection), protection);
+        return single;
+    }
+
+    private static ClientAuth clientAuth(Ssl.ClientAuth clientAuth) {
+        if (clientAuth == Ssl.ClientAuth.NEED) {
+            return ClientAuth.REQUIRE;
+        }
+        return clientAuth == Ssl.ClientAuth.WANT ? ClientAuth.OPTIONAL : ClientAuth.NONE;
+    }
+
+    /**
+     * @return 新连接使用的SslHandler
+     */
+    SslHandler newHandler(ByteBufAllocator alloc) {
+        SslHandler handler = sslContext.newHandler(alloc);
+        handler.setHandshakeTimeoutMillis(config.getHandshakeTimeout());
+        byte[] response = currentOcspResponse();
+        if (response != null && handler.engine() instanceof ReferenceCountedOpenSslEngine) {
+            ((ReferenceCountedOpenSslEngine) handler.engine()).setOcspResponse(response);
+        }
+        return handler;
+    }
+
+    /**
+     * @return 能否判断握手是否恢复了会话，JDK SSL不能
+     */
+    boolean tracksResumption() {
+        return provider != SslProvider.JDK;
+    }
+
+    /**
+     * 在握手完成时调用
+     *
+     * @return 握手是否通过会话缓存或会话票据恢复了会话
+     */
+    boolean isResumed(SslHandler handler) {
+        SSLEngine engine = handler.engine();
+        if (!(engine instanceof ReferenceCountedOpenSslEngine)) {
+            return false;
+        }
+        long ssl = ((ReferenceCountedOpenSslEngine) engine).sslPointer();
+        return ssl != 0 && SSL.isSessionReused(ssl); //连接已关闭、engine已释放时为0
+    }
+
+    /**
+     * 在executor上定时轮换会话票据密钥，JDK SSL的票据由JDK自己管理
+     */
+    void scheduleTicketKeyRotation(EventExecutor executor) {
+        if (ticketKey != null) {
+            long period = Math.max(1, config.getSessionTimeout());
+            ticketKeyRotation = executor.scheduleAtFixedRate(this::rotateTicketKey, period, period, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 生成新的票据密钥用于加密，上一个密钥保留用于解密在它轮换前签发的票据
+     */
+    private void rotateTicketKey() {
+        SSLSessionContext sessionContext = sslContext.sessionContext();
+        if (!(sessionContext instanceof OpenSslSessionContext)) {
+            return;
+        }
+        OpenSslSessionTicketKey previous = ticketKey;
+        ticketKey = new OpenSslSessionTicketKey(randomBytes(), randomBytes(), randomBytes());
+        if (previous == null) {
+            ((OpenSslSessionContext) sessionContext).setTicketKeys(ticketKey);
+        } else {
+            ((OpenSslSessionContext) sessionContext).setTicketKeys(ticketKey, previous);
+        }
+    }
+
+    private byte[] randomBytes() {
+        byte[] bytes = new byte[TICKET_KEY_PART_SIZE];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return 实际使用的TLS引擎描述，用于启动日志
+     */
+    String description() {
+        return provider == SslProvider.JDK ? "JDK" : "OpenSSL (" + OpenSsl.versionString() + ")";
+    }
+
+    /**
+     * @return 当前的OCSP响应，每分钟最多检查一次文件是否更新
+     */
+    private byte[] currentOcspResponse() {
+        if (ocspResponseFile == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (now - nextOcspCheck >= 0) {
+            nextOcspCheck = now + OCSP_CHECK_INTERVAL;
+            reloadOcspResponse();
+        }
+        return ocspResponse;
+    }
+
+    private void reloadOcspResponse() {
+        try {
+            long lastModified = Files.getLastModifiedTime(ocspResponseFile).toMillis();
+            if (lastModified != ocspLastModified) {
+                ocspResponse = Files.readAllBytes(ocspResponseFile);
+                ocspLastModified = lastModified;
+            }
+        } catch (IOException e) {
+            log.warn("Failed to read OCSP response from " + ocspResponseFile, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ticketKeyRotation != null) {
+            ticketKeyRotation.cancel(false);
+        }
+        ReferenceCountUtil.release(sslContext);
+    }
+}
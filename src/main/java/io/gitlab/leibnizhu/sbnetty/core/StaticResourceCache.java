@@ -0,0 +1,305 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.hash.Hashing;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.BrotliEncoder;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ReferenceCounted;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * 静态资源的内存缓存，以请求的相对路径为key
+ * 小文件整个读入池化的直接内存，ETag(内容哈希)、Last-Modified和Content-Type只在读入时计算一次，
+ * 可以预先压缩出gzip和brotli(brotli4j可用时)版本，压缩后没有变小的不保留
+ * 按所有版本的总字节数淘汰(Guava Cache，近似LRU)，被淘汰的条目等正在写出它的请求结束后才释放内存
+ * 文件系统中的目录(包括未打包的classpath目录)通过WatchService监听，文件变化时让同一相对路径的条目失效；
+ * jar包中的资源不会变化，从不失效
+ *
+ * @author Leibniz
+ */
+class StaticResourceCache implements Closeable {
+    private static final Log log = LogFactory.getLog(StaticResourceCache.class);
+    private static final int MIN_COMPRESS_SIZE = 256; //太小的文件压缩没有意义
+    private static final int GZIP_LEVEL = 9; //只压缩一次，用最高压缩级别
+
+    private final Cache<String, CachedResource> cache;
+    private final int maxFileSize;
+    private final boolean precompress;
+    private final AtomicLong invalidations = new AtomicLong(); //每次失效加一，读入期间发生过失效的条目不放入缓存
+    private final WatchService watchService; //没有需要监听的目录时为null
+    private final Map<WatchKey, Path[]> watchedDirs = new ConcurrentHashMap<>(); //WatchKey -> [位置的根目录, 被监听的目录]
+
+    StaticResourceCache(long maxSize, int maxFileSize, boolean precompress, List<Path> watchRoots) {
+        this.maxFileSize = maxFileSize;
+        this.precompress = precompress;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSize)
+                .weigher((String path, CachedResource resource) -> resource.weight())
+                .removalListener((RemovalListener<String, CachedResource>) notification -> notification.getValue().release())
+                .build();
+        this.watchService = watchRoots.isEmpty() ? null : newWatchService(watchRoots);
+        log.info("Static resource cache enabled, max size: " + maxSize + " bytes, max file size: " + maxFileSize
+                + " bytes, precompress: " + precompress + (precompress ? ", brotli available: " + Brotli.isAvailable() : "")
+                + ", watching: " + watchRoots);
+    }
+
+    /**
+     * @return 已缓存的资源，调用者用完后需要release()；未缓存时返回null
+     */
+    CachedResource get(String relativePath) {
+        CachedResource cached = cache.getIfPresent(relativePath);
+        return cached != null && cached.tryRetain() ? cached : null;
+    }
+
+    boolean isCacheable(StaticResourceHandler.StaticResource resource) {
+        return resource.length >= 0 && resource.length <= maxFileSize;
+    }
+
+    /**
+     * 读入资源并放入缓存，读入期间该路径可能变化时只用于本次响应
+     *
+     * @return 调用者用完后需要release()
+     */
+    CachedResource load(String relativePath, StaticResourceHandler.StaticResource resource, String contentType) throws IOException {
+        long stamp = invalidations.get();
+        CachedResource loaded = read(resource, contentType);
+        if (stamp == invalidations.get()) {
+            loaded.retain(); //缓存持有一个引用
+            if (cache.asMap().putIfAbsent(relativePath, loaded) != null) {
+                loaded.release(); //其他请求已经放入
+            } else if (stamp != invalidations.get()) {
+                cache.asMap().remove(relativePath, loaded);
+            }
+        }
+        return loaded;
+    }
+
+    private CachedResource read(StaticResourceHandler.StaticResource resource, String contentType) throws IOException {
+        int length = (int) resource.length;
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer(length, length);
+        try {
+            if (resource.file != null) {
+                try (FileChannel channel = FileChannel.open(resource.file.toPath(), StandardOpenOption.READ)) {
+                    while (content.isWritable() && content.writeBytes(channel, content.writerIndex(), content.writableBytes()) > 0) {
+                        //文件在读入期间变短时提前结束
+                    }
+                }
+            } else {
+                try (InputStream in = resource.connection.getInputStream()) {
+                    while (content.isWritable() && content.writeBytes(in, content.writableBytes()) > 0) {
+                        //读满为止
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            content.release();
+            throw e;
+        }
+        String hash = Long.toHexString(Hashing.murmur3_128().hashBytes(content.nioBuffer()).asLong());
+        ByteBuf gzip = null;
+        ByteBuf brotli = null;
+        if (precompress && content.readableBytes() >= MIN_COMPRESS_SIZE && StaticResourceHandler.isCompressible(contentType)) {
+            gzip = compress(ZlibCodecFactory.newZlibEncoder(ZlibWrapper.GZIP, GZIP_LEVEL), content);
+            if (Brotli.isAvailable()) {
+                brotli = compress(new BrotliEncoder(), content);
+            }
+        }
+        return new CachedResource(contentType, resource.lastModified, "\"" + hash + "\"", content, gzip, brotli);
+    }
+
+    /**
+     * 用Netty的压缩编码器压缩一次完整的内容
+     *
+     * @return 压缩后的内容，没有变小时返回null
+     */
+    private static ByteBuf compress(ChannelHandler encoder, ByteBuf content) {
+        EmbeddedChannel channel = new EmbeddedChannel(encoder);
+        channel.writeOutbound(content.retainedDuplicate());
+        channel.finish(); //写出压缩流的结尾
+        ByteBuf compressed = PooledByteBufAllocator.DEFAULT.directBuffer();
+        for (ByteBuf part; (part = channel.readOutbound()) != null; ) {
+            compressed.writeBytes(part);
+            part.release();
+        }
+        if (compressed.readableBytes() >= content.readableBytes()) {
+            compressed.release();
+            return null;
+        }
+        compressed.capacity(compressed.readableBytes());
+        return compressed;
+    }
+
+    /*
+     * 以下是文件系统变化的监听
+     */
+
+    private WatchService newWatchService(List<Path> roots) {
+        WatchService service;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            log.warn("Could not watch static resource directories, cached files will not be refreshed", e);
+            return null;
+        }
+        for (Path root : roots) {
+            register(service, root, root);
+        }
+        Thread watcher = new Thread(() -> watch(service), "static-resource-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        return service;
+    }
+
+    /**
+     * 监听目录及其所有子目录(WatchService不会递归监听)
+     */
+    private void register(WatchService service, Path root, Path dir) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException {
+                    WatchKey key = subDir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                    watchedDirs.put(key, new Path[]{root, subDir});
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Could not watch static resource directory " + dir, e);
+        }
+    }
+
+    private void watch(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path[] dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW || dir == null) {
+                    invalidations.incrementAndGet();
+                    cache.invalidateAll(); //丢失了事件，不知道哪些文件变化了
+                    continue;
+                }
+                Path changed = dir[1].resolve((Path) event.context());
+                invalidate(dir[0].relativize(changed).toString().replace(File.separatorChar, '/'));
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+                    register(service, dir[0], changed);
+                }
+            }
+            if (!key.reset()) {
+                watchedDirs.remove(key); //目录已被删除
+            }
+        }
+    }
+
+    /**
+     * 让路径本身及其下所有路径(目录被删除或改名时)的条目失效
+     */
+    private void invalidate(String relativePath) {
+        invalidations.incrementAndGet();
+        cache.invalidate(relativePath);
+        String dirPrefix = relativePath + "/";
+        cache.asMap().keySet().removeIf(path -> path.startsWith(dirPrefix));
+        if (log.isDebugEnabled()) {
+            log.debug("Static resource changed, invalidated cache of " + relativePath);
+        }
+    }
+
+    /**
+     * 停止监听并释放所有缓存的内存(正在写出的在写完后释放)
+     */
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+        cache.invalidateAll();
+        cache.cleanUp();
+    }
+
+    /**
+     * 缓存的一个资源，引用计数归零时释放所有版本的内容
+     * 缓存持有一个引用，每个使用它的请求持有一个引用，所以淘汰时不会释放正在写出的内容
+     */
+    static final class CachedResource extends AbstractReferenceCounted {
+        final String contentType;
+        final long lastModified;
+        final String etag;
+        final ByteBuf content;
+        final ByteBuf gzip; //没有时为null
+        final ByteBuf brotli; //没有时为null
+
+        CachedResource(String contentType, long lastModified, String etag, ByteBuf content, ByteBuf gzip, ByteBuf brotli) {
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.content = content;
+            this.gzip = gzip;
+            this.brotli = brotli;
+        }
+
+        boolean hasVariants() {
+            return gzip != null || brotli != null;
+        }
+
+        /**
+         * 与淘汰并发时可能已经释放，此时返回false
+         */
+        boolean tryRetain() {
+            try {
+                retain();
+                return true;
+            } catch (IllegalReferenceCountException e) {
+                return false;
+            }
+        }
+
+        int weight() {
+            return content.capacity() + (gzip == null ? 0 : gzip.capacity()) + (brotli == null ? 0 : brotli.capacity());
+        }
+
+        @Override
+        protected void deallocate() {
+            content.release();
+            if (gzip != null) {
+                gzip.release();
+            }
+            if (brotli != null) {
+                brotli.release();
+            }
+        }
+
+        @Override
+        public ReferenceCounted touch(Object hint) {
+            return this;
+        }
+    }
+}
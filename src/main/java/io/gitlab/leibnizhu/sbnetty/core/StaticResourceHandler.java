@@ -0,0 +1,542 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+import com.google.common.io.ByteStreams;
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.gitlab.leibnizhu.sbnetty.response.NettyHttpServletResponse;
+import io.gitlab.leibnizhu.sbnetty.utils.MimeTypeUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * 容器内置的静态资源处理，只处理匹配到默认Servlet("/")的请求，在REQUEST分发的过滤器链末尾、调用默认Servlet之前执行，
+ * 所以和Servlet一样受Filter(如认证、授权)保护，映射到其他Servlet的路径不会被静态资源覆盖
+ * 按配置的位置(classpath:或file:)查找与请求路径对应的文件，找到则直接响应，不再调用Servlet，找不到再交给Servlet
+ * 前缀下的每个GET/HEAD请求都要在各个位置查找一次，所以默认前缀是专用的/static/
+ * 文件系统中的文件(包括未打包的classpath目录)用DefaultFileRegion零拷贝写出，jar包中的资源分块读出；
+ * Filter包装了响应对象时通过包装后的输出流复制写出，保证Filter能看到响应体
+ * 支持HEAD、If-Modified-Since和单个区间的Range请求
+ * 启用缓存时，小文件从StaticResourceCache中响应，额外支持ETag(If-None-Match)和预压缩版本(Accept-Encoding)
+ *
+ * @author Leibniz
+ */
+class StaticResourceHandler implements Closeable {
+    private static final Log log = LogFactory.getLog(StaticResourceHandler.class);
+    private static final String CLASSPATH_PREFIX = "classpath:";
+    private static final String FILE_PREFIX = "file:";
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    private final String pathPrefix; //以"/"开头和结尾
+    private final List<ResourceLocation> locations = new ArrayList<>();
+    private final boolean fileRegionSupported;
+    private final StaticResourceCache cache; //未启用缓存时为null
+
+    StaticResourceHandler(ClassLoader classLoader, NettyServerProperties.StaticResources config, boolean fileRegionSupported) {
+        String path = config.getPath() == null ? "/" : config.getPath().trim();
+        path = path.startsWith("/") ? path : "/" + path;
+        this.pathPrefix = path.endsWith("/") ? path : path + "/";
+        this.fileRegionSupported = fileRegionSupported;
+        for (String location : config.getLocations()) {
+            String trimmed = location.trim();
+            if (trimmed.startsWith(CLASSPATH_PREFIX)) {
+                locations.add(new ClasspathLocation(classLoader, trimmed.substring(CLASSPATH_PREFIX.length())));
+            } else if (trimmed.startsWith(FILE_PREFIX)) {
+                locations.add(new FileLocation(Paths.get(trimmed.substring(FILE_PREFIX.length()))));
+            } else {
+                locations.add(new FileLocation(Paths.get(trimmed)));
+            }
+        }
+        log.info("Serving static resources at " + pathPrefix + "** from " + locations);
+        if (config.getCacheMaxSize() > 0) {
+            List<Path> watchRoots = new ArrayList<>();
+            for (ResourceLocation location : locations) {
+                location.collectDirectories(watchRoots);
+            }
+            this.cache = new StaticResourceCache(config.getCacheMaxSize(), config.getCacheMaxFileSize(), config.isPrecompress(), watchRoots);
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /**
+     * 在过滤器链末尾调用，request和response可能已被Filter包装
+     *
+     * @return 找到静态资源并已经响应时返回true，否则应该继续交给Servlet处理
+     */
+    boolean handle(ServletRequest servletRequest, ServletResponse servletResponse) throws IOException {
+        if (!(servletRequest instanceof HttpServletRequest) || !(servletResponse instanceof HttpServletResponse)) {
+            return false;
+        }
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        String method = request.getMethod();
+        boolean head = HttpMethod.HEAD.name().equals(method);
+        if (!head && !HttpMethod.GET.name().equals(method)) {
+            return false;
+        }
+        String relativePath = relativePath(request.getServletPath());
+        if (relativePath == null) {
+            return false;
+        }
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        if (cache != null) {
+            StaticResourceCache.CachedResource cached = cache.get(relativePath);
+            if (cached != null) {
+                serveCached(request, response, cached, head);
+                return true;
+            }
+        }
+        StaticResource resource = resolve(relativePath);
+        if (resource == null) {
+            return false;
+        }
+        if (cache != null && cache.isCacheable(resource)) {
+            serveCached(request, response, cache.load(relativePath, resource, contentType(resource.name)), head);
+        } else {
+            serve(request, response, resource, head);
+        }
+        return true;
+    }
+
+    /**
+     * @return 去掉URL前缀并解码后的相对路径，不合法(如包含"..")时返回null
+     */
+    private String relativePath(String servletPath) {
+        if (servletPath == null || !servletPath.startsWith(pathPrefix) || servletPath.endsWith("/")) {
+            return null;
+        }
+        String path = servletPath.substring(pathPrefix.length());
+        if (path.indexOf('%') >= 0) {
+            path = QueryStringDecoder.decodeComponent(path.replace("+", "%2B")); //路径中的"+"不是空格
+        }
+        if (path.isEmpty() || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0 || path.startsWith("/")) {
+            return null;
+        }
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                return null;
+            }
+        }
+        return path;
+    }
+
+    private StaticResource resolve(String relativePath) throws IOException {
+        for (ResourceLocation location : locations) {
+            StaticResource resource = location.resolve(relativePath);
+            if (resource != null) {
+                return resource;
+            }
+        }
+        return null;
+    }
+
+    private void serve(HttpServletRequest request, HttpServletResponse response, StaticResource resource, boolean head) throws IOException {
+        long lastModified = resource.lastModified / 1000 * 1000; //HTTP日期只精确到秒
+        if (checkNotModified(request, response, lastModified, null)) {
+            return;
+        }
+        response.setContentType(contentType(resource.name));
+        response.setCharacterEncoding(null); //不知道文件的编码，不加charset
+        long[] range = applyRange(request, response, resource.length, lastModified, null);
+        if (range == null) {
+            return;
+        }
+        long start = range[0];
+        long count = range[1];
+        response.setContentLengthLong(count);
+        if (head || count == 0) {
+            return;
+        }
+        NettyHttpServletResponse target = unwrapped(response);
+        if (resource.file != null && target != null) {
+            target.getOutputStream().writeFileAndClose(resource.file, start, count, fileRegionSupported);
+            return;
+        }
+        InputStream in = resource.file != null ? new FileInputStream(resource.file) : resource.connection.getInputStream();
+        try {
+            ByteStreams.skipFully(in, start);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        if (target != null) {
+            target.getOutputStream().writeStreamAndClose(in, count);
+            return;
+        }
+        try {
+            ByteStreams.copy(ByteStreams.limit(in, count), response.getOutputStream());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return 没有被Filter包装时的容器响应对象，可以零拷贝或分块写出；被包装时返回null，需要通过包装后的输出流写出
+     */
+    private static NettyHttpServletResponse unwrapped(HttpServletResponse response) {
+        return response instanceof NettyHttpServletResponse ? (NettyHttpServletResponse) response : null;
+    }
+
+    /**
+     * 从缓存响应，没有Range请求时按Accept-Encoding选择预压缩的版本
+     * 结束时释放cached的引用，写出的内容自己持有引用
+     */
+    private void serveCached(HttpServletRequest request, HttpServletResponse response,
+                             StaticResourceCache.CachedResource cached, boolean head) throws IOException {
+        try {
+            ByteBuf body = cached.content;
+            String etag = cached.etag;
+            String encoding = null;
+            if (cached.hasVariants()) {
+                response.setHeader(HttpHeaderNames.VARY.toString(), HttpHeaderNames.ACCEPT_ENCODING.toString());
+                String acceptEncoding = request.getHeader(HttpHeaderNames.ACCEPT_ENCODING.toString());
+                if (acceptEncoding != null && request.getHeader(HttpHeaderNames.RANGE.toString()) == null) {
+                    if (cached.brotli != null && acceptsEncoding(acceptEncoding, HttpHeaderValues.BR.toString())) {
+                        body = cached.brotli;
+                        encoding = HttpHeaderValues.BR.toString();
+                    } else if (cached.gzip != null && acceptsEncoding(acceptEncoding, HttpHeaderValues.GZIP.toString())) {
+                        body = cached.gzip;
+                        encoding = HttpHeaderValues.GZIP.toString();
+                    }
+                }
+                if (encoding != null) {
+                    etag = etag.substring(0, etag.length() - 1) + "-" + encoding + "\""; //不同编码的内容ETag不同
+                }
+            }
+            long lastModified = cached.lastModified / 1000 * 1000;
+            if (checkNotModified(request, response, lastModified, etag)) {
+                return;
+            }
+            response.setContentType(cached.contentType);
+            response.setCharacterEncoding(null);
+            if (encoding != null) {
+                response.setHeader(HttpHeaderNames.CONTENT_ENCODING.toString(), encoding);
+            }
+            long[] range = applyRange(request, response, body.readableBytes(), lastModified, etag);
+            if (range == null) {
+                return;
+            }
+            response.setContentLengthLong(range[1]);
+            if (head || range[1] == 0) {
+                return;
+            }
+            NettyHttpServletResponse target = unwrapped(response);
+            if (target != null) {
+                target.getOutputStream().writeContentAndClose(body.retainedSlice((int) range[0], (int) range[1]));
+            } else {
+                body.getBytes((int) range[0], response.getOutputStream(), (int) range[1]);
+            }
+        } finally {
+            cached.release();
+        }
+    }
+
+    /**
+     * 设置Accept-Ranges、Last-Modified、ETag响应头，并处理条件请求
+     * 有If-None-Match时只按ETag判断，否则按If-Modified-Since判断
+     *
+     * @param etag 没有时为null
+     * @return 已经响应304时返回true
+     */
+    private static boolean checkNotModified(HttpServletRequest request, HttpServletResponse response, long lastModified, String etag) {
+        response.setHeader(HttpHeaderNames.ACCEPT_RANGES.toString(), HttpHeaderValues.BYTES.toString());
+        if (etag != null) {
+            response.setHeader(HttpHeaderNames.ETAG.toString(), etag);
+        }
+        if (lastModified > 0) {
+            response.setDateHeader(HttpHeaderNames.LAST_MODIFIED.toString(), lastModified);
+        }
+        String ifNoneMatch = request.getHeader(HttpHeaderNames.IF_NONE_MATCH.toString());
+        boolean notModified;
+        if (ifNoneMatch != null) {
+            notModified = etag != null && etagMatches(ifNoneMatch, etag);
+        } else {
+            long ifModifiedSince = lastModified > 0 ? request.getDateHeader(HttpHeaderNames.IF_MODIFIED_SINCE.toString()) : -1;
+            notModified = ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+        }
+        if (notModified) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return notModified;
+    }
+
+    /**
+     * 处理Range请求头，满足时设置206及Content-Range，不满足时响应416
+     *
+     * @return [起始位置, 字节数]，已经响应416时返回null
+     */
+    private static long[] applyRange(HttpServletRequest request, HttpServletResponse response, long length, long lastModified, String etag) {
+        String range = request.getHeader(HttpHeaderNames.RANGE.toString());
+        if (range == null || !ifRangeMatches(request.getHeader(HttpHeaderNames.IF_RANGE.toString()), lastModified, etag)) {
+            return new long[]{0, length};
+        }
+        long[] bounds = parseRange(range, length);
+        if (bounds == UNSATISFIABLE) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaderNames.CONTENT_RANGE.toString(), "bytes */" + length);
+            return null;
+        }
+        if (bounds == null) {
+            return new long[]{0, length};
+        }
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader(HttpHeaderNames.CONTENT_RANGE.toString(), "bytes " + bounds[0] + "-" + bounds[1] + "/" + length);
+        return new long[]{bounds[0], bounds[1] - bounds[0] + 1};
+    }
+
+    /**
+     * If-Range为ETag时与当前ETag相同(强比较)，为日期时与Last-Modified相同，才按Range响应
+     */
+    private static boolean ifRangeMatches(String ifRange, long lastModified, String etag) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        Date date = DateFormatter.parseHttpDate(ifRange);
+        return date != null && date.getTime() == lastModified;
+    }
+
+    /**
+     * If-None-Match为"*"或包含当前ETag(弱比较)
+     */
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || (candidate.startsWith("W/") ? candidate.substring(2) : candidate).equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Accept-Encoding中包含该编码且q不为0
+     */
+    private static boolean acceptsEncoding(String acceptEncoding, String encoding) {
+        for (String item : acceptEncoding.split(",")) {
+            int semicolon = item.indexOf(';');
+            String coding = (semicolon < 0 ? item : item.substring(0, semicolon)).trim();
+            if (coding.equalsIgnoreCase(encoding)) {
+                return semicolon < 0 || !item.substring(semicolon + 1).replace(" ", "").matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private static String contentType(String fileName) {
+        String mimeType = MimeTypeUtil.getMimeTypeByFileName(fileName);
+        return mimeType == null ? DEFAULT_MIME_TYPE : mimeType;
+    }
+
+    /**
+     * @return 是否是值得压缩的文本类内容
+     */
+    static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/") || contentType.endsWith("+xml") || contentType.endsWith("+json")
+                || contentType.equals("application/javascript") || contentType.equals("application/json")
+                || contentType.equals("application/xml");
+    }
+
+    /**
+     * 停止监听静态资源目录并释放缓存
+     */
+    @Override
+    public void close() throws IOException {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    /**
+     * 解析Range请求头，只支持单个区间
+     *
+     * @return [起始位置, 结束位置]，不满足时返回UNSATISFIABLE，格式不对或多个区间时返回null(按完整内容响应)
+     */
+    static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=")) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            return null;
+        }
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        try {
+            if (first.isEmpty()) {
+                //最后N个字节
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || length == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new long[]{Math.max(0, length - suffix), length - 1};
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            if (start >= length) {
+                return UNSATISFIABLE;
+            }
+            return new long[]{start, Math.min(end, length - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 找到的静态资源，file和connection有且只有一个
+     */
+    static final class StaticResource {
+        final String name;
+        final File file; //文件系统中的文件，可以零拷贝
+        final URLConnection connection; //jar包等其他位置的资源
+        final long length;
+        final long lastModified;
+
+        StaticResource(File file) {
+            this.name = file.getName();
+            this.file = file;
+            this.connection = null;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        StaticResource(String name, URLConnection connection) {
+            this.name = name;
+            this.file = null;
+            this.connection = connection;
+            this.length = connection.getContentLengthLong();
+            this.lastModified = connection.getLastModified();
+        }
+    }
+
+    private abstract static class ResourceLocation {
+        abstract StaticResource resolve(String relativePath) throws IOException;
+
+        /**
+         * 收集该位置对应的文件系统目录，用于监听变化
+         */
+        abstract void collectDirectories(List<Path> directories);
+    }
+
+    /**
+     * classpath中的位置，未打包的目录按文件处理，jar包中的资源通过URLConnection读取
+     */
+    private static final class ClasspathLocation extends ResourceLocation {
+        private final ClassLoader classLoader;
+        private final String base; //不以"/"开头，以"/"结尾
+
+        ClasspathLocation(ClassLoader classLoader, String base) {
+            this.classLoader = classLoader;
+            while (base.startsWith("/")) {
+                base = base.substring(1);
+            }
+            this.base = base.isEmpty() || base.endsWith("/") ? base : base + "/";
+        }
+
+        @Override
+        StaticResource resolve(String relativePath) throws IOException {
+            URL url = classLoader.getResource(base + relativePath);
+            if (url == null) {
+                return null;
+            }
+            if ("file".equals(url.getProtocol())) {
+                try {
+                    File file = new File(url.toURI());
+                    return file.isFile() ? new StaticResource(file) : null;
+                } catch (URISyntaxException | IllegalArgumentException e) {
+                    return null;
+                }
+            }
+            URLConnection connection = url.openConnection();
+            if (connection instanceof JarURLConnection && ((JarURLConnection) connection).getJarEntry().isDirectory()) {
+                return null;
+            }
+            String name = relativePath.substring(relativePath.lastIndexOf('/') + 1);
+            return new StaticResource(name, connection);
+        }
+
+        @Override
+        void collectDirectories(List<Path> directories) {
+            try {
+                Enumeration<URL> urls = classLoader.getResources(base);
+                while (urls.hasMoreElements()) {
+                    URL url = urls.nextElement();
+                    if ("file".equals(url.getProtocol())) {
+                        directories.add(Paths.get(url.toURI()));
+                    }
+                }
+            } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+                log.warn("Could not list directories of " + this, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return CLASSPATH_PREFIX + "/" + base;
+        }
+    }
+
+    /**
+     * 文件系统中的目录
+     */
+    private static final class FileLocation extends ResourceLocation {
+        private final Path root;
+
+        FileLocation(Path root) {
+            this.root = root.toAbsolutePath().normalize();
+        }
+
+        @Override
+        StaticResource resolve(String relativePath) {
+            Path path = root.resolve(relativePath).normalize();
+            if (!path.startsWith(root)) {
+                return null;
+            }
+            File file = path.toFile();
+            return file.isFile() ? new StaticResource(file) : null;
+        }
+
+        @Override
+        void collectDirectories(List<Path> directories) {
+            if (root.toFile().isDirectory()) {
+                directories.add(root);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return FILE_PREFIX + root;
+        }
+    }
+}
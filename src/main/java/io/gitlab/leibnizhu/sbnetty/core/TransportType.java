@@ -0,0 +1,25 @@
+package io.gitlab.leibnizhu.sbnetty.core;
+
+/**
+ * 网络传输实现，通过 server.netty.transport 配置
+ *
+ * @author Leibniz
+ */
+public enum TransportType {
+    /**
+     * 优先使用epoll，不可用时使用NIO
+     */
+    AUTO,
+    /**
+     * Linux epoll，不可用时按AUTO选择
+     */
+    EPOLL,
+    /**
+     * Linux io_uring(需要netty-incubator-transport-native-io_uring依赖及Linux 5.9+)，不可用时按AUTO选择
+     */
+    IO_URING,
+    /**
+     * JDK NIO，所有平台都可用
+     */
+    NIO
+}
@@ -1,6 +1,7 @@
 package io.gitlab.leibnizhu.sbnetty.request;
 
 import com.google.common.primitives.Ints;
+import io.gitlab.leibnizhu.sbnetty.core.AutoReadGate;
 import io.gitlab.leibnizhu.sbnetty.core.ClientAbortException;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.CompositeByteBuf;
@@ -13,8 +14,16 @@ import io.netty.util.ReferenceCountUtil;
 import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 import java.io.IOException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * 请求体输入流
+ * 默认收到完整的请求体后才分发请求；提前分发时请求体边接收边读取，
+ * 读取时没有可读数据则阻塞等待，未读取的数据超过高水位时暂停读取连接，读到低水位以下再恢复
+ * 设置ReadListener后为非阻塞读取，isReady()返回false时不能再读取，等待onDataAvailable/onAllDataRead回调
+ * 启用对象回收时随RequestSession一起重用，关闭后由recycle()恢复初始状态
+ */
 public class HttpRequestInputStream extends ServletInputStream {
     private final AtomicBoolean closed = new AtomicBoolean(false);
     private final Object lock = new Object();
@@ -25,20 +34,87 @@ public class HttpRequestInputStream extends ServletInputStream {
 
     private volatile boolean lastReached = false;
 
+    //请求体流控，只在提前分发时启用
+    private AutoReadGate readGate;
+    private int highWaterMark;
+    private int lowWaterMark;
+
     private final HttpRequestInputStreamReadListenerOp httpRequestInputStreamReadListenerOp = new HttpRequestInputStreamReadListenerOp();
+    private volatile Throwable recycledAt; //回收调试模式下回收时的调用栈，之后再使用时抛出异常
 
-    public void offer(HttpContent httpContent) {
-        if (closed.get()) {
-            return;
+    /**
+     * 设置执行ReadListener回调的Executor，即请求的分发Executor，需在请求分发前调用
+     */
+    public void setExecutor(Executor executor) {
+        httpRequestInputStreamReadListenerOp.setExecutor(executor);
+    }
+
+    /**
+     * 启用请求体流控，需在请求分发前调用
+     */
+    public void enableFlowControl(AutoReadGate readGate, int highWaterMark, int lowWaterMark) {
+        this.readGate = readGate;
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = Math.min(lowWaterMark, highWaterMark);
+    }
+
+    /**
+     * @return 是否设置过ReadListener，非阻塞读取的回调可能在请求结束后才执行，这样的请求对象不回收
+     */
+    public boolean hasReadListener() {
+        synchronized (lock) {
+            return httpRequestInputStreamReadListenerOp.hasReadListener();
+        }
+    }
+
+    /**
+     * 请求结束、流已经关闭后调用，恢复到新建时的状态以便下一个请求重用
+     */
+    public void recycle() {
+        synchronized (lock) {
+            buf = Unpooled.EMPTY_BUFFER; //关闭时已经释放
+            lastReached = false;
+            readGate = null;
+            highWaterMark = 0;
+            lowWaterMark = 0;
+            httpRequestInputStreamReadListenerOp.reset();
+            closed.set(false);
+        }
+    }
+
+    /**
+     * 回收调试模式下代替重用，之后的读取都会抛出IllegalStateException
+     *
+     * @param recycledAt 回收时的调用栈
+     */
+    public void markRecycled(Throwable recycledAt) {
+        this.recycledAt = recycledAt;
+    }
+
+    private void checkNotRecycled() {
+        if (recycledAt != null) {
+            throw new IllegalStateException("Request input stream is used after the request has been recycled", recycledAt);
         }
+    }
 
-        ByteBuf content = httpContent.content().retain();
+    public void offer(HttpContent httpContent) {
+        synchronized (lock) {
+            if (closed.get()) {
+                return;
+            }
 
-        buf = cumulator.cumulate(content.alloc(), buf, content);
-        if (httpContent instanceof LastHttpContent) {
-            lastReached = true;
+            ByteBuf content = httpContent.content().retain();
+
+            buf = cumulator.cumulate(content.alloc(), buf, content);
+            if (httpContent instanceof LastHttpContent) {
+                lastReached = true;
+            }
+            if (readGate != null && buf.readableBytes() > highWaterMark) {
+                readGate.suspend(AutoReadGate.REQUEST_BODY);
+            }
+            lock.notifyAll();
+            httpRequestInputStreamReadListenerOp.notifyDataAvailable(allDataRead());
         }
-        httpRequestInputStreamReadListenerOp.notifyDataAvailable();
     }
 
 
@@ -52,19 +128,44 @@ public class HttpRequestInputStream extends ServletInputStream {
 
 
     /**
-     * 已读入至少一次HttpContent且未读取完所有内容，或者HttpContent队列非空
+     * 有未读取的数据时返回true
+     * 否则返回false，请求体已全部读完时回调onAllDataRead，未读完时等新数据到达后回调onDataAvailable
      */
     @Override
     public boolean isReady() {
-        if (closed.get()) {
+        checkNotRecycled();
+        synchronized (lock) {
+            if (closed.get()) {
+                return false;
+            }
+            if (buf.readableBytes() > 0) {
+                return true;
+            }
+            if (lastReached) {
+                httpRequestInputStreamReadListenerOp.notifyAllRead();
+            } else {
+                httpRequestInputStreamReadListenerOp.arm();
+            }
             return false;
         }
-        return buf.readableBytes() > 0;
     }
 
     @Override
     public void setReadListener(ReadListener readListener) {
-        httpRequestInputStreamReadListenerOp.setReadListener(readListener);
+        checkNotRecycled();
+        synchronized (lock) {
+            httpRequestInputStreamReadListenerOp.setReadListener(readListener);
+            httpRequestInputStreamReadListenerOp.arm();
+            if (closed.get()) {
+                if (!lastReached) {
+                    //设置ReadListener之前连接已经断开，不会再有数据到达
+                    httpRequestInputStreamReadListenerOp.notifyError(new ClientAbortException("Stream is closed"));
+                }
+            } else if (buf.readableBytes() > 0 || lastReached) {
+                //已有数据(或请求体为空)，不必等待新数据
+                httpRequestInputStreamReadListenerOp.notifyDataAvailable(allDataRead());
+            }
+        }
     }
 
     /**
@@ -72,6 +173,7 @@ public class HttpRequestInputStream extends ServletInputStream {
      */
     @Override
     public long skip(long n) throws IOException {
+        checkNotRecycled();
         checkNotClosed();
         synchronized (lock) {
             long realSkip = 0;
@@ -87,26 +189,85 @@ public class HttpRequestInputStream extends ServletInputStream {
 
     @Override
     public int available() throws IOException {
+        checkNotRecycled();
         return buf.readableBytes();
     }
 
     @Override
     public void close() throws IOException {
-        if (closed.compareAndSet(false, true)) {
-            synchronized (lock) {
-                // close和read不能同时发生
-                ReferenceCountUtil.release(buf);
+        synchronized (lock) {
+            //在lock内修改状态，与读取、offer()判断请求体是否读完互斥，正在进行的读取不会把关闭当作读完
+            if (!closed.compareAndSet(false, true)) {
+                return;
             }
+            ReferenceCountUtil.release(buf);
+            buf = Unpooled.EMPTY_BUFFER;
+            lock.notifyAll();
+            if (!lastReached) {
+                //请求体未接收完连接就断开了
+                httpRequestInputStreamReadListenerOp.notifyError(new ClientAbortException("Stream is closed"));
+            }
+        }
+        if (readGate != null) {
+            //剩余的请求体需要继续读入并丢弃
+            readGate.resume(AutoReadGate.REQUEST_BODY);
+        }
+    }
+
+    /**
+     * 收到了最后一块请求体并已全部读完，流被关闭时不算
+     * 调用时需持有lock，closed只在lock内修改
+     */
+    private boolean allDataRead() {
+        return !closed.get() && lastReached && buf.readableBytes() == 0;
+    }
+
+    /**
+     * 提前分发时请求体可能还没有全部到达，等待到有数据可读、请求体结束或流被关闭
+     * 非阻塞模式下不等待
+     * 调用时需持有lock
+     */
+    private void awaitData() throws IOException {
+        if (httpRequestInputStreamReadListenerOp.hasReadListener()) {
+            checkNotClosed();
+            if (!lastReached && buf.readableBytes() == 0) {
+                throw new IllegalStateException("No data available, read() must not be called when isReady() returns false");
+            }
+            return;
+        }
+        while (!closed.get() && !lastReached && buf.readableBytes() == 0) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClientAbortException("Interrupted while waiting for request body");
+            }
+        }
+        checkNotClosed();
+    }
+
+    /**
+     * 已读取到低水位以下时恢复读取连接
+     * 调用时需持有lock
+     */
+    private void releaseBackpressure() {
+        if (readGate != null && buf.readableBytes() <= lowWaterMark && readGate.isSuspended(AutoReadGate.REQUEST_BODY)) {
+            readGate.resume(AutoReadGate.REQUEST_BODY);
         }
     }
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
+        checkNotRecycled();
         if (isFinished()) {
             return -1;
         }
         synchronized (lock) {
             try {
+                if (len == 0) {
+                    return 0;
+                }
+                awaitData();
                 if (isFinished()) {
                     return -1;
                 }
@@ -116,9 +277,10 @@ public class HttpRequestInputStream extends ServletInputStream {
                     // discard read bytes with batch read model
                     ((CompositeByteBuf) buf).discardSomeReadBytes();
                 }
+                releaseBackpressure();
                 return realLen;
             } finally {
-                if (isFinished()) {
+                if (allDataRead()) {
                     httpRequestInputStreamReadListenerOp.notifyAllRead();
                 }
             }
@@ -127,18 +289,21 @@ public class HttpRequestInputStream extends ServletInputStream {
 
     @Override
     public int read() throws IOException {
+        checkNotRecycled();
         if (isFinished()) {
             return -1;
         }
         synchronized (lock) {
             try {
+                awaitData();
                 if (isFinished()) {
                     return -1;
                 }
-                return buf.readByte() & 0xFF;
+                int b = buf.readByte() & 0xFF;
+                releaseBackpressure();
+                return b;
             } finally {
-
-                if (isFinished()) {
+                if (allDataRead()) {
                     httpRequestInputStreamReadListenerOp.notifyAllRead();
                 }
             }
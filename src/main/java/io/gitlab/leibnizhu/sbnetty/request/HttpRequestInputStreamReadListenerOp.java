@@ -1,12 +1,29 @@
 package io.gitlab.leibnizhu.sbnetty.request;
 
+import com.google.common.util.concurrent.MoreExecutors;
+
 import javax.servlet.ReadListener;
+import java.util.concurrent.Executor;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+/**
+ * 非阻塞读取请求体时ReadListener的回调调度
+ * isReady()返回false时登记(arm)，之后有新数据到达时回调一次onDataAvailable；
+ * 请求体全部读完后回调一次onAllDataRead；读取过程中连接断开回调onError
+ * 回调总是提交到请求的Executor顺序执行，不会在IO线程中执行，也不会并发执行
+ * 除回调本身外的方法都在HttpRequestInputStream的lock内调用
+ */
 public class HttpRequestInputStreamReadListenerOp {
     private ReadListener readListener;
-    private volatile boolean dataAvailableCalled;
+    private Executor executor;
+    private boolean armed; //isReady()返回false后等待新数据
+    private boolean allDataReadNotified;
+    private boolean errorNotified;
+
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
 
     public void setReadListener(ReadListener readListener) {
         checkNotNull(readListener);
@@ -14,31 +31,79 @@ public class HttpRequestInputStreamReadListenerOp {
             throw new IllegalStateException("ReadListener is already set");
         }
         this.readListener = readListener;
+        //同一个请求的回调按提交顺序逐个执行
+        this.executor = MoreExecutors.newSequentialExecutor(executor != null ? executor : MoreExecutors.directExecutor());
     }
 
-    void notifyDataAvailable() {
-        if (dataAvailableCalled) {
-            return;
-        }
-        dataAvailableCalled = true;
-        if (readListener == null) {
+    boolean hasReadListener() {
+        return readListener != null;
+    }
+
+    /**
+     * 回收请求对象时恢复到新建时的状态
+     */
+    void reset() {
+        readListener = null;
+        executor = null;
+        armed = false;
+        allDataReadNotified = false;
+        errorNotified = false;
+    }
+
+    /**
+     * isReady()返回false时调用，有新数据到达或请求体结束时再回调
+     */
+    void arm() {
+        armed = true;
+    }
+
+    /**
+     * 有新数据到达或请求体结束时调用
+     *
+     * @param finished 请求体已经全部读完
+     */
+    void notifyDataAvailable(boolean finished) {
+        if (readListener == null || !armed) {
             return;
         }
-        try {
-            readListener.onDataAvailable();
-        } catch (Throwable t) {
-            readListener.onError(t);
+        armed = false;
+        if (finished) {
+            notifyAllRead();
+        } else {
+            dispatch(readListener::onDataAvailable);
         }
     }
 
     void notifyAllRead() {
-        if (readListener == null) {
+        if (readListener == null || allDataReadNotified || errorNotified) {
             return;
         }
-        try {
-            readListener.onAllDataRead();
-        } catch (Throwable t) {
-            readListener.onError(t);
+        allDataReadNotified = true;
+        dispatch(readListener::onAllDataRead);
+    }
+
+    void notifyError(Throwable cause) {
+        if (readListener == null || allDataReadNotified || errorNotified) {
+            return;
         }
+        errorNotified = true;
+        ReadListener listener = readListener;
+        executor.execute(() -> listener.onError(cause));
+    }
+
+    private void dispatch(Callback callback) {
+        ReadListener listener = readListener;
+        executor.execute(() -> {
+            try {
+                callback.call();
+            } catch (Throwable t) {
+                listener.onError(t);
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface Callback {
+        void call() throws Exception;
     }
 }
@@ -1,18 +1,19 @@
 package io.gitlab.leibnizhu.sbnetty.request;
 
 import com.google.common.base.Splitter;
-import com.google.common.base.Supplier;
-import com.google.common.base.Suppliers;
 import io.gitlab.leibnizhu.sbnetty.core.NettyAsyncContext;
 import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
 import io.gitlab.leibnizhu.sbnetty.core.NettyRequestDispatcher;
 import io.gitlab.leibnizhu.sbnetty.session.NettyHttpSession;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
 import io.netty.handler.codec.http.multipart.Attribute;
 import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
 import io.netty.handler.codec.http.multipart.InterfaceHttpData;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.util.NetUtil;
 
 import javax.servlet.*;
@@ -27,6 +28,7 @@ import java.nio.charset.StandardCharsets;
 import java.security.Principal;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 /**
@@ -34,28 +36,87 @@ import java.util.stream.Collectors;
  */
 public class NettyHttpServletRequest implements HttpServletRequest {
     public static final String DISPATCHER_TYPE = NettyRequestDispatcher.class.getName() + ".DISPATCHER_TYPE";
+    private static final String HTTP2_PROTOCOL = "HTTP/2.0";
 
-    private final ChannelHandlerContext ctx;
-    private final NettyContext servletContext;
-    private final HttpRequest request;
+    private ChannelHandlerContext ctx;
+    private NettyContext servletContext;
+    private HttpRequest request;
     private final HttpRequestInputStream inputStream;
-    private final HttpPostRequestDecoder httpPostRequestDecoder;
+    private HttpPostRequestDecoder httpPostRequestDecoder;
     private boolean asyncSupported = true;
     private NettyAsyncContext asyncContext;
+    private Executor dispatchExecutor; //执行Servlet的Executor
+    private volatile Throwable recycledAt; //回收调试模式下回收时的调用栈，之后再使用时抛出异常
 
-    public NettyHttpServletRequest(ChannelHandlerContext ctx, NettyContext servletContext,
-                                   HttpRequest request, HttpPostRequestDecoder httpPostRequestDecoder,
-                                   HttpRequestInputStream requestInputStream) {
+    /**
+     * 启用对象回收时与输入流、响应对象一起创建并重用，每个请求开始时调用init()
+     */
+    public NettyHttpServletRequest(HttpRequestInputStream requestInputStream) {
+        this.inputStream = requestInputStream;
+        this.attributes = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 开始处理一个请求时调用
+     */
+    public void init(ChannelHandlerContext ctx, NettyContext servletContext,
+                     HttpRequest request, HttpPostRequestDecoder httpPostRequestDecoder) {
         this.ctx = ctx;
         this.servletContext = servletContext;
         this.request = request;
-        this.inputStream = requestInputStream;
         this.httpPostRequestDecoder = httpPostRequestDecoder;
-        this.attributes = new ConcurrentHashMap<>();
         this.headers = request.headers();
         parseSession();
     }
 
+    /**
+     * 请求处理结束、响应写完后调用，恢复到新建时的状态以便下一个请求重用
+     * 请求头等Netty对象的引用同时清除，避免池中的对象让它们无法被回收
+     */
+    public void recycle() {
+        ctx = null;
+        servletContext = null;
+        request = null;
+        headers = null;
+        httpPostRequestDecoder = null;
+        asyncSupported = true;
+        asyncContext = null;
+        dispatchExecutor = null;
+        cookies = null;
+        isCookieParsed = false;
+        servletPath = null;
+        queryString = null;
+        pathInfo = null;
+        requestUri = null;
+        isPathsParsed = false;
+        session = null;
+        isCookieSession = false;
+        isURLSession = false;
+        paramMap.clear();
+        isParameterParsed = false;
+        hostAndPort = null;
+        attributes.clear();
+        characterEncoding = null;
+        characterEncodingModel = StandardCharsets.UTF_8;
+        inputStream.recycle();
+    }
+
+    /**
+     * 回收调试模式下代替重用，之后再调用Servlet API都会抛出IllegalStateException
+     *
+     * @param recycledAt 回收时的调用栈
+     */
+    public void markRecycled(Throwable recycledAt) {
+        this.recycledAt = recycledAt;
+        inputStream.markRecycled(recycledAt);
+    }
+
+    private void checkNotRecycled() {
+        if (recycledAt != null) {
+            throw new IllegalStateException("Request is used after it has been recycled", recycledAt);
+        }
+    }
+
     public boolean isKeepAlive() {
         return HttpUtil.isKeepAlive(request);
     }
@@ -66,6 +127,7 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public Cookie[] getCookies() {
+        checkNotRecycled();
         if (!isCookieParsed) {
             parseCookie();
         }
@@ -110,10 +172,11 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
 
     /*====== Header 相关方法 开始 ======*/
-    private final HttpHeaders headers;
+    private HttpHeaders headers;
 
     @Override
     public long getDateHeader(String name) {
+        checkNotRecycled();
         String value = headers.get(name);
         try {
             return Long.parseLong(value);
@@ -128,21 +191,25 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public String getHeader(String name) {
+        checkNotRecycled();
         return this.headers.get(name);
     }
 
     @Override
     public Enumeration<String> getHeaders(String name) {
+        checkNotRecycled();
         return Collections.enumeration(this.headers.getAll(name));
     }
 
     @Override
     public Enumeration<String> getHeaderNames() {
+        checkNotRecycled();
         return Collections.enumeration(this.headers.names());
     }
 
     @Override
     public int getIntHeader(String name) {
+        checkNotRecycled();
         String headerStringValue = this.headers.get(name);
         if (headerStringValue == null) {
             return -1;
@@ -160,6 +227,7 @@ public class NettyHttpServletRequest implements HttpServletRequest {
     private transient boolean isPathsParsed = false;
 
     private void checkAndParsePaths() {
+        checkNotRecycled();
         if (isPathsParsed) {
             return;
         }
@@ -186,6 +254,7 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public String getMethod() {
+        checkNotRecycled();
         return request.method().name();
     }
 
@@ -219,6 +288,7 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public String getContextPath() {
+        checkNotRecycled();
         return servletContext.getContextPath();
     }
 
@@ -226,7 +296,7 @@ public class NettyHttpServletRequest implements HttpServletRequest {
     public StringBuffer getRequestURL() {
         checkAndParsePaths();
         StringBuffer url = new StringBuffer();
-        url.append("http:").append("//")
+        url.append(getScheme()).append("://")
                 .append(request.headers().get(HttpHeaderNames.HOST))
                 .append(getRequestURI());
         return url;
@@ -321,8 +391,18 @@ public class NettyHttpServletRequest implements HttpServletRequest {
         this.servletContext.getSessionManager().updateAccessTime(this.session);
     }
 
+    /**
+     * 请求结束时调用，把Session的修改交给SessionManager写回外部存储
+     */
+    public void flushSession() {
+        if (session != null) {
+            servletContext.getSessionManager().flush(session);
+        }
+    }
+
     @Override
     public HttpSession getSession(boolean create) {
+        checkNotRecycled();
         boolean valid = isRequestedSessionIdValid(); //在管理器存在，且没到期
         //可用则直接返回
         if (valid) {
@@ -345,6 +425,7 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public String changeSessionId() {
+        checkNotRecycled();
         this.session = createtSession();
         return this.session.getId();
     }
@@ -376,6 +457,7 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public String getRequestedSessionId() {
+        checkNotRecycled();
         return session.getId();
     }
     /*====== Session 相关方法 结束 ======*/
@@ -389,6 +471,7 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
 
     private void fillRequestParams() {
+        checkNotRecycled();
         if (isParameterParsed) {
             return;
         }
@@ -451,12 +534,16 @@ public class NettyHttpServletRequest implements HttpServletRequest {
     /*====== 请求协议、地址、端口 相关方法 开始 ======*/
     @Override
     public String getProtocol() {
+        checkNotRecycled();
+        if (ctx.channel() instanceof Http2StreamChannel) {
+            return HTTP2_PROTOCOL; //HTTP/2的流转换成了HTTP/1.1的HttpRequest
+        }
         return request.protocolVersion().toString();
     }
 
     @Override
     public String getScheme() {
-        return request.protocolVersion().protocolName();
+        return isSecure() ? "https" : "http";
     }
 
     private static final Splitter splitter = Splitter.on(':').omitEmptyStrings().trimResults();
@@ -471,37 +558,40 @@ public class NettyHttpServletRequest implements HttpServletRequest {
             hostAndPort.port = port;
             return hostAndPort;
         }
+    }
 
-        static HostAndPort of(String host) {
-            return of(host, 80);
+    private volatile HostAndPort hostAndPort; //第一次使用时解析，并发解析的结果相同
+
+    private HostAndPort hostAndPort() {
+        checkNotRecycled();
+        HostAndPort parsed = hostAndPort;
+        if (parsed == null) {
+            hostAndPort = parsed = parseHostAndPort();
         }
+        return parsed;
     }
 
-    private final java.util.function.Supplier<HostAndPort> hostAndPort =
-            Suppliers.memoize(new Supplier<HostAndPort>() {
-                @Override
-                public HostAndPort get() {
-                    String host = request.headers().get(HttpHeaderNames.HOST);
-                    if (host == null) {
-                        InetSocketAddress addr = (InetSocketAddress) ctx.channel().localAddress();
-                        return HostAndPort.of(NetUtil.getHostname(addr), addr.getPort());
-                    }
-                    List<String> strings = splitter.splitToList(host);
-                    return strings.size() == 1 ?
-                            HostAndPort.of(host) :
-                            HostAndPort.of(strings.get(0), Integer.parseInt(strings.get(1)));
-                }
-            });
+    private HostAndPort parseHostAndPort() {
+        String host = request.headers().get(HttpHeaderNames.HOST);
+        if (host == null) {
+            InetSocketAddress addr = (InetSocketAddress) ctx.channel().localAddress();
+            return HostAndPort.of(NetUtil.getHostname(addr), addr.getPort());
+        }
+        List<String> strings = splitter.splitToList(host);
+        return strings.size() == 1 ?
+                HostAndPort.of(host, isSecure() ? 443 : 80) :
+                HostAndPort.of(strings.get(0), Integer.parseInt(strings.get(1)));
+    }
 
 
     @Override
     public String getServerName() {
-        return hostAndPort.get().host;
+        return hostAndPort().host;
     }
 
     @Override
     public int getServerPort() {
-        return hostAndPort.get().port;
+        return hostAndPort().port;
     }
 
     @Override
@@ -521,16 +611,19 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public String getRemoteAddr() {
+        checkNotRecycled();
         return ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress().getHostAddress();
     }
 
     @Override
     public String getRemoteHost() {
+        checkNotRecycled();
         return ((InetSocketAddress) ctx.channel().remoteAddress()).getHostName();
     }
 
     @Override
     public int getRemotePort() {
+        checkNotRecycled();
         return ((InetSocketAddress) ctx.channel().remoteAddress()).getPort();
     }
 
@@ -542,26 +635,31 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public Object getAttribute(String name) {
+        checkNotRecycled();
         return attributes.get(name);
     }
 
     @Override
     public Enumeration<String> getAttributeNames() {
+        checkNotRecycled();
         return Collections.enumeration(attributes.keySet());
     }
 
     @Override
     public void setAttribute(String name, Object o) {
+        checkNotRecycled();
         attributes.put(name, o);
     }
 
     @Override
     public void removeAttribute(String name) {
+        checkNotRecycled();
         attributes.remove(name);
     }
 
     @Override
     public DispatcherType getDispatcherType() {
+        checkNotRecycled();
         return attributes.containsKey(DISPATCHER_TYPE) ? (DispatcherType) attributes.get(DISPATCHER_TYPE) : DispatcherType.REQUEST;
     }
 
@@ -598,17 +696,30 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public AsyncContext getAsyncContext() {
+        checkNotRecycled();
         if (null == asyncContext) {
-            asyncContext = new NettyAsyncContext(this, ctx);
+            asyncContext = new NettyAsyncContext(this, ctx, getDispatchExecutor());
         }
         return asyncContext;
     }
 
+    public void setDispatchExecutor(Executor dispatchExecutor) {
+        this.dispatchExecutor = dispatchExecutor;
+    }
+
+    /**
+     * @return 执行当前请求Servlet的Executor，还没有分发时返回Channel的EventLoop
+     */
+    public Executor getDispatchExecutor() {
+        return dispatchExecutor == null ? ctx.executor() : dispatchExecutor;
+    }
+
     /*====== 异步 相关方法 结束 ======*/
 
     /*====== multipart/form-data 相关方法 开始 ======*/
     @Override
     public Collection<Part> getParts() throws IOException, IllegalStateException, ServletException {
+        checkNotRecycled();
         if (httpPostRequestDecoder == null || !httpPostRequestDecoder.isMultipart()) {
             return null;
         }
@@ -619,6 +730,7 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public Part getPart(String name) throws IOException, IllegalStateException, ServletException {
+        checkNotRecycled();
         if (httpPostRequestDecoder == null || !httpPostRequestDecoder.isMultipart()) {
             return null;
         }
@@ -631,7 +743,12 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public boolean isSecure() {
-        return getScheme().equalsIgnoreCase("HTTPS");
+        checkNotRecycled();
+        Channel channel = ctx.channel();
+        if (channel instanceof Http2StreamChannel) {
+            channel = channel.parent(); //HTTP/2的SslHandler在连接的Channel上
+        }
+        return channel.pipeline().get(SslHandler.class) != null;
     }
 
     @Override
@@ -642,16 +759,19 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public ServletInputStream getInputStream() {
+        checkNotRecycled();
         return inputStream;
     }
 
     @Override
     public BufferedReader getReader() throws IOException {
+        checkNotRecycled();
         return new BufferedReader(new InputStreamReader(inputStream, getCharacterEncoding()));
     }
 
     @Override
     public int getContentLength() {
+        checkNotRecycled();
         return request.headers().getInt(HttpHeaderNames.CONTENT_LENGTH, -1);
     }
 
@@ -666,6 +786,7 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public String getCharacterEncoding() {
+        checkNotRecycled();
         if (characterEncoding == null) {
             characterEncoding = parseCharacterEncoding();
         }
@@ -677,11 +798,13 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public void setCharacterEncoding(String env) {
+        checkNotRecycled();
         characterEncoding = env;
     }
 
     @Override
     public String getContentType() {
+        checkNotRecycled();
         return headers.get("content-type");
     }
 
@@ -724,6 +847,7 @@ public class NettyHttpServletRequest implements HttpServletRequest {
 
     @Override
     public RequestDispatcher getRequestDispatcher(String path) {
+        checkNotRecycled();
         if (path == null) {
             return null;
         }
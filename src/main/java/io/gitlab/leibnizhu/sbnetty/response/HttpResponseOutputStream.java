@@ -1,33 +1,73 @@
 package io.gitlab.leibnizhu.sbnetty.response;
 
 import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
 import io.gitlab.leibnizhu.sbnetty.core.ClientAbortException;
+import io.gitlab.leibnizhu.sbnetty.core.ResponseCompressor;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpContentEncoder;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedFile;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedStream;
+import io.netty.util.ReferenceCountUtil;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+/**
+ * 响应输出流，数据经ResponseSequencer按请求顺序写出
+ * 设置WriteListener后为非阻塞写：isReady()返回false时，等到轮到该响应写出且Channel重新可写再回调onWritePossible，
+ * 回调在请求的Executor中顺序执行，写出失败或连接断开时回调onError
+ * 未设置WriteListener时为阻塞写：连接不可写(超过写缓冲高水位)时，write()阻塞Servlet线程直到可写或超时
+ * 启用对象回收时随NettyHttpServletResponse一起重用，每个请求开始时init()，响应写完后recycle()
+ * 写入的数据直接拷贝到一个池化的缓冲区，达到缓冲区大小时整块交给pipeline，之后再写入时分配下一块；
+ * 第一块按该请求路径以往的响应大小(ResponseSizeEstimator)分配，小响应通常一次分配、不扩容，关闭时连同LastHttpContent一起写出
+ * 通常只有执行Servlet的线程写出响应，不加锁；开始异步处理或设置了WriteListener后，响应可能由其他线程写出，才加锁交接
+ */
 public class HttpResponseOutputStream extends ServletOutputStream {
 
-    private final ChannelHandlerContext ctx;
+    private ChannelHandlerContext ctx;
     private final NettyHttpServletResponse servletResponse;
-    private WriteListener writeListener;
+    private ResponseSequencer sequencer;
+    private int sequence;
+    private volatile WriteListener writeListener;
+    private Executor writeListenerExecutor;
+    private final AtomicBoolean writeErrorNotified = new AtomicBoolean(false);
+    private final ResponseSequencer.WritabilityListener writePossibleNotifier = new ResponseSequencer.WritabilityListener() {
+        @Override
+        public void writable() {
+            notifyWritePossible();
+        }
+
+        @Override
+        public void closed(Throwable cause) {
+            notifyWriteError(new ClientAbortException("Connection closed"));
+        }
+    };
 
-    private final ByteToMessageDecoder.Cumulator cumulator = ByteToMessageDecoder.COMPOSITE_CUMULATOR;
-    private ByteBuf buf = Unpooled.EMPTY_BUFFER;
+    private ByteBuf buf; //还没有交给pipeline的数据，没有时为null
+    private ResponseSizeEstimator.Estimate sizeEstimate; //分配了第一个缓冲区、还没有记录实际大小时不为null
     private static final int DEFAULT_BUFFER_SIZE = 1024 * 8;
-    private static final int MAX_BUFFER_SIZE = 1024 * 1024 * 4;
+    private static final int CHUNK_SIZE = 1024 * 8; //不能零拷贝时，每次从文件读入的大小
     private volatile boolean closed;
+    private volatile ChannelFuture closeFuture; //最后一次写出的结果，关闭前为null
+    private volatile Throwable recycledAt; //回收调试模式下回收时的调用栈，之后再使用时抛出异常
 
     private volatile boolean hasCommit = false;
 
@@ -38,88 +78,245 @@ public class HttpResponseOutputStream extends ServletOutputStream {
     private Integer outerBufferSize;
     private final ReentrantLock lock = new ReentrantLock();
 
-    HttpResponseOutputStream(ChannelHandlerContext ctx, NettyHttpServletResponse servletResponse) {
-        this.ctx = ctx;
+    HttpResponseOutputStream(NettyHttpServletResponse servletResponse) {
         this.servletResponse = servletResponse;
     }
 
+    /**
+     * 开始处理一个请求时调用
+     */
+    void init(ChannelHandlerContext ctx, ResponseSequencer sequencer, int sequence) {
+        this.ctx = ctx;
+        this.sequencer = sequencer;
+        this.sequence = sequence;
+    }
+
+    /**
+     * 响应写完后调用，恢复到新建时的状态以便下一个请求重用
+     */
+    void recycle() {
+        lock.lock();
+        try {
+            ctx = null;
+            sequencer = null;
+            sequence = 0;
+            writeListener = null;
+            writeListenerExecutor = null;
+            writeErrorNotified.set(false);
+            releaseBuffer();
+            sizeEstimate = null;
+            outerBufferSize = null;
+            hasCommit = false;
+            closeFuture = null;
+            closed = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void markRecycled(Throwable recycledAt) {
+        this.recycledAt = recycledAt;
+    }
+
+    private void checkNotRecycled() {
+        if (recycledAt != null) {
+            throw new IllegalStateException("Response output stream is used after the request has been recycled", recycledAt);
+        }
+    }
+
+    /**
+     * @return 响应最后一次写出的结果，输出流还没有关闭时返回null
+     */
+    ChannelFuture closeFuture() {
+        return closeFuture;
+    }
+
+    /**
+     * @return 是否设置过WriteListener，非阻塞写出的回调可能在请求结束后才执行，这样的响应对象不回收
+     */
+    boolean hasWriteListener() {
+        return writeListener != null;
+    }
+
+    /**
+     * 轮到该响应写出且Channel可写时返回true
+     * 否则返回false，设置了WriteListener时，再次可写后回调onWritePossible
+     */
     @Override
     public boolean isReady() {
-        return ctx.channel().isWritable();
+        checkNotRecycled();
+        if (sequencer.isWritable(sequence)) {
+            return true;
+        }
+        if (writeListener != null) {
+            sequencer.notifyWhenWritable(sequence, writePossibleNotifier);
+        }
+        return false;
     }
 
     @Override
     public void setWriteListener(WriteListener writeListener) {
+        checkNotRecycled();
         checkNotNull(writeListener);
         if (this.writeListener != null) {
             throw new IllegalStateException("writeListener already set");
         }
+        //同一个响应的回调按提交顺序逐个执行
+        this.writeListenerExecutor = MoreExecutors.newSequentialExecutor(servletResponse.getDispatchExecutor());
         this.writeListener = writeListener;
 
-        // write is Possible in any time
-        ctx.executor().execute(() -> {
+        //第一次回调onWritePossible在可写时进行
+        sequencer.notifyWhenWritable(sequence, writePossibleNotifier);
+    }
+
+    private void notifyWritePossible() {
+        WriteListener listener = writeListener;
+        writeListenerExecutor.execute(() -> {
             try {
-                writeListener.onWritePossible();
-            } catch (Exception e) {
-                writeListener.onError(e);
+                listener.onWritePossible();
+            } catch (Throwable t) {
+                notifyWriteError(t);
             }
         });
     }
 
+    private void notifyWriteError(Throwable cause) {
+        WriteListener listener = writeListener;
+        if (listener == null || !writeErrorNotified.compareAndSet(false, true)) {
+            return;
+        }
+        writeListenerExecutor.execute(() -> listener.onError(cause));
+    }
+
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        lock.lock();
+        checkNotRecycled();
+        if (writeListener == null && bufferedBytes() + len >= getBufferSize()) {
+            //这次写入会写满缓冲区并写出，在加锁前等待连接可写，避免其他线程关闭输出流时等待这个锁
+            sequencer.awaitWritable();
+        }
+        boolean locked = lockIfShared();
         try {
             checkClose();
-            // 这个byte[]数组会被重复使用，所以这里需要复制新的空间
-            ByteBuf appendedBuffer = ctx.alloc().buffer(len);
-            appendedBuffer.writeBytes(b, off, len);
-
-            buf = cumulator.cumulate(ctx.alloc(), buf, appendedBuffer);
+            // 这个byte[]数组会被重复使用，所以这里需要复制到缓冲区
+            ensureBuffer(len).writeBytes(b, off, len);
             if (buf.readableBytes() >= getBufferSize()) {
-                flush();
+                performFlush(true);
             }
         } finally {
-            lock.unlock();
+            if (locked) {
+                lock.unlock();
+            }
         }
     }
 
 
     @Override
     public void write(int b) throws IOException {
-        lock.lock();
+        checkNotRecycled();
+        if (writeListener == null && bufferedBytes() + 1 >= getBufferSize()) {
+            //与write(byte[], int, int)一样，只在这次写入会写满缓冲区时等待
+            sequencer.awaitWritable();
+        }
+        boolean locked = lockIfShared();
         try {
             checkClose();
-            buf.writeByte(b);
+            ensureBuffer(1).writeByte(b);
+            if (buf.readableBytes() >= getBufferSize()) {
+                performFlush(true);
+            }
         } finally {
-            lock.unlock();
+            if (locked) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 开始异步处理或设置了WriteListener后，其他线程(异步任务、回调、AsyncContext.complete())也可能写出或关闭，才需要加锁；
+     * 在此之前只有执行Servlet的线程访问输出流，异步任务在开始异步处理之后才提交，能看到之前的写入
+     *
+     * @return 是否加了锁，是的话调用方负责解锁
+     */
+    private boolean lockIfShared() {
+        if (writeListener == null && !servletResponse.isAsyncStarted()) {
+            return false;
+        }
+        lock.lock();
+        return true;
+    }
+
+    /**
+     * @return 能写入len字节的缓冲区，第一块按该路径的响应大小估计分配，之后的按缓冲区大小分配，不够时自动扩容
+     */
+    private ByteBuf ensureBuffer(int len) {
+        if (buf == null) {
+            int capacity = getBufferSize();
+            if (!hasCommit) {
+                sizeEstimate = servletResponse.responseSizeEstimate();
+                capacity = Math.min(sizeEstimate.capacity(), capacity);
+            }
+            buf = ctx.alloc().buffer(Math.max(len, capacity));
+        }
+        return buf;
+    }
+
+    /**
+     * 取出缓冲的数据交给pipeline，没有数据时返回null；第一块数据的大小记入该路径的响应大小估计
+     */
+    private ByteBuf takeBuffer() {
+        ByteBuf content = buf;
+        buf = null;
+        if (content == null) {
+            return null;
+        }
+        if (!content.isReadable()) {
+            content.release();
+            return null;
+        }
+        if (sizeEstimate != null) {
+            sizeEstimate.record(Math.min(content.readableBytes(), getBufferSize()));
+            sizeEstimate = null;
+        }
+        return content;
+    }
+
+    private void releaseBuffer() {
+        if (buf != null) {
+            buf.release();
+            buf = null;
         }
+    }
 
+    /**
+     * 写入前在加锁之外调用时只作为是否需要等待可写的估计，所以只读一次buf
+     */
+    private int bufferedBytes() {
+        ByteBuf current = buf;
+        return current == null ? 0 : current.readableBytes();
     }
 
 
     @Override
     public void flush() {
-        performFlush(true);
+        checkNotRecycled();
+        boolean locked = lockIfShared();
+        try {
+            performFlush(true);
+        } finally {
+            if (locked) {
+                lock.unlock();
+            }
+        }
     }
 
     private void performFlush(boolean flushNetty) {
-        lock.lock();
-        try {
-            hasCommit = true;
-            servletResponse.ensureResponseHeader(buf.readableBytes() > 0);
-            if (buf.readableBytes() == 0) {
-                return;
-            }
-            if (flushNetty) {
-                ctx.writeAndFlush(buf);
-            } else {
-                ctx.write(buf);
-            }
-            buf = Unpooled.EMPTY_BUFFER;
-        } finally {
-            lock.unlock();
+        hasCommit = true;
+        ByteBuf content = takeBuffer();
+        servletResponse.ensureResponseHeader(content != null);
+        if (content != null) {
+            writeOrdered(new DefaultHttpContent(content), false, flushNetty); //包装为HttpContent，压缩等HttpContentEncoder才会处理
         }
     }
 
@@ -132,40 +329,159 @@ public class HttpResponseOutputStream extends ServletOutputStream {
 
     @Override
     public void close() throws IOException {
-        lock.lock();
+        checkNotRecycled();
+        boolean locked = lockIfShared();
         try {
             if (closed) {
                 return;
             }
             closed = true;
-            performFlush(false);
-            ChannelFuture future = ctx.writeAndFlush(DefaultLastHttpContent.EMPTY_LAST_CONTENT);
+            if (!hasCommit) {
+                servletResponse.setContentLengthIfAbsent(bufferedBytes()); //整个响应体都在缓冲区中，不需要分块
+            }
+            hasCommit = true;
+            ByteBuf content = takeBuffer();
+            servletResponse.ensureResponseHeader(content != null);
+            //剩余数据和响应结束标记一起写出
+            ChannelFuture future = writeOrdered(content == null ? DefaultLastHttpContent.EMPTY_LAST_CONTENT
+                    : new DefaultLastHttpContent(content), true, true);
             if (!servletResponse.isKeepAlive()) {
                 future.addListener(ChannelFutureListener.CLOSE);//如果不是keep-alive，写完后关闭channel
             }
+            closeFuture = future;
         } finally {
-            buf = Unpooled.EMPTY_BUFFER;
-            lock.unlock();
+            releaseBuffer();
+            if (locked) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 直接把文件内容作为完整的响应体写出并结束响应，调用前需要设置好Content-Length
+     * 传输支持且pipeline中没有TLS、压缩等需要改写数据的Handler时，用DefaultFileRegion零拷贝(sendfile)写出，
+     * 否则用ChunkedFile分块读入内存后写出
+     *
+     * @param allowFileRegion 传输是否支持FileRegion
+     */
+    public void writeFileAndClose(File file, long position, long count, boolean allowFileRegion) throws IOException {
+        if (allowFileRegion && !hasContentTransformer()) {
+            writeBodyAndClose(new DefaultFileRegion(file, position, count));
+        } else {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            writeBodyAndClose(new HttpChunkedInput(new ChunkedFile(raf, position, count, CHUNK_SIZE)));
         }
     }
 
+    /**
+     * 把流中的count字节作为完整的响应体写出并结束响应，用于无法零拷贝的资源(如jar包中的文件)
+     */
+    public void writeStreamAndClose(InputStream in, long count) throws IOException {
+        writeBodyAndClose(new HttpChunkedInput(new ChunkedStream(ByteStreams.limit(in, count), CHUNK_SIZE)));
+    }
+
+    /**
+     * 把内存中的内容作为完整的响应体写出并结束响应，用于缓存的静态资源，content的引用交给该方法
+     */
+    public void writeContentAndClose(ByteBuf content) throws IOException {
+        writeBodyAndClose(content);
+    }
+
+    /**
+     * @return pipeline中是否有会改写响应数据的Handler，有的话不能用FileRegion绕过它们
+     */
+    private boolean hasContentTransformer() {
+        if (ctx.channel() instanceof Http2StreamChannel) {
+            return true; //HTTP/2的数据要封装为DATA帧
+        }
+        ChannelPipeline pipeline = ctx.pipeline();
+        if (pipeline.get(SslHandler.class) != null) {
+            return true;
+        }
+        HttpContentEncoder encoder = pipeline.get(HttpContentEncoder.class);
+        if (encoder instanceof ResponseCompressor) {
+            return ((ResponseCompressor) encoder).isCompressible(servletResponse.getContentType()); //不会被压缩的类型仍然可以零拷贝
+        }
+        return encoder != null;
+    }
+
+    private void writeBodyAndClose(Object body) throws IOException {
+        checkNotRecycled();
+        boolean locked = lockIfShared();
+        try {
+            if (closed) {
+                closeBody(body);
+                throw new ClientAbortException("user reset");
+            }
+            closed = true;
+            hasCommit = true;
+            servletResponse.ensureResponseHeader(true);
+            releaseBuffer(); //直接写出响应体时忽略已经写入缓冲区的数据
+            ChannelFuture future;
+            if (body instanceof ByteBuf) {
+                future = writeOrdered(new DefaultLastHttpContent((ByteBuf) body), true, true);
+            } else if (body instanceof FileRegion) {
+                writeOrdered(body, false, false);
+                future = writeOrdered(DefaultLastHttpContent.EMPTY_LAST_CONTENT, true, true);
+            } else {
+                //HttpChunkedInput最后会产生LastHttpContent
+                future = writeOrdered(body, true, true);
+                future.addListener(f -> {
+                    if (!f.isSuccess()) {
+                        closeBody(body);
+                    }
+                });
+            }
+            if (!servletResponse.isKeepAlive()) {
+                future.addListener(ChannelFutureListener.CLOSE);//如果不是keep-alive，写完后关闭channel
+            }
+            closeFuture = future;
+        } finally {
+            releaseBuffer();
+            if (locked) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 响应体没能交给ChunkedWriteHandler时自己关闭，FileRegion在写出失败时会被release
+     */
+    private static void closeBody(Object body) {
+        if (body instanceof ChunkedInput) {
+            try {
+                ((ChunkedInput<?>) body).close();
+            } catch (Exception ignore) {
+            }
+        } else {
+            ReferenceCountUtil.release(body);
+        }
+    }
+
+    /**
+     * 所有响应数据都通过ResponseSequencer写出，保证pipelining时按请求顺序响应
+     */
+    ChannelFuture writeOrdered(Object msg, boolean last, boolean flush) {
+        ChannelFuture future = sequencer.write(sequence, msg, last, flush);
+        if (writeListener != null) {
+            future.addListener(f -> {
+                if (!f.isSuccess()) {
+                    notifyWriteError(f.cause());
+                }
+            });
+        }
+        return future;
+    }
+
     void resetBuffer() {
         Preconditions.checkArgument(!hasCommit, "can not perform after commit");
-        buf.readerIndex(0);
-        buf.writerIndex(0);
+        if (buf != null) {
+            buf.clear();
+        }
     }
 
     int getBufferSize() {
-        if (outerBufferSize != null) {
-            return outerBufferSize;
-        }
-        int choosedBufferSize = buf.nioBufferCount();
-        if (choosedBufferSize < DEFAULT_BUFFER_SIZE) {
-            choosedBufferSize = DEFAULT_BUFFER_SIZE;
-        } else if (choosedBufferSize > MAX_BUFFER_SIZE) {
-            choosedBufferSize = MAX_BUFFER_SIZE;
-        }
-        return choosedBufferSize;
+        return outerBufferSize != null ? outerBufferSize : DEFAULT_BUFFER_SIZE;
     }
 
     void setBufferSize(int size) {
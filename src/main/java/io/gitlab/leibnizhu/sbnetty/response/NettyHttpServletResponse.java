@@ -1,52 +1,48 @@
 package io.gitlab.leibnizhu.sbnetty.response;
 
-import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.net.MediaType;
 import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
 import io.gitlab.leibnizhu.sbnetty.request.NettyHttpServletRequest;
 import io.gitlab.leibnizhu.sbnetty.session.NettyHttpSession;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import io.netty.util.AsciiString;
-import io.netty.util.concurrent.FastThreadLocal;
 
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Http响应对象
+ * 启用对象回收时随RequestSession一起重用：每个请求开始时init()，响应写完后recycle()恢复初始状态，
+ * 响应头对象也会重用，所以要等到最后一次写出完成后才能回收
  */
 public class NettyHttpServletResponse implements HttpServletResponse {
     /**
-     * SimpleDateFormat非线程安全，为了节省内存提高效率，把他放在ThreadLocal里
-     * 用于设置HTTP响应头的时间信息
+     * 编码好的Content-Type响应头，contentType->characterEncoding->响应头的值
+     * 应用用到的组合很少，超过上限后不再缓存，避免被任意的Content-Type撑大
      */
-    private static final FastThreadLocal<DateFormat> FORMAT = new FastThreadLocal<DateFormat>() {
-        @Override
-        protected DateFormat initialValue() {
-            DateFormat df = new SimpleDateFormat("EEE, dd-MMM-yyyy HH:mm:ss z", Locale.ENGLISH);
-            df.setTimeZone(TimeZone.getTimeZone("GMT"));
-            return df;
-        }
-    };
+    private static final ConcurrentMap<String, ConcurrentMap<String, AsciiString>> CONTENT_TYPE_HEADERS = new ConcurrentHashMap<>();
+    private static final int MAX_CACHED_CONTENT_TYPES = 64;
+    private static final String NO_CHARSET = "";
 
     private static final Locale DEFAULT_LOCALE = Locale.getDefault();
     private static final String DEFAULT_CHARACTER_ENCODING = Charsets.UTF_8.name();
 
-    private final NettyContext servletContext;
+    private NettyContext servletContext;
 
     private final NettyHttpServletRequest httpServletRequest;
 
@@ -54,26 +50,85 @@ public class NettyHttpServletResponse implements HttpServletResponse {
 
     private final HttpResponseOutputStream outputStream;
     private boolean usingOutputStream;
-    private PrintWriter writer;
+    private ResponseWriter writer;
+    private ResponseWriter spareWriter; //回收时保留的Writer，其中的缓冲区较大，下一个请求调用getWriter()时重用
     private final List<Cookie> cookies;
     private String contentType;
     private String characterEncoding = DEFAULT_CHARACTER_ENCODING;
     private Locale locale;
     private final AtomicBoolean hasWriteHeader = new AtomicBoolean(false);
-    private final ChannelHandlerContext ctx;
+    private volatile Throwable recycledAt; //回收调试模式下回收时的调用栈，之后再使用时抛出异常
 
 
-    public NettyHttpServletResponse(ChannelHandlerContext ctx, NettyContext servletContext, NettyHttpServletRequest httpServletRequest) {
-        this.ctx = ctx;
-        this.servletContext = servletContext;
+    public NettyHttpServletResponse(NettyHttpServletRequest httpServletRequest) {
         this.httpServletRequest = httpServletRequest;
-        this.outputStream = new HttpResponseOutputStream(ctx, this);
+        this.outputStream = new HttpResponseOutputStream(this);
         this.cookies = new ArrayList<>();
-
         this.response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, false);
+    }
+
+    /**
+     * 开始处理一个请求时调用，需在请求对象init()之后
+     */
+    public void init(ChannelHandlerContext ctx, NettyContext servletContext, ResponseSequencer sequencer, int sequence) {
+        this.servletContext = servletContext;
+        outputStream.init(ctx, sequencer, sequence);
         HttpUtil.setKeepAlive(response, httpServletRequest.isKeepAlive());
     }
 
+    /**
+     * 响应写完(getCloseFuture()完成)后调用，恢复到新建时的状态以便下一个请求重用
+     */
+    public void recycle() {
+        //checkError()为false说明没有发生过写出异常，缓冲区中没有残留的数据；
+        //Servlet关闭过的Writer不能重用，关闭后的写入只会设置错误标志，下一个请求的响应体会丢失
+        if (hasWriter() && !writer.isClosed() && !writer.checkError()) {
+            spareWriter = writer;
+        }
+        outputStream.recycle();
+        servletContext = null;
+        response.setStatus(HttpResponseStatus.OK);
+        response.headers().clear();
+        usingOutputStream = false;
+        writer = null;
+        cookies.clear();
+        contentType = null;
+        characterEncoding = DEFAULT_CHARACTER_ENCODING;
+        locale = null;
+        hasWriteHeader.set(false);
+        useChunked = false;
+    }
+
+    /**
+     * 回收调试模式下代替重用，之后再调用Servlet API都会抛出IllegalStateException
+     *
+     * @param recycledAt 回收时的调用栈
+     */
+    public void markRecycled(Throwable recycledAt) {
+        this.recycledAt = recycledAt;
+        outputStream.markRecycled(recycledAt);
+    }
+
+    private void checkNotRecycled() {
+        if (recycledAt != null) {
+            throw new IllegalStateException("Response is used after the request has been recycled", recycledAt);
+        }
+    }
+
+    /**
+     * @return 响应最后一次写出的结果，输出流还没有关闭时返回null
+     */
+    public ChannelFuture getCloseFuture() {
+        return outputStream.closeFuture();
+    }
+
+    /**
+     * @return 是否以非阻塞方式(WriteListener)写出过响应
+     */
+    public boolean hasWriteListener() {
+        return outputStream.hasWriteListener();
+    }
+
 
 
     private boolean useChunked = false;
@@ -82,7 +137,11 @@ public class NettyHttpServletResponse implements HttpServletResponse {
         if (!hasWriteHeader.compareAndSet(false, true)) {
             return;
         }
-        if (!HttpUtil.isContentLengthSet(response)) {
+        if (isBodyless(response.status().code())) {
+            //RFC 9110 8.6：1xx、204不能有Content-Length，304也不写出，没有响应体也就不需要分块
+            response.headers().remove(HttpHeaderNames.CONTENT_LENGTH);
+            response.headers().remove(HttpHeaderNames.TRANSFER_ENCODING);
+        } else if (!HttpUtil.isContentLengthSet(response)) {
             if (hasBody) {
                 // 在开始写body的时候，都还没有contentLength出现，那么这个请求应该是trunk的
                 response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
@@ -93,12 +152,10 @@ public class NettyHttpServletResponse implements HttpServletResponse {
         }
         HttpHeaders headers = response.headers();
         if (null != contentType) {
-            String value = null == characterEncoding ? contentType : contentType + "; charset=" + characterEncoding; //Content Type 响应头的内容
-            headers.set(HttpHeaderNames.CONTENT_TYPE, value);
+            headers.set(HttpHeaderNames.CONTENT_TYPE, contentTypeHeader(contentType, characterEncoding)); //Content Type 响应头的内容
         }
-        CharSequence date = getFormattedDate();
-        headers.set(HttpHeaderNames.DATE, date); // 时间日期响应头
-        headers.set(HttpHeaderNames.SERVER, servletContext.getServerInfo()); //服务器信息响应头
+        headers.set(HttpHeaderNames.DATE, servletContext.getDateHeaderValue()); // 时间日期响应头，每秒刷新一次
+        headers.set(HttpHeaderNames.SERVER, servletContext.getServerInfoHeader()); //服务器信息响应头
 
 
         HttpSession session = httpServletRequest.getSession(false);
@@ -118,7 +175,28 @@ public class NettyHttpServletResponse implements HttpServletResponse {
             if (cookie.getDomain() != null) sb.append("; domain=").append(cookie.getDomain());
             headers.add(HttpHeaderNames.SET_COOKIE, sb.toString());
         }
-        ctx.write(response);
+        outputStream.writeOrdered(response, false, false);
+    }
+
+    /**
+     * @return 该请求路径的响应大小估计，输出流据此分配第一个缓冲区
+     */
+    ResponseSizeEstimator.Estimate responseSizeEstimate() {
+        return servletContext.getResponseSizeEstimator().forPath(httpServletRequest.getRequestURI());
+    }
+
+    /**
+     * @return 是否开始了异步处理，之后响应可能由其他线程写出
+     */
+    boolean isAsyncStarted() {
+        return httpServletRequest.isAsyncStarted();
+    }
+
+    /**
+     * @return 执行该请求Servlet的Executor，WriteListener的回调也在这里执行
+     */
+    Executor getDispatchExecutor() {
+        return httpServletRequest.getDispatchExecutor();
     }
 
     public boolean isKeepAlive() {
@@ -126,25 +204,39 @@ public class NettyHttpServletResponse implements HttpServletResponse {
     }
 
     /**
-     * @return 线程安全的获取当前时间格式化后的字符串
+     * @return Content-Type响应头的值，常用组合只编码一次
      */
-    @VisibleForTesting
-    private CharSequence getFormattedDate() {
-        return new AsciiString(FORMAT.get().format(new Date()));
+    private static CharSequence contentTypeHeader(String contentType, String characterEncoding) {
+        String charsetKey = null == characterEncoding ? NO_CHARSET : characterEncoding;
+        ConcurrentMap<String, AsciiString> byCharset = CONTENT_TYPE_HEADERS.get(contentType);
+        AsciiString value = byCharset == null ? null : byCharset.get(charsetKey);
+        if (value != null) {
+            return value;
+        }
+        String header = null == characterEncoding ? contentType : contentType + "; charset=" + characterEncoding;
+        if (CONTENT_TYPE_HEADERS.size() >= MAX_CACHED_CONTENT_TYPES || (byCharset != null && byCharset.size() >= MAX_CACHED_CONTENT_TYPES)) {
+            return header;
+        }
+        value = AsciiString.cached(header);
+        CONTENT_TYPE_HEADERS.computeIfAbsent(contentType, type -> new ConcurrentHashMap<>()).putIfAbsent(charsetKey, value);
+        return value;
     }
 
     @Override
     public void addCookie(Cookie cookie) {
+        checkNotRecycled();
         cookies.add(cookie);
     }
 
     @Override
     public boolean containsHeader(String name) {
+        checkNotRecycled();
         return response.headers().contains(name);
     }
 
     @Override
     public String encodeURL(String url) {
+        checkNotRecycled();
         if (!httpServletRequest.isRequestedSessionIdFromCookie()) {
             //来自Cookie的Session ID,则客户端肯定支持Cookie，无需重写URL
             return url;
@@ -171,18 +263,21 @@ public class NettyHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void sendError(int sc, String msg) throws IOException {
+        checkNotRecycled();
         checkNotCommitted();
         response.setStatus(new HttpResponseStatus(sc, msg));
     }
 
     @Override
     public void sendError(int sc) throws IOException {
+        checkNotRecycled();
         checkNotCommitted();
         response.setStatus(HttpResponseStatus.valueOf(sc));
     }
 
     @Override
     public void sendRedirect(String location) throws IOException {
+        checkNotRecycled();
         checkNotCommitted();
         response.setStatus(HttpResponseStatus.FOUND);
         response.headers().set("Location", location);
@@ -190,16 +285,19 @@ public class NettyHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void setDateHeader(String name, long date) {
-        response.headers().set(name, date);
+        checkNotRecycled();
+        response.headers().set(name, new Date(date)); //按RFC 1123格式化
     }
 
     @Override
     public void addDateHeader(String name, long date) {
-        response.headers().add(name, date);
+        checkNotRecycled();
+        response.headers().add(name, new Date(date));
     }
 
     @Override
     public void setHeader(String name, String value) {
+        checkNotRecycled();
         if (name == null || name.isEmpty() || value == null) {
             return;
         }
@@ -225,6 +323,7 @@ public class NettyHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void addHeader(String name, String value) {
+        checkNotRecycled();
         if (name == null || name.isEmpty() || value == null) {
             return;
         }
@@ -239,6 +338,7 @@ public class NettyHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void setIntHeader(String name, int value) {
+        checkNotRecycled();
         if (name == null || name.isEmpty()) {
             return;
         }
@@ -250,6 +350,7 @@ public class NettyHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void addIntHeader(String name, int value) {
+        checkNotRecycled();
         if (name == null || name.isEmpty()) {
             return;
         }
@@ -261,6 +362,7 @@ public class NettyHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void setContentType(String type) {
+        checkNotRecycled();
         if (isCommitted()) {
             return;
         }
@@ -286,32 +388,38 @@ public class NettyHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void setStatus(int sc) {
+        checkNotRecycled();
         response.setStatus(HttpResponseStatus.valueOf(sc));
     }
 
     @Override
     @Deprecated
     public void setStatus(int sc, String sm) {
+        checkNotRecycled();
         response.setStatus(new HttpResponseStatus(sc, sm));
     }
 
     @Override
     public int getStatus() {
+        checkNotRecycled();
         return response.status().code();
     }
 
     @Override
     public String getHeader(String name) {
+        checkNotRecycled();
         return response.headers().get(name);
     }
 
     @Override
     public Collection<String> getHeaders(String name) {
+        checkNotRecycled();
         return response.headers().getAll(name);
     }
 
     @Override
     public Collection<String> getHeaderNames() {
+        checkNotRecycled();
         return response.headers().names();
     }
 
@@ -323,17 +431,30 @@ public class NettyHttpServletResponse implements HttpServletResponse {
     //Writer和OutputStream不能同时使用
 
     @Override
-    public ServletOutputStream getOutputStream() {
+    public HttpResponseOutputStream getOutputStream() {
+        checkNotRecycled();
         checkState(!hasWriter(), "getWriter has already been called for this response");
         usingOutputStream = true;
         return outputStream;
     }
 
+    /**
+     * 请求处理结束时调用，先把Writer中缓冲的内容写入输出流，再关闭输出流结束响应
+     */
+    public void closeOutput() throws IOException {
+        if (hasWriter()) {
+            writer.flush();
+        }
+        outputStream.close();
+    }
+
     @Override
     public PrintWriter getWriter() {
+        checkNotRecycled();
         checkState(!usingOutputStream, "getOutputStream has already been called for this response");
         if (!hasWriter()) {
-            writer = new PrintWriter(outputStream);
+            writer = null != spareWriter ? spareWriter : new ResponseWriter(outputStream);
+            spareWriter = null;
         }
         return writer;
     }
@@ -352,16 +473,37 @@ public class NettyHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void setContentLength(int len) {
+        checkNotRecycled();
         HttpUtil.setContentLength(response, len);
     }
 
     @Override
     public void setContentLengthLong(long len) {
+        checkNotRecycled();
         HttpUtil.setContentLength(response, len);
     }
 
+    /**
+     * @return 该状态码的响应是否总是没有响应体
+     */
+    private static boolean isBodyless(int status) {
+        return (status >= 100 && status < 200) || status == HttpServletResponse.SC_NO_CONTENT
+                || status == HttpServletResponse.SC_NOT_MODIFIED;
+    }
+
+    /**
+     * 响应头还没有写出且没有设置Content-Length时设置
+     * 用于输出流关闭时整个响应体都还在缓冲区中的情况，这样小响应不需要分块，压缩时也能按长度判断
+     */
+    void setContentLengthIfAbsent(long len) {
+        if (!hasWriteHeader.get() && !HttpUtil.isContentLengthSet(response)) {
+            HttpUtil.setContentLength(response, len);
+        }
+    }
+
     @Override
     public void setBufferSize(int size) {
+        checkNotRecycled();
         outputStream.setBufferSize(size);
     }
 
@@ -372,16 +514,19 @@ public class NettyHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void flushBuffer() {
+        checkNotRecycled();
         outputStream.flush();
     }
 
     @Override
     public void resetBuffer() {
+        checkNotRecycled();
         outputStream.resetBuffer();
     }
 
     @Override
     public boolean isCommitted() {
+        checkNotRecycled();
         return outputStream.isHasCommit();
     }
 
@@ -393,6 +538,7 @@ public class NettyHttpServletResponse implements HttpServletResponse {
 
     @Override
     public void reset() {
+        checkNotRecycled();
         resetBuffer();
         usingOutputStream = false;
         writer = null;
@@ -407,4 +553,26 @@ public class NettyHttpServletResponse implements HttpServletResponse {
     public Locale getLocale() {
         return null == locale ? DEFAULT_LOCALE : locale;
     }
+
+    /**
+     * 记录是否被关闭过的PrintWriter，回收时只保留没有关闭的
+     * PrintWriter关闭后checkError()仍然返回false，无法据此判断
+     */
+    private static final class ResponseWriter extends PrintWriter {
+        private boolean closed;
+
+        ResponseWriter(HttpResponseOutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            super.close();
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+    }
 }
@@ -0,0 +1,402 @@
+package io.gitlab.leibnizhu.sbnetty.response;
+
+import io.gitlab.leibnizhu.sbnetty.core.AutoReadGate;
+import io.gitlab.leibnizhu.sbnetty.core.ClientAbortException;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContainerMetrics;
+import io.gitlab.leibnizhu.sbnetty.core.RequestSession;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP/1.1 pipelining的响应排序器，每个连接一个
+ * 同一连接上的请求按到达顺序分配序号，不同请求的Servlet可能在不同线程并发执行，
+ * 所有响应数据都经过这里写出：轮到的序号直接写出，其余的暂存在重排缓冲区，前一个响应结束后再按序写出
+ * 未完成的请求数达到上限时通过AutoReadGate暂停读取新请求，直到有响应结束；
+ * 关闭autoRead前已经解码出的请求暂不分发给Servlet，同样等到有响应结束
+ * 非阻塞写出(WriteListener)时，只有正在写出的响应在Channel可写时才算可写，其余响应需要等待轮到自己并且Channel可写，
+ * 通过notifyWhenWritable()登记的回调在此时执行；
+ * 阻塞写出的Servlet线程通过awaitWritable()只等待Channel可写，没轮到的响应直接写入重排缓冲区，
+ * 不等待前面的响应结束，否则前面的响应要在同一个线程上继续处理(如AsyncContext.start())时会互相等待
+ * 其他线程提交、尚未在IO线程中执行的写操作同样计入写缓冲高水位
+ * 除write()/isWritable()/notifyWhenWritable()/awaitWritable()外的方法及所有字段都只在IO线程中访问
+ *
+ * @author Leibniz
+ */
+public class ResponseSequencer extends ChannelInboundHandlerAdapter {
+    private final int maxInFlightRequests;
+    private final long writeTimeoutMillis;
+    private final AutoReadGate readGate;
+    private final NettyContainerMetrics metrics;
+    private ChannelHandlerContext ctx;
+
+    private int nextRequestSequence; //下一个请求的序号
+    private volatile int writingSequence; //当前可以写出的响应序号，与nextRequestSequence之差即未完成的请求数
+    private boolean closed;
+    private final IntObjectMap<Queue<PendingWrite>> pendingWrites = new IntObjectHashMap<>(); //序号 -> 未轮到的写操作
+    private final Queue<RequestSession> deferredRequests = new ArrayDeque<>(); //超过上限暂不分发的请求
+    private final IntObjectMap<WritabilityListener> writabilityListeners = new IntObjectHashMap<>(); //序号 -> 等待可写的回调
+    private final Queue<WritabilityListener> channelWaiters = new ArrayDeque<>(); //阻塞写出时等待Channel可写的线程
+    private final AtomicLong queuedBytes = new AtomicLong(); //其他线程提交、还在IO线程任务队列中的数据量
+
+    /**
+     * @param maxInFlightRequests 未完成请求数上限
+     * @param writeTimeoutMillis  阻塞写出时等待连接可写的超时时间，不大于0表示一直等待
+     */
+    public ResponseSequencer(int maxInFlightRequests, long writeTimeoutMillis, AutoReadGate readGate, NettyContainerMetrics metrics) {
+        this.maxInFlightRequests = Math.max(1, maxInFlightRequests);
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.readGate = readGate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    /**
+     * 读入新请求时调用，分配序号，未完成请求数达到上限时停止读取
+     *
+     * @return 请求在当前连接上的序号
+     */
+    public int nextSequence() {
+        int sequence = nextRequestSequence++;
+        if (getInFlightRequests() >= maxInFlightRequests) {
+            readGate.suspend(AutoReadGate.PIPELINE_LIMIT);
+        }
+        return sequence;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof RequestSession && !canDispatch((RequestSession) msg)) {
+            deferredRequests.add((RequestSession) msg);
+        } else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    private boolean canDispatch(RequestSession session) {
+        return session.getSequence() - writingSequence < maxInFlightRequests;
+    }
+
+    /**
+     * 按请求顺序写出响应数据，可以在任意线程调用
+     *
+     * @param sequence 请求序号
+     * @param msg      要写出的数据
+     * @param last     是否为该响应的最后一次写出
+     * @param flush    写出后是否flush
+     * @return 实际写出的结果
+     */
+    public ChannelFuture write(int sequence, Object msg, boolean last, boolean flush) {
+        ChannelPromise promise = ctx.newPromise();
+        if (ctx.executor().inEventLoop()) {
+            write0(new PendingWrite(sequence, msg, last, flush, promise));
+        } else {
+            PendingWrite write = new PendingWrite(sequence, msg, last, flush, promise);
+            long size = sizeOf(msg);
+            queuedBytes.addAndGet(size);
+            try {
+                ctx.executor().execute(() -> {
+                    queuedBytes.addAndGet(-size);
+                    write0(write);
+                });
+            } catch (Throwable t) {
+                //IO线程已关闭
+                queuedBytes.addAndGet(-size);
+                write.fail(t);
+            }
+        }
+        return promise;
+    }
+
+    private static long sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        return 0;
+    }
+
+    /**
+     * @return 指定序号的响应当前是否可以写出而不会堆积在缓冲区中
+     */
+    public boolean isWritable(int sequence) {
+        return sequence == writingSequence && isChannelWritable();
+    }
+
+    /**
+     * @return Channel及IO线程任务队列中待写出的数据是否都没有超过写缓冲高水位，不管轮到哪个响应
+     */
+    private boolean isChannelWritable() {
+        return ctx.channel().isWritable() && queuedBytes.get() < ctx.channel().config().getWriteBufferHighWaterMark();
+    }
+
+    /**
+     * 指定序号的响应可写时(可能立即)在IO线程中回调，只回调一次；连接关闭时回调closed()
+     * 同一序号只保留最后一次登记的回调
+     */
+    void notifyWhenWritable(int sequence, WritabilityListener listener) {
+        if (ctx.executor().inEventLoop()) {
+            notifyWhenWritable0(sequence, listener);
+        } else {
+            try {
+                ctx.executor().execute(() -> notifyWhenWritable0(sequence, listener));
+            } catch (Throwable t) {
+                listener.closed(t);
+            }
+        }
+    }
+
+    /**
+     * 阻塞Servlet线程直到Channel可写，用于阻塞写出时的背压
+     * 没轮到的响应不等待前面的响应结束，写出的数据进入重排缓冲区，所以超时只计算等待Channel可写的时间
+     * 在IO线程中调用时(event-loop分发模式)不能阻塞，直接返回
+     *
+     * @throws ClientAbortException 等待超时(同时关闭连接)、连接关闭或线程被中断
+     */
+    public void awaitWritable() throws IOException {
+        if (isChannelWritable() || ctx.executor().inEventLoop()) {
+            return;
+        }
+        WritabilityWaiter waiter = new WritabilityWaiter();
+        try {
+            ctx.executor().execute(() -> notifyWhenChannelWritable0(waiter));
+        } catch (Throwable t) {
+            throw new ClientAbortException("Connection closed");
+        }
+        metrics.writeBlocked();
+        long start = System.nanoTime();
+        boolean timeout = false;
+        try {
+            timeout = !waiter.await(writeTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientAbortException("Interrupted while waiting for the connection to become writable");
+        } finally {
+            metrics.writeUnblocked(System.nanoTime() - start, timeout);
+        }
+        if (timeout) {
+            //客户端长时间不读取，响应已无法正常完成
+            ctx.channel().close();
+            throw new ClientAbortException("Timed out after " + writeTimeoutMillis + "ms waiting for the connection to become writable");
+        }
+        if (waiter.cause != null) {
+            throw new ClientAbortException("Connection closed");
+        }
+    }
+
+    private void notifyWhenWritable0(int sequence, WritabilityListener listener) {
+        if (closed) {
+            listener.closed(new ClosedChannelException());
+        } else if (isWritable(sequence)) {
+            listener.writable();
+        } else {
+            writabilityListeners.put(sequence, listener);
+        }
+    }
+
+    private void notifyWhenChannelWritable0(WritabilityListener listener) {
+        if (closed) {
+            listener.closed(new ClosedChannelException());
+        } else if (isChannelWritable()) {
+            listener.writable();
+        } else {
+            channelWaiters.add(listener);
+        }
+    }
+
+    private void fireWritable() {
+        if (!channelWaiters.isEmpty() && isChannelWritable()) {
+            for (WritabilityListener waiter; (waiter = channelWaiters.poll()) != null; ) {
+                waiter.writable();
+            }
+        }
+        if (!writabilityListeners.isEmpty() && isWritable(writingSequence)) {
+            WritabilityListener listener = writabilityListeners.remove(writingSequence);
+            if (listener != null) {
+                listener.writable();
+            }
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        fireWritable();
+        super.channelWritabilityChanged(ctx);
+    }
+
+    private void write0(PendingWrite write) {
+        if (closed) {
+            write.fail(new ClosedChannelException());
+        } else if (write.sequence != writingSequence) {
+            Queue<PendingWrite> queue = pendingWrites.get(write.sequence);
+            if (queue == null) {
+                queue = new ArrayDeque<>(4);
+                pendingWrites.put(write.sequence, queue);
+            }
+            queue.add(write);
+            //任务队列中的数据减少后可能重新可写
+            fireWritable();
+        } else {
+            boolean flush = write.flush;
+            boolean last = doWrite(write);
+            //当前响应结束，依次写出已经在缓冲区中的后续响应
+            while (last) {
+                Queue<PendingWrite> queue = pendingWrites.remove(writingSequence);
+                if (queue == null) {
+                    break;
+                }
+                last = false;
+                for (PendingWrite pending; !last && (pending = queue.poll()) != null; ) {
+                    flush |= pending.flush;
+                    last = doWrite(pending);
+                }
+            }
+            if (flush) {
+                ctx.flush();
+            }
+            if (write.last) {
+                resumeRequests();
+            } else {
+                //任务队列中的数据减少后可能重新可写
+                fireWritable();
+            }
+        }
+    }
+
+    private boolean doWrite(PendingWrite write) {
+        ctx.write(write.msg, write.promise);
+        if (write.last) {
+            writingSequence++;
+        }
+        return write.last;
+    }
+
+    /**
+     * 有响应结束后，通知下一个响应可写，分发暂缓的请求，并在未完成请求数低于上限时恢复读取
+     */
+    private void resumeRequests() {
+        fireWritable();
+        while (!deferredRequests.isEmpty() && canDispatch(deferredRequests.peek())) {
+            ctx.fireChannelRead(deferredRequests.poll());
+        }
+        if (getInFlightRequests() < maxInFlightRequests && readGate.isSuspended(AutoReadGate.PIPELINE_LIMIT)) {
+            readGate.resume(AutoReadGate.PIPELINE_LIMIT);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        releasePending();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        releasePending();
+    }
+
+    private void releasePending() {
+        closed = true;
+        for (RequestSession session; (session = deferredRequests.poll()) != null; ) {
+            session.destroy();
+        }
+        if (pendingWrites.isEmpty() && writabilityListeners.isEmpty() && channelWaiters.isEmpty()) {
+            return;
+        }
+        ClosedChannelException cause = new ClosedChannelException();
+        for (WritabilityListener listener : writabilityListeners.values()) {
+            listener.closed(cause);
+        }
+        writabilityListeners.clear();
+        for (WritabilityListener waiter; (waiter = channelWaiters.poll()) != null; ) {
+            waiter.closed(cause);
+        }
+        for (Queue<PendingWrite> queue : pendingWrites.values()) {
+            for (PendingWrite pending; (pending = queue.poll()) != null; ) {
+                pending.fail(cause);
+            }
+        }
+        pendingWrites.clear();
+    }
+
+    /**
+     * @return 已读入但响应未结束的请求数
+     */
+    public int getInFlightRequests() {
+        return nextRequestSequence - writingSequence;
+    }
+
+    /**
+     * 等待响应可写的回调，在IO线程中执行，不能阻塞
+     */
+    interface WritabilityListener {
+        void writable();
+
+        void closed(Throwable cause);
+    }
+
+    private static final class WritabilityWaiter implements WritabilityListener {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile Throwable cause;
+
+        @Override
+        public void writable() {
+            latch.countDown();
+        }
+
+        @Override
+        public void closed(Throwable cause) {
+            this.cause = cause;
+            latch.countDown();
+        }
+
+        private boolean await(long timeoutMillis) throws InterruptedException {
+            if (timeoutMillis <= 0) {
+                latch.await();
+                return true;
+            }
+            return latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static final class PendingWrite {
+        private final int sequence;
+        private final Object msg;
+        private final boolean last;
+        private final boolean flush;
+        private final ChannelPromise promise;
+
+        private PendingWrite(int sequence, Object msg, boolean last, boolean flush, ChannelPromise promise) {
+            this.sequence = sequence;
+            this.msg = msg;
+            this.last = last;
+            this.flush = flush;
+            this.promise = promise;
+        }
+
+        private void fail(Throwable cause) {
+            ReferenceCountUtil.release(msg);
+            promise.tryFailure(cause);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package io.gitlab.leibnizhu.sbnetty.response;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 按请求路径估计响应体第一个缓冲区需要的大小，输出流据此分配缓冲区：小响应一次分配刚好够用，不用扩容也不多占内存
+ * 思路同Netty的AdaptiveRecvByteBufAllocator：实际大小超过估计时立即调大，偏小时每次只向实际大小靠近一部分
+ * 只估计第一个缓冲区，超过缓冲区大小(Servlet的getBufferSize())的响应按缓冲区大小记录
+ * 记录的路径数有上限，之后的新路径(如带ID的REST路径)共用一个估计
+ *
+ * @author Leibniz
+ */
+public final class ResponseSizeEstimator {
+    private static final int MIN_CAPACITY = 64;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_ENDPOINTS = 256;
+    private static final int SHRINK_SHIFT = 3; //调小时每次靠近差值的1/8
+
+    private final ConcurrentMap<String, Estimate> endpoints = new ConcurrentHashMap<>();
+    private final Estimate overflow = new Estimate(); //路径数达到上限后共用
+
+    /**
+     * @param path 不带查询字符串的请求路径
+     */
+    Estimate forPath(String path) {
+        Estimate estimate = endpoints.get(path);
+        if (estimate != null) {
+            return estimate;
+        }
+        if (endpoints.size() >= MAX_ENDPOINTS) {
+            return overflow;
+        }
+        return endpoints.computeIfAbsent(path, p -> new Estimate());
+    }
+
+    /**
+     * 一个路径的估计值，多个线程同时记录时可能丢失个别样本，不影响估计的作用，所以不加锁
+     */
+    static final class Estimate {
+        private volatile int capacity = INITIAL_CAPACITY;
+
+        int capacity() {
+            return capacity;
+        }
+
+        void record(int size) {
+            int current = capacity;
+            if (size >= current) {
+                capacity = size;
+            } else {
+                capacity = Math.max(MIN_CAPACITY, current - ((current - size) >> SHRINK_SHIFT));
+            }
+        }
+    }
+}
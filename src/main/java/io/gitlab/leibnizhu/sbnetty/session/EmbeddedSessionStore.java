@@ -0,0 +1,97 @@
+package io.gitlab.leibnizhu.sbnetty.session;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的键值存储替身，行为与KeyValueSessionStore对接的外部存储一致(数据经过复制、键按TTL过期)，
+ * 用于测试多个容器共用一个存储、不需要粘性路由的场景，不应用于生产
+ *
+ * @author Leibniz
+ */
+public class EmbeddedSessionStore extends KeyValueSessionStore {
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder saveBatches = new LongAdder();
+
+    public EmbeddedSessionStore() {
+        super("sbnetty:session:");
+    }
+
+    @Override
+    public void save(List<SessionDelta> deltas) {
+        saveBatches.increment();
+        super.save(deltas);
+    }
+
+    @Override
+    protected Map<String, byte[]> getAll(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expired(System.currentTimeMillis())) {
+            entries.remove(key, entry);
+            return null;
+        }
+        synchronized (entry) {
+            return copy(entry.fields);
+        }
+    }
+
+    @Override
+    protected void putAll(String key, Map<String, byte[]> fields, int ttlSeconds) {
+        Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+        synchronized (entry) {
+            entry.fields.putAll(copy(fields));
+            entry.expireAt = ttlSeconds <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + ttlSeconds * 1000L;
+        }
+    }
+
+    @Override
+    protected void removeFields(String key, Iterable<String> fields) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            synchronized (entry) {
+                for (String field : fields) {
+                    entry.fields.remove(field);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void delete(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * @return 调用save()的次数，即写回的批数
+     */
+    public long getSaveBatches() {
+        return saveBatches.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static Map<String, byte[]> copy(Map<String, byte[]> fields) {
+        Map<String, byte[]> copy = new HashMap<>(fields.size() * 2);
+        for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+            copy.put(field.getKey(), field.getValue().clone());
+        }
+        return copy;
+    }
+
+    private static final class Entry {
+        private final Map<String, byte[]> fields = new HashMap<>();
+        private volatile long expireAt = Long.MAX_VALUE;
+
+        private boolean expired(long now) {
+            return now >= expireAt;
+        }
+    }
+}
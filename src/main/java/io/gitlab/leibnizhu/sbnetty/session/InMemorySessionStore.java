@@ -0,0 +1,25 @@
+package io.gitlab.leibnizhu.sbnetty.session;
+
+import java.util.List;
+
+/**
+ * 默认的Session存储：Session只保存在本实例NettySessionManager的Map中，不序列化也不写回，
+ * 多实例部署时需要粘性路由
+ *
+ * @author Leibniz
+ */
+public final class InMemorySessionStore implements SessionStore {
+    @Override
+    public StoredSession load(String id) {
+        return null;
+    }
+
+    @Override
+    public void save(List<SessionDelta> deltas) {
+    }
+
+    @Override
+    public boolean isRemote() {
+        return false;
+    }
+}
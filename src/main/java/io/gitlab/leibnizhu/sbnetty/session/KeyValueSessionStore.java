@@ -0,0 +1,86 @@
+package io.gitlab.leibnizhu.sbnetty.session;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Redis、Hazelcast等键值存储的适配基类：每个Session保存为一个键下的Hash(字段->字节数组)，键的过期时间即Session的超时时间
+ * 子类只需实现对单个键的4种操作，分别对应Redis的HGETALL、HSET+EXPIRE、HDEL、DEL，或Hazelcast IMap中以Map为值的对应操作
+ * 元数据保存在以#开头的字段中，属性保存在以"a."开头的字段中；默认逐个执行，需要管道/批量操作时子类覆盖save()
+ *
+ * @author Leibniz
+ */
+public abstract class KeyValueSessionStore implements SessionStore {
+    private static final String CREATION_TIME = "#creationTime";
+    private static final String LAST_ACCESSED_TIME = "#lastAccessedTime";
+    private static final String MAX_INACTIVE_INTERVAL = "#maxInactiveInterval";
+    private static final String ATTRIBUTE_PREFIX = "a.";
+
+    private final String keyPrefix;
+
+    protected KeyValueSessionStore(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * @return 键下的所有字段，键不存在(或已过期)时返回null或空Map
+     */
+    protected abstract Map<String, byte[]> getAll(String key);
+
+    /**
+     * 写入字段(已有的覆盖)并设置键的过期时间
+     *
+     * @param ttlSeconds 过期秒数，不大于0时不过期
+     */
+    protected abstract void putAll(String key, Map<String, byte[]> fields, int ttlSeconds);
+
+    protected abstract void removeFields(String key, Iterable<String> fields);
+
+    protected abstract void delete(String key);
+
+    @Override
+    public StoredSession load(String id) {
+        Map<String, byte[]> fields = getAll(keyPrefix + id);
+        if (fields == null || !fields.containsKey(CREATION_TIME)) {
+            return null;
+        }
+        Map<String, byte[]> attributes = new HashMap<>();
+        for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+            if (field.getKey().startsWith(ATTRIBUTE_PREFIX)) {
+                attributes.put(field.getKey().substring(ATTRIBUTE_PREFIX.length()), field.getValue());
+            }
+        }
+        return new StoredSession(id, ByteBuffer.wrap(fields.get(CREATION_TIME)).getLong(),
+                ByteBuffer.wrap(fields.get(LAST_ACCESSED_TIME)).getLong(),
+                ByteBuffer.wrap(fields.get(MAX_INACTIVE_INTERVAL)).getInt(), attributes);
+    }
+
+    @Override
+    public void save(List<SessionDelta> deltas) {
+        for (SessionDelta delta : deltas) {
+            String key = keyPrefix + delta.getId();
+            if (delta.isInvalidated()) {
+                delete(key);
+                continue;
+            }
+            Map<String, byte[]> fields = new HashMap<>();
+            fields.put(CREATION_TIME, ByteBuffer.allocate(Long.BYTES).putLong(0, delta.getCreationTime()).array());
+            fields.put(LAST_ACCESSED_TIME, ByteBuffer.allocate(Long.BYTES).putLong(0, delta.getLastAccessedTime()).array());
+            fields.put(MAX_INACTIVE_INTERVAL, ByteBuffer.allocate(Integer.BYTES).putInt(0, delta.getMaxInactiveInterval()).array());
+            for (Map.Entry<String, byte[]> attribute : delta.getChangedAttributes().entrySet()) {
+                fields.put(ATTRIBUTE_PREFIX + attribute.getKey(), attribute.getValue());
+            }
+            putAll(key, fields, delta.getMaxInactiveInterval());
+            if (!delta.getRemovedAttributes().isEmpty()) {
+                List<String> removed = new ArrayList<>(delta.getRemovedAttributes().size());
+                for (String name : delta.getRemovedAttributes()) {
+                    removed.add(ATTRIBUTE_PREFIX + name);
+                }
+                removeFields(key, removed);
+            }
+        }
+    }
+}
@@ -6,11 +6,19 @@ import javax.servlet.http.HttpSessionContext;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * 使用外部SessionStore时，setAttribute()/removeAttribute()记录修改过的属性名，请求结束时只序列化这些属性
+ * 直接修改getAttribute()返回的对象不会被记录，需要再次setAttribute()
+ * 从SessionStore加载的属性先保持序列化的形式，第一次getAttribute()时才反序列化
+ *
  * @author Leibniz.Hu
  * Created on 2017-08-28 20:57.
  */
@@ -19,9 +27,15 @@ public class NettyHttpSession implements HttpSession, Serializable {
     public static final String SESSION_REQUEST_PARAMETER_NAME = "jsessionid";
     private NettySessionManager manager;
     private long creationTime;
-    private long lastAccessedTime;
-    private int interval = NettySessionManager.SESSION_LIFE_SECONDS;
+    private volatile long lastAccessedTime;
+    private volatile int interval = NettySessionManager.SESSION_LIFE_SECONDS;
     private String id;
+    long wheelTick = SessionExpiryWheel.NOT_SCHEDULED; //在过期时间轮中所在的tick，只在时间轮的定时任务中访问
+    private final Set<String> dirtyAttributes = ConcurrentHashMap.newKeySet(); //上次写回后修改或删除过的属性名
+    private volatile boolean persisted; //是否已写入过SessionStore
+    private volatile long persistedAccessTime; //最后一次写回的最后访问时间
+    private volatile int persistedInterval; //最后一次写回的超时时间
+    private volatile Map<String, byte[]> serializedAttributes; //加载后还没有反序列化的属性，没有时为null，修改时加锁
 
     NettyHttpSession(String id, NettySessionManager manager){
         long curTime = System.currentTimeMillis();
@@ -32,6 +46,23 @@ public class NettyHttpSession implements HttpSession, Serializable {
         this.sessionFacade = new NettyHttpSessionFacade(this);
     }
 
+    /**
+     * 从SessionStore加载的Session，属性在第一次读取时反序列化
+     */
+    NettyHttpSession(StoredSession stored, NettySessionManager manager) {
+        this(stored.getId(), manager);
+        this.creationTime = stored.getCreationTime();
+        this.lastAccessedTime = stored.getLastAccessedTime();
+        this.interval = stored.getMaxInactiveInterval();
+        this.persisted = true;
+        this.persistedAccessTime = stored.getLastAccessedTime();
+        this.persistedInterval = stored.getMaxInactiveInterval();
+        this.isNew = false;
+        if (!stored.getAttributes().isEmpty()) {
+            this.serializedAttributes = new HashMap<>(stored.getAttributes());
+        }
+    }
+
     private HttpSession sessionFacade;
 
     public HttpSession getSession(){
@@ -65,6 +96,10 @@ public class NettyHttpSession implements HttpSession, Serializable {
     @Override
     public void setMaxInactiveInterval(int interval) {
         this.interval = interval;
+        NettySessionManager manager = this.manager;
+        if (manager != null) {
+            manager.scheduleExpiry(this); //超时时间可能缩短，按新的到期时间重新放入时间轮
+        }
     }
 
     @Override
@@ -80,60 +115,194 @@ public class NettyHttpSession implements HttpSession, Serializable {
 
     private Map<String, Object> attributes = new ConcurrentHashMap<>();
 
+    /**
+     * 从SessionStore加载、还没有读取过的属性在这里反序列化，应用的类已经改变而无法反序列化时抛出IllegalStateException
+     */
     @Override
     public Object getAttribute(String name) {
-        return attributes.get(name);
+        Object value = attributes.get(name);
+        return value != null || serializedAttributes == null ? value : deserializeAttribute(name);
+    }
+
+    private synchronized Object deserializeAttribute(String name) {
+        NettySessionManager manager = this.manager;
+        Map<String, byte[]> serialized = serializedAttributes;
+        byte[] data = serialized == null || manager == null ? null : serialized.remove(name);
+        if (data == null) {
+            return attributes.get(name); //其他线程已经反序列化，或者属性不存在
+        }
+        if (serialized.isEmpty()) {
+            serializedAttributes = null;
+        }
+        Object value = SessionAttributeSerializer.deserialize(data, manager.getServletContext().getClassLoader());
+        attributes.put(name, value);
+        return value;
+    }
+
+    /**
+     * 属性被覆盖或删除时丢弃还没有反序列化的旧值
+     */
+    private void discardSerialized(String name) {
+        if (serializedAttributes != null) {
+            synchronized (this) {
+                Map<String, byte[]> serialized = serializedAttributes;
+                if (serialized != null && serialized.remove(name) != null && serialized.isEmpty()) {
+                    serializedAttributes = null;
+                }
+            }
+        }
     }
 
     @Override
     @Deprecated
     public Object getValue(String name) {
-        return attributes.get(name);
+        return getAttribute(name);
     }
 
     @Override
     public Enumeration<String> getAttributeNames() {
-        return Collections.enumeration(attributes.keySet());
+        return Collections.enumeration(attributeNames());
     }
 
     @Override
     @Deprecated
     public String[] getValueNames() {
-        Set<String> nameSet = attributes.keySet();
+        Set<String> nameSet = attributeNames();
         String[] nameArray = new String[nameSet.size()];
         return nameSet.toArray(nameArray);
     }
 
+    private Set<String> attributeNames() {
+        if (serializedAttributes == null) {
+            return attributes.keySet();
+        }
+        synchronized (this) {
+            Set<String> names = new HashSet<>(attributes.keySet());
+            if (serializedAttributes != null) {
+                names.addAll(serializedAttributes.keySet());
+            }
+            return names;
+        }
+    }
+
+    /**
+     * value为null时等同于removeAttribute()；使用外部SessionStore时value必须可序列化
+     */
     @Override
     public void setAttribute(String name, Object value) {
+        if (value == null) {
+            removeAttribute(name);
+            return;
+        }
+        NettySessionManager manager = this.manager;
+        if (manager != null && manager.isRemote()) {
+            if (!(value instanceof Serializable)) {
+                throw new IllegalArgumentException("Session attribute " + name + " of " + value.getClass().getName() + " is not Serializable");
+            }
+            dirtyAttributes.add(name);
+        }
+        discardSerialized(name);
         attributes.put(name, value);
     }
 
     @Override
     @Deprecated
     public void putValue(String name, Object value) {
-        attributes.put(name, value);
+        setAttribute(name, value);
     }
 
     @Override
     public void removeAttribute(String name) {
+        NettySessionManager manager = this.manager;
+        if (manager != null && manager.isRemote()) {
+            dirtyAttributes.add(name);
+        }
+        discardSerialized(name);
         attributes.remove(name);
     }
 
     @Override
     @Deprecated
     public void removeValue(String name) {
-        attributes.remove(name);
+        removeAttribute(name);
     }
 
     @Override
     public void invalidate() {
         attributes.clear();
         attributes = null;
+        serializedAttributes = null;
         manager.invalidate(this);
         manager = null;
     }
 
+    /**
+     * 保存快照时调用，还没有反序列化的属性直接使用加载时的数据
+     *
+     * @param skipped 无法序列化而跳过的属性名
+     * @return 所有属性序列化后的值
+     */
+    synchronized Map<String, byte[]> serializeAttributes(List<String> skipped) {
+        Map<String, Object> attributes = this.attributes;
+        Map<String, byte[]> serialized = new HashMap<>();
+        if (attributes == null) {
+            return serialized;
+        }
+        if (serializedAttributes != null) {
+            serialized.putAll(serializedAttributes);
+        }
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            try {
+                serialized.put(attribute.getKey(), SessionAttributeSerializer.serialize(attribute.getValue()));
+            } catch (IllegalArgumentException e) {
+                skipped.add(attribute.getKey());
+            }
+        }
+        return serialized;
+    }
+
+    /**
+     * @return 是否还没有被无效化
+     */
+    boolean isValid() {
+        return manager != null;
+    }
+
+    /**
+     * 取出上次写回后的修改，只序列化修改过的属性；新建、属性有修改或最后访问时间、超时时间变化时才有修改
+     * 由NettySessionManager在请求结束时调用
+     *
+     * @return 没有修改或已无效化时返回null
+     */
+    SessionDelta takeDelta() {
+        Map<String, Object> attributes = this.attributes;
+        if (attributes == null) {
+            return null;
+        }
+        Map<String, byte[]> changed = new HashMap<>();
+        Set<String> removed = new HashSet<>();
+        for (Iterator<String> it = dirtyAttributes.iterator(); it.hasNext(); ) {
+            String name = it.next();
+            it.remove(); //先移除再读取值，读取之后的修改会在下次写回
+            Object value = attributes.get(name);
+            if (value == null) {
+                removed.add(name);
+            } else {
+                changed.put(name, SessionAttributeSerializer.serialize(value));
+            }
+        }
+        long accessed = lastAccessedTime;
+        int interval = this.interval;
+        boolean created = !persisted;
+        if (!created && changed.isEmpty() && removed.isEmpty() && accessed == persistedAccessTime && interval == persistedInterval) {
+            return null;
+        }
+        persisted = true;
+        persistedAccessTime = accessed;
+        persistedInterval = interval;
+        return new SessionDelta(id, created, creationTime, accessed, interval, changed, removed);
+    }
+
     private boolean isNew = true;
     @Override
     public boolean isNew() {
@@ -145,9 +314,21 @@ public class NettyHttpSession implements HttpSession, Serializable {
     }
 
     /**
-     * 是否过期
+     * 是否过期：超过maxInactiveInterval没有访问，maxInactiveInterval不大于0时永不过期
      */
     public boolean expire(){
-        return System.currentTimeMillis() - creationTime >= interval * 1000;
+        return expire(System.currentTimeMillis());
+    }
+
+    boolean expire(long now) {
+        return now >= expiryTime();
+    }
+
+    /**
+     * @return 按最后访问时间计算的到期时间，永不过期时为Long.MAX_VALUE
+     */
+    long expiryTime() {
+        int seconds = interval;
+        return seconds <= 0 ? Long.MAX_VALUE : lastAccessedTime + seconds * 1000L;
     }
 }
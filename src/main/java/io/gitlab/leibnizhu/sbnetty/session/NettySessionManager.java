@@ -1,16 +1,42 @@
 package io.gitlab.leibnizhu.sbnetty.session;
 
+import com.google.common.cache.CacheBuilder;
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
 import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * Session管理器
+ * 容器启动后由一个IO线程的定时任务每TICK_MILLIS推进一次过期时间轮(SessionExpiryWheel)，无效化到期的Session，容器停止时取消；
+ * 每次推进的耗时记入NettyContainerMetrics
+ * 未启动定时任务时(如容器外单独使用NettyContext)，只在访问时检查是否过期
+ * 设置了外部SessionStore时，本地的Session Map是有容量和保留时间上限的近端缓存，缓存中没有的Session从存储加载；
+ * 请求结束时取出Session的修改放入写回队列，容器启动后由单独的写回线程批量写入存储，未启动时直接写入；
+ * 这时Session在存储中按超时时间过期，近端缓存按保留时间淘汰，不放入时间轮：
+ * 移出缓存的Session下次访问时重新加载为新对象，放入时间轮的话旧对象要等到超时才会被移出时间轮
+ * 设置了快照文件且不使用外部存储时，停止时把Session保存到快照(SessionSnapshot)，下次启动后在第一次访问时按ID加载
+ *
  * @author Leibniz.Hu
  * Created on 2017-08-28 20:59.
  */
@@ -20,13 +46,170 @@ public class NettySessionManager {
     private NettyContext servletContext;
     private Map<String, NettyHttpSession> sessions = new ConcurrentHashMap<>();
     static final int SESSION_LIFE_SECONDS = 60 * 30;
-    private static final int SESSION_LIFE_CHECK_INTER = 1000 * 60;
+    private static final int MAX_ID_ATTEMPTS = 16; //ID长度合理时连续冲突几乎不可能，超过说明配置的长度太短
+    private volatile Queue<NettyHttpSession> pendingExpiry; //等待放入时间轮的Session，每次启动新建，未启动时为null
+    private ScheduledFuture<?> expiryTask; //未启动时为null
+    private SessionStore store = new InMemorySessionStore();
+    private int writeBehindBatchSize;
+    private final Queue<SessionDelta> writeBehindQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writeBehindScheduled = new AtomicBoolean(false);
+    private volatile ExecutorService writeBehindExecutor; //未启动或不使用外部存储时为null
+    private Path snapshotFile;
+    private SessionIdGenerator idGenerator = new SessionIdGenerator();
+    private volatile SessionSnapshot snapshot; //启动时打开，停止时保存，未启动或没有设置快照文件时为null
 
     public NettySessionManager(NettyContext servletContext){
         this.servletContext = servletContext;
-        Thread thread = new Thread(new checkInvalidSessions(), "Session-Check");
-        thread.setDaemon(true);
-        thread.start();
+    }
+
+    /**
+     * 使用外部Session存储，需要在启动及创建Session之前调用
+     */
+    public synchronized void setStore(SessionStore store, NettyServerProperties.Session properties) {
+        this.store = store;
+        if (store.isRemote()) {
+            this.writeBehindBatchSize = Math.max(1, properties.getWriteBehindBatchSize());
+            this.sessions = CacheBuilder.newBuilder()
+                    .maximumSize(properties.getNearCacheSize())
+                    .expireAfterWrite(properties.getNearCacheTtl(), TimeUnit.MILLISECONDS)
+                    .<String, NettyHttpSession>build()
+                    .asMap();
+            log.info("Session Manager uses " + store.getClass().getName() + " as session store");
+        }
+    }
+
+    /**
+     * 停止时把Session保存到快照文件，下次启动后从中加载，需要在启动之前调用
+     */
+    public synchronized void setSnapshotFile(Path snapshotFile) {
+        this.snapshotFile = snapshotFile;
+    }
+
+    public void setIdGenerator(SessionIdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
+    }
+
+    boolean isRemote() {
+        return store.isRemote();
+    }
+
+    /**
+     * 在指定的线程上开始定时推进过期时间轮，已有的Session重新放入；使用外部存储时同时启动写回线程
+     */
+    public synchronized void start(EventExecutor executor) {
+        stop();
+        SessionExpiryWheel wheel = new SessionExpiryWheel(this, System.currentTimeMillis());
+        Queue<NettyHttpSession> pending = new ConcurrentLinkedQueue<>();
+        pendingExpiry = pending;
+        if (!store.isRemote()) {
+            pending.addAll(sessions.values());
+        }
+        expiryTask = executor.scheduleAtFixedRate(() -> sweep(wheel, pending), SessionExpiryWheel.TICK_MILLIS,
+                SessionExpiryWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        log.info("Session Manager expiry timer wheel has been started...");
+        if (store.isRemote()) {
+            writeBehindExecutor = Executors.newSingleThreadExecutor(new DefaultThreadFactory("session-write-behind", true));
+        }
+        if (snapshotFile != null) {
+            openSnapshot();
+        }
+    }
+
+    private void openSnapshot() {
+        if (store.isRemote()) {
+            log.warn("Session snapshot " + snapshotFile + " is ignored because sessions are kept in " + store.getClass().getName());
+            return;
+        }
+        try {
+            snapshot = SessionSnapshot.open(snapshotFile);
+            log.info("Session snapshot " + snapshotFile + " has been mapped with " + snapshot.size() + " sessions");
+        } catch (IOException e) {
+            log.error("Failed to open session snapshot " + snapshotFile, e);
+        }
+    }
+
+    /**
+     * 与takeFromSnapshot()使用同一把锁，保存后解除映射，之后不会再有请求读取
+     */
+    private void saveSnapshot(SessionSnapshot snapshot) {
+        synchronized (snapshot) {
+            this.snapshot = null;
+            long start = System.nanoTime();
+            try {
+                int saved = snapshot.write(sessions.values(), System.currentTimeMillis());
+                sessions.clear(); //已保存，重新启动后从快照加载
+                log.info("Saved " + saved + " sessions to snapshot " + snapshotFile + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to save session snapshot " + snapshotFile, e);
+            }
+        }
+    }
+
+    /**
+     * 停止时间轮，写回线程写完队列中的修改后退出，设置了快照文件时保存快照，最后关闭Session存储
+     */
+    public synchronized void stop() {
+        boolean started = expiryTask != null;
+        if (started) {
+            expiryTask.cancel(false);
+            expiryTask = null;
+        }
+        pendingExpiry = null;
+        ExecutorService executor = writeBehindExecutor;
+        if (executor != null) {
+            writeBehindExecutor = null;
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    log.warn("Session write-behind did not finish in 10 seconds");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            drainWriteBehind(); //停止期间提交的修改
+        }
+        SessionSnapshot snapshot = this.snapshot;
+        if (snapshot != null) {
+            saveSnapshot(snapshot);
+        }
+        if (started) {
+            closeStore();
+        }
+    }
+
+    private void closeStore() {
+        try {
+            store.close();
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to close session store " + store.getClass().getName(), e);
+        }
+    }
+
+    private void sweep(SessionExpiryWheel wheel, Queue<NettyHttpSession> pending) {
+        long start = System.nanoTime();
+        int expired = wheel.advance(pending, System.currentTimeMillis());
+        servletContext.getMetrics().sessionSweepCompleted(System.nanoTime() - start, expired);
+    }
+
+    /**
+     * 新建Session或修改超时时间后调用，由时间轮在下一个tick按到期时间放入；使用外部存储时不放入
+     */
+    void scheduleExpiry(NettyHttpSession session) {
+        if (store.isRemote()) {
+            return;
+        }
+        Queue<NettyHttpSession> pending = pendingExpiry;
+        if (pending != null) {
+            pending.offer(session);
+        }
+    }
+
+    /**
+     * @return Session是否仍由管理器管理(没有被无效化)
+     */
+    boolean isManaged(NettyHttpSession session) {
+        return sessions.get(session.getId()) == session;
     }
 
     ServletContext getServletContext() {
@@ -35,6 +218,75 @@ public class NettySessionManager {
 
     void invalidate(HttpSession session) {
         sessions.remove(session.getId());
+        if (store.isRemote()) {
+            writeBehind(SessionDelta.invalidated(session.getId()));
+        }
+    }
+
+    /**
+     * 时间轮发现Session超时后调用，只有不使用外部存储时Session才会放入时间轮
+     */
+    void expired(NettyHttpSession session) {
+        session.invalidate();
+    }
+
+    /**
+     * 请求结束时调用，Session有修改则放入写回队列，不使用外部存储时什么都不做
+     */
+    public void flush(NettyHttpSession session) {
+        if (session == null || !store.isRemote() || !session.isValid()) {
+            return;
+        }
+        SessionDelta delta = session.takeDelta();
+        if (delta != null) {
+            writeBehind(delta);
+        }
+    }
+
+    private void writeBehind(SessionDelta delta) {
+        ExecutorService executor = writeBehindExecutor;
+        if (executor == null) {
+            save(Collections.singletonList(delta));
+            return;
+        }
+        writeBehindQueue.offer(delta);
+        if (writeBehindScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drainWriteBehind);
+            } catch (RejectedExecutionException e) {
+                drainWriteBehind(); //正在停止
+            }
+        }
+    }
+
+    /**
+     * 在写回线程中按批写入队列中的所有修改，写回线程只有一个，同一个Session的修改按提交顺序写入
+     */
+    private void drainWriteBehind() {
+        writeBehindScheduled.set(false); //之后提交的修改会再次调度，不会遗漏
+        List<SessionDelta> batch = new ArrayList<>();
+        SessionDelta delta;
+        while ((delta = writeBehindQueue.poll()) != null) {
+            batch.add(delta);
+            if (batch.size() >= writeBehindBatchSize) {
+                save(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            save(batch);
+        }
+    }
+
+    private void save(List<SessionDelta> batch) {
+        long start = System.nanoTime();
+        try {
+            store.save(batch);
+            servletContext.getMetrics().sessionBatchSaved(batch.size(), System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            servletContext.getMetrics().sessionBatchFailed(batch.size());
+            log.error("Failed to save " + batch.size() + " session changes", e);
+        }
     }
 
     public void updateAccessTime(NettyHttpSession session){
@@ -44,46 +296,93 @@ public class NettySessionManager {
     }
 
     public boolean checkValid(NettyHttpSession session) {
-        return session != null && sessions.get(session.getId()) != null && !session.expire();
+        if (session == null || session.expire()) {
+            return false;
+        }
+        //使用外部存储时，请求开始后Session可能已移出近端缓存，没有无效化就仍然有效
+        return store.isRemote() ? session.isValid() : sessions.get(session.getId()) != null;
     }
 
     public NettyHttpSession getSession(String id){
-        return id == null ? null : sessions.get(id);
-    }
-
-    public NettyHttpSession createSession(){
-        String id = createUniqueSessionId();
-        NettyHttpSession newSession = new NettyHttpSession(id, this);
-        sessions.put(id ,newSession);
-        return newSession;
+        if (id == null) {
+            return null;
+        }
+        NettyHttpSession session = sessions.get(id);
+        if (session != null) {
+            return session;
+        }
+        if (!store.isRemote()) {
+            SessionSnapshot snapshot = this.snapshot;
+            return snapshot == null ? null : takeFromSnapshot(snapshot, id);
+        }
+        StoredSession stored = store.load(id);
+        servletContext.getMetrics().sessionLoaded(stored != null);
+        if (stored == null) {
+            return null;
+        }
+        session = new NettyHttpSession(stored, this);
+        if (session.expire()) {
+            return null;
+        }
+        NettyHttpSession cached = sessions.putIfAbsent(id, session);
+        if (cached != null) {
+            return cached; //其他线程同时加载了
+        }
+        scheduleExpiry(session);
+        return session;
     }
 
-    private String createUniqueSessionId() {
-        String prefix = String.valueOf(100000 + new Random().nextInt(899999));
-        return new StringBuilder().append(System.currentTimeMillis()).reverse().append(prefix).toString();
+    /**
+     * 从快照加载Session，加锁避免同一个Session的并发请求各自加载(快照中每条记录只能取出一次)
+     */
+    private NettyHttpSession takeFromSnapshot(SessionSnapshot snapshot, String id) {
+        synchronized (snapshot) {
+            NettyHttpSession session = sessions.get(id);
+            if (session != null) {
+                return session; //等待锁时已被其他请求加载
+            }
+            if (this.snapshot != snapshot) {
+                return null; //等待锁时已保存、解除映射
+            }
+            StoredSession stored = snapshot.take(id, System.currentTimeMillis());
+            if (stored == null) {
+                return null;
+            }
+            session = new NettyHttpSession(stored, this);
+            sessions.put(id, session);
+            scheduleExpiry(session);
+            return session;
+        }
     }
 
     /**
-     * 超时的Session无效化，定期执行
+     * 新建Session，生成的ID已被本地或快照中的Session使用时重新生成，冲突次数记入NettyContainerMetrics
+     * 不查询外部存储：随机ID的冲突概率可以忽略，每次新建Session多一次网络往返不值得
      */
-    private class checkInvalidSessions implements Runnable {
-        @Override
-        public void run() {
-            log.info("Session Manager expire-checking thread has been started...");
-            while(true){
-                try {
-                    Thread.sleep(SESSION_LIFE_CHECK_INTER);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                long curTime = System.currentTimeMillis();
-                for(NettyHttpSession session : sessions.values()){
-                    if(session.expire()){
-                        log.info("Session(ID={}) is invalidated by Session Manager", session.getId());
-                        session.invalidate();
-                    }
+    public NettyHttpSession createSession(){
+        for (int attempt = 1; ; attempt++) {
+            String id = idGenerator.generate();
+            if (!isIdInUse(id)) {
+                NettyHttpSession newSession = new NettyHttpSession(id, this);
+                if (sessions.putIfAbsent(id, newSession) == null) {
+                    scheduleExpiry(newSession);
+                    return newSession;
                 }
             }
+            servletContext.getMetrics().sessionIdCollided();
+            if (attempt >= MAX_ID_ATTEMPTS) {
+                throw new IllegalStateException("Failed to generate an unused session id in " + attempt + " attempts, the session id length is too short");
+            }
+        }
+    }
+
+    private boolean isIdInUse(String id) {
+        SessionSnapshot snapshot = this.snapshot;
+        if (snapshot == null) {
+            return false;
+        }
+        synchronized (snapshot) {
+            return this.snapshot == snapshot && snapshot.contains(id, System.currentTimeMillis());
         }
     }
 }
@@ -0,0 +1,247 @@
+package io.gitlab.leibnizhu.sbnetty.session;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 把Session序列化后保存在本进程的堆外内存(Netty池化的direct buffer)，用于大量长期存在的Session：
+ * 堆上只保留NettySessionManager近端缓存中的热点Session，其余Session在堆上只有键和一个ByteBuf对象
+ * 每个Session是一块连续的内存：创建时间、最后访问时间、超时秒数，然后是各属性的名字和序列化后的值；
+ * 只更新访问时间时原地修改，属性有修改时复制没有修改的属性、写入修改过的属性到新的一块内存
+ * 按Session ID的哈希分为SEGMENTS段，每段一把锁、一个按访问顺序排列的LinkedHashMap，
+ * 段内占用超过容量的1/SEGMENTS时淘汰最久没有访问的Session；过期的Session在加载时删除，空闲的也会最先被淘汰
+ * 内存只在锁内读写，淘汰时直接释放，load()把数据复制到堆上之后才返回；已淘汰的Session之后的修改直接丢弃
+ * 容器停止时close()释放所有内存
+ *
+ * @author Leibniz
+ */
+public final class OffHeapSessionStore implements SessionStore {
+    private static final int SEGMENTS = 16;
+    private static final int HEADER_BYTES = Long.BYTES * 2 + Integer.BYTES;
+    private static final int LAST_ACCESSED_TIME_OFFSET = Long.BYTES;
+    private static final int INTERVAL_OFFSET = Long.BYTES * 2;
+
+    private final ByteBufAllocator allocator;
+    private final long segmentCapacity;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity 最多占用的堆外内存字节数
+     */
+    public OffHeapSessionStore(long capacity) {
+        this(capacity, PooledByteBufAllocator.DEFAULT);
+    }
+
+    OffHeapSessionStore(long capacity, ByteBufAllocator allocator) {
+        this.allocator = allocator;
+        this.segmentCapacity = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    @Override
+    public StoredSession load(String id) {
+        Segment segment = segmentFor(id);
+        synchronized (segment) {
+            ByteBuf data = segment.entries.get(id); //同时移到访问顺序的末尾
+            if (data == null) {
+                return null;
+            }
+            long lastAccessedTime = data.getLong(LAST_ACCESSED_TIME_OFFSET);
+            int interval = data.getInt(INTERVAL_OFFSET);
+            if (interval > 0 && System.currentTimeMillis() >= lastAccessedTime + interval * 1000L) {
+                segment.remove(id);
+                return null;
+            }
+            Map<String, byte[]> attributes = new HashMap<>();
+            for (int index = HEADER_BYTES; index < data.writerIndex(); ) {
+                int nameLength = data.getInt(index);
+                String name = data.toString(index + Integer.BYTES, nameLength, CharsetUtil.UTF_8);
+                index += Integer.BYTES + nameLength;
+                byte[] value = new byte[data.getInt(index)];
+                data.getBytes(index + Integer.BYTES, value);
+                index += Integer.BYTES + value.length;
+                attributes.put(name, value);
+            }
+            return new StoredSession(id, data.getLong(0), lastAccessedTime, interval, attributes);
+        }
+    }
+
+    @Override
+    public void save(List<SessionDelta> deltas) {
+        for (SessionDelta delta : deltas) {
+            Segment segment = segmentFor(delta.getId());
+            synchronized (segment) {
+                if (delta.isInvalidated()) {
+                    segment.remove(delta.getId());
+                    continue;
+                }
+                ByteBuf old = segment.entries.get(delta.getId());
+                if (old == null && !delta.isCreated()) {
+                    continue; //已被淘汰，不能只凭修改重建，否则Session还在但没有修改的属性都丢了
+                }
+                if (old != null && delta.getChangedAttributes().isEmpty() && delta.getRemovedAttributes().isEmpty()) {
+                    old.setLong(LAST_ACCESSED_TIME_OFFSET, delta.getLastAccessedTime());
+                    old.setInt(INTERVAL_OFFSET, delta.getMaxInactiveInterval());
+                    continue;
+                }
+                ByteBuf data = merge(old, delta);
+                if (data.capacity() > segmentCapacity) {
+                    data.release(); //比一段的容量还大，无法保存
+                    segment.remove(delta.getId());
+                    evictions.increment();
+                    continue;
+                }
+                segment.put(delta.getId(), data);
+                segment.evict(segmentCapacity, evictions);
+            }
+        }
+    }
+
+    /**
+     * @return 合并旧数据和修改后的新数据，旧数据中没有修改的属性直接复制
+     */
+    private ByteBuf merge(ByteBuf old, SessionDelta delta) {
+        Map<String, byte[]> changed = delta.getChangedAttributes();
+        byte[][] changedNames = new byte[changed.size()][]; //按changed的遍历顺序编码后的属性名
+        int size = HEADER_BYTES;
+        int i = 0;
+        for (Map.Entry<String, byte[]> attribute : changed.entrySet()) {
+            byte[] name = attribute.getKey().getBytes(CharsetUtil.UTF_8);
+            changedNames[i++] = name;
+            size += Integer.BYTES * 2 + name.length + attribute.getValue().length;
+        }
+        if (old != null) {
+            size += old.writerIndex() - HEADER_BYTES; //删除和覆盖的属性使新数据略小，按上限分配
+        }
+        ByteBuf data = allocator.directBuffer(size, size);
+        data.writeLong(old != null ? old.getLong(0) : delta.getCreationTime());
+        data.writeLong(delta.getLastAccessedTime());
+        data.writeInt(delta.getMaxInactiveInterval());
+        if (old != null) {
+            for (int index = HEADER_BYTES; index < old.writerIndex(); ) {
+                int start = index;
+                int nameLength = old.getInt(index);
+                String name = old.toString(index + Integer.BYTES, nameLength, CharsetUtil.UTF_8);
+                index += Integer.BYTES + nameLength;
+                index += Integer.BYTES + old.getInt(index);
+                if (!changed.containsKey(name) && !delta.getRemovedAttributes().contains(name)) {
+                    data.writeBytes(old, start, index - start);
+                }
+            }
+        }
+        i = 0;
+        for (byte[] value : changed.values()) {
+            byte[] name = changedNames[i++];
+            data.writeInt(name.length).writeBytes(name).writeInt(value.length).writeBytes(value);
+        }
+        return data;
+    }
+
+    private Segment segmentFor(String id) {
+        int hash = id.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * @return 当前保存的Session数
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return 当前占用的堆外内存字节数
+     */
+    public long getUsedBytes() {
+        long used = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                used += segment.usedBytes;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return 因容量不足被淘汰的Session数
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * 容器停止时释放所有Session占用的内存，再次启动时从空的存储开始
+     */
+    @Override
+    public void close() {
+        clear();
+    }
+
+    /**
+     * 释放所有Session占用的内存
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (ByteBuf data : segment.entries.values()) {
+                    data.release();
+                }
+                segment.entries.clear();
+                segment.usedBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * 一段Session，所有方法都在持有这个对象的锁时调用
+     */
+    private static final class Segment {
+        private final LinkedHashMap<String, ByteBuf> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private long usedBytes;
+
+        private void put(String id, ByteBuf data) {
+            ByteBuf old = entries.put(id, data);
+            usedBytes += data.capacity();
+            if (old != null) {
+                usedBytes -= old.capacity();
+                old.release();
+            }
+        }
+
+        private void remove(String id) {
+            ByteBuf old = entries.remove(id);
+            if (old != null) {
+                usedBytes -= old.capacity();
+                old.release();
+            }
+        }
+
+        private void evict(long capacity, LongAdder evictions) {
+            for (Iterator<ByteBuf> it = entries.values().iterator(); usedBytes > capacity && it.hasNext(); ) {
+                ByteBuf eldest = it.next();
+                it.remove();
+                usedBytes -= eldest.capacity();
+                eldest.release();
+                evictions.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.gitlab.leibnizhu.sbnetty.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+
+/**
+ * Session属性值的序列化(JDK序列化)，反序列化时用应用的ClassLoader加载类
+ *
+ * @author Leibniz
+ */
+final class SessionAttributeSerializer {
+    private SessionAttributeSerializer() {
+    }
+
+    static byte[] serialize(Object value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Session attribute of " + value.getClass().getName() + " can not be serialized", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Object deserialize(byte[] data, ClassLoader classLoader) {
+        try (ObjectInputStream in = new ClassLoaderObjectInputStream(new ByteArrayInputStream(data), classLoader)) {
+            return in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Session attribute can not be deserialized", e);
+        }
+    }
+
+    private static final class ClassLoaderObjectInputStream extends ObjectInputStream {
+        private final ClassLoader classLoader;
+
+        private ClassLoaderObjectInputStream(InputStream in, ClassLoader classLoader) throws IOException {
+            super(in);
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, classLoader);
+            } catch (ClassNotFoundException e) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
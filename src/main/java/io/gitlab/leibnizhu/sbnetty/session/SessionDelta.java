@@ -0,0 +1,88 @@
+package io.gitlab.leibnizhu.sbnetty.session;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 一个Session在一次请求中的修改，由写回线程批量交给SessionStore.save()
+ * 元数据每次都带上；属性只包括修改过的(已序列化)和删除的，没有修改过的属性不重复写入
+ * invalidated为true时表示Session已失效，存储应删除整个Session
+ *
+ * @author Leibniz
+ */
+public final class SessionDelta {
+    private final String id;
+    private final boolean created;
+    private final boolean invalidated;
+    private final long creationTime;
+    private final long lastAccessedTime;
+    private final int maxInactiveInterval;
+    private final Map<String, byte[]> changedAttributes;
+    private final Set<String> removedAttributes;
+
+    public SessionDelta(String id, boolean created, long creationTime, long lastAccessedTime, int maxInactiveInterval,
+                        Map<String, byte[]> changedAttributes, Set<String> removedAttributes) {
+        this(id, created, false, creationTime, lastAccessedTime, maxInactiveInterval, changedAttributes, removedAttributes);
+    }
+
+    private SessionDelta(String id, boolean created, boolean invalidated, long creationTime, long lastAccessedTime,
+                         int maxInactiveInterval, Map<String, byte[]> changedAttributes, Set<String> removedAttributes) {
+        this.id = id;
+        this.created = created;
+        this.invalidated = invalidated;
+        this.creationTime = creationTime;
+        this.lastAccessedTime = lastAccessedTime;
+        this.maxInactiveInterval = maxInactiveInterval;
+        this.changedAttributes = Collections.unmodifiableMap(changedAttributes);
+        this.removedAttributes = Collections.unmodifiableSet(removedAttributes);
+    }
+
+    /**
+     * @return 删除整个Session的修改
+     */
+    public static SessionDelta invalidated(String id) {
+        return new SessionDelta(id, false, true, 0, 0, 0, Collections.emptyMap(), Collections.emptySet());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return 是否是新建的Session第一次写入
+     */
+    public boolean isCreated() {
+        return created;
+    }
+
+    public boolean isInvalidated() {
+        return invalidated;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public long getLastAccessedTime() {
+        return lastAccessedTime;
+    }
+
+    /**
+     * @return 超时秒数，存储可以据此设置过期时间，不大于0时永不过期
+     */
+    public int getMaxInactiveInterval() {
+        return maxInactiveInterval;
+    }
+
+    /**
+     * @return 新增或修改的属性，属性名->序列化后的值
+     */
+    public Map<String, byte[]> getChangedAttributes() {
+        return changedAttributes;
+    }
+
+    public Set<String> getRemovedAttributes() {
+        return removedAttributes;
+    }
+}
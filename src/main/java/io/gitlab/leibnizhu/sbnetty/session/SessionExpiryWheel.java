@@ -0,0 +1,95 @@
+package io.gitlab.leibnizhu.sbnetty.session;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Session过期的时间轮，每个tick只检查到期槽中的Session，不再定期遍历所有Session
+ * 时间轮有WHEEL_SIZE个槽，每槽TICK_MILLIS，Session按到期时间放入对应的槽
+ * 访问Session只更新最后访问时间，不移动它在时间轮中的位置；到期槽中的Session按最后访问时间重新计算到期时间，
+ * 真正过期的才无效化，否则放入新到期时间的槽，所以每个Session在每个超时周期内最多被检查一次
+ * 到期时间超过时间轮跨度的先放在最远的槽，到时再重新计算
+ * 槽只在调用advance()的定时任务中访问，其他线程通过NettySessionManager的待调度队列提交Session
+ *
+ * @author Leibniz
+ */
+final class SessionExpiryWheel {
+    static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SIZE = 2048; //2的幂，约34分钟，默认30分钟的超时时间不用再次放入
+    private static final int MASK = WHEEL_SIZE - 1;
+    //每个tick最多放入的待调度Session数，重启时已有大量Session的话分多个tick放入，避免一次占用IO线程太久
+    private static final int MAX_SCHEDULED_PER_TICK = 1 << 16;
+    static final long NOT_SCHEDULED = -1;
+
+    private final NettySessionManager manager;
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<NettyHttpSession>[] buckets = new ArrayDeque[WHEEL_SIZE];
+    private long currentTick; //已经处理到的tick
+
+    SessionExpiryWheel(NettySessionManager manager, long now) {
+        this.manager = manager;
+        this.currentTick = now / TICK_MILLIS;
+    }
+
+    /**
+     * 取出待调度的Session放入时间轮，再处理到当前时间为止所有到期的槽
+     *
+     * @return 本次无效化的Session数
+     */
+    int advance(Queue<NettyHttpSession> pending, long now) {
+        NettyHttpSession session;
+        for (int i = 0; i < MAX_SCHEDULED_PER_TICK && (session = pending.poll()) != null; i++) {
+            schedule(session, now);
+        }
+        int expired = 0;
+        long nowTick = now / TICK_MILLIS;
+        while (currentTick < nowTick) {
+            currentTick++;
+            expired += expireBucket(currentTick, now);
+        }
+        return expired;
+    }
+
+    private int expireBucket(long tick, long now) {
+        ArrayDeque<NettyHttpSession> bucket = buckets[(int) (tick & MASK)];
+        if (bucket == null) {
+            return 0;
+        }
+        int expired = 0;
+        //只处理本轮已有的，重新放入同一个槽的排在后面，留到下一圈
+        for (int n = bucket.size(); n > 0; n--) {
+            NettyHttpSession session = bucket.poll();
+            if (session.wheelTick != tick || !manager.isManaged(session)) {
+                continue; //重复放入的旧位置，或已经无效化
+            }
+            session.wheelTick = NOT_SCHEDULED;
+            if (session.expire(now)) {
+                manager.expired(session);
+                expired++;
+            } else {
+                schedule(session, now);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * 按Session当前的到期时间放入对应的槽，不会过期的Session不放入
+     */
+    private void schedule(NettyHttpSession session, long now) {
+        long deadline = session.expiryTime();
+        if (deadline == Long.MAX_VALUE || !manager.isManaged(session)) {
+            return;
+        }
+        //到期时间所在tick的下一个tick处理，保证处理时已经过了到期时间
+        long tick = Math.max(deadline / TICK_MILLIS + 1, currentTick + 1);
+        tick = Math.min(tick, currentTick + WHEEL_SIZE - 1);
+        int index = (int) (tick & MASK);
+        ArrayDeque<NettyHttpSession> bucket = buckets[index];
+        if (bucket == null) {
+            bucket = buckets[index] = new ArrayDeque<>();
+        }
+        session.wheelTick = tick;
+        bucket.add(session);
+    }
+}
@@ -0,0 +1,17 @@
+package io.gitlab.leibnizhu.sbnetty.session;
+
+/**
+ * Session ID的编码方式，通过 server.netty.session.id-encoding 配置，两种编码都可以直接用于Cookie和URL
+ *
+ * @author Leibniz
+ */
+public enum SessionIdEncoding {
+    /**
+     * 小写十六进制，每字节2个字符
+     */
+    HEX,
+    /**
+     * URL安全的Base64(RFC 4648 §5)，不补齐，每3字节4个字符
+     */
+    BASE64_URL
+}
@@ -0,0 +1,185 @@
+package io.gitlab.leibnizhu.sbnetty.session;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.internal.MathUtil;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于SecureRandom的Session ID生成器
+ * 每个线程有自己的SecureRandom和熵缓冲区，一次nextBytes()填满ENTROPY_BUFFER_BYTES字节，供多个ID使用，
+ * 既分摊了读取系统熵源的系统调用，也避免了多个线程竞争同一个SecureRandom的锁
+ * 虚拟线程(VIRTUAL_THREAD分发模式下每个请求一个)不使用线程本地的缓冲区，否则每个新Session都要新建、播种一个SecureRandom，
+ * 而是按线程ID分到几个共享的缓冲区之一，加锁使用
+ * 默认使用DRBG(NIST SP 800-90A，JDK 9及以上)，只在播种时读取系统熵源；没有时使用平台默认的SecureRandom
+ * 生成的ID只保证不可预测，唯一性由NettySessionManager检查
+ *
+ * @author Leibniz
+ */
+public final class SessionIdGenerator {
+    static final int ENTROPY_BUFFER_BYTES = 4096;
+    private static final String DEFAULT_ALGORITHM = "DRBG";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final Base64.Encoder BASE64_URL = Base64.getUrlEncoder().withoutPadding();
+    private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+    private static final int SHARED_POOLS = MathUtil.findNextPositivePowerOfTwo(
+            Math.min(64, Runtime.getRuntime().availableProcessors()));
+
+    private final int length;
+    private final SessionIdEncoding encoding;
+    private final String algorithm;
+    private final FastThreadLocal<EntropyPool> pools = new FastThreadLocal<EntropyPool>() {
+        @Override
+        protected EntropyPool initialValue() {
+            return new EntropyPool(newSecureRandom());
+        }
+    };
+    private volatile SharedEntropyPool[] sharedPools; //虚拟线程使用，第一次在虚拟线程中生成ID时创建
+
+    /**
+     * @param length    随机字节数，不少于8(64位)
+     * @param encoding  编码方式
+     * @param algorithm SecureRandom算法，如DRBG、NativePRNGNonBlocking，为null或空时优先使用DRBG，没有时使用平台默认
+     */
+    public SessionIdGenerator(int length, SessionIdEncoding encoding, String algorithm) {
+        if (length < 8 || length > ENTROPY_BUFFER_BYTES) {
+            throw new IllegalArgumentException("Session id length must be between 8 and " + ENTROPY_BUFFER_BYTES + " bytes: " + length);
+        }
+        this.length = length;
+        this.encoding = encoding;
+        this.algorithm = algorithm == null || algorithm.isEmpty() ? null : algorithm;
+        newSecureRandom(); //算法不存在时立即失败，而不是在第一次生成ID时
+    }
+
+    /**
+     * 16字节随机数的十六进制编码(32个字符)，默认的SecureRandom算法
+     */
+    public SessionIdGenerator() {
+        this(16, SessionIdEncoding.HEX, null);
+    }
+
+    private SecureRandom newSecureRandom() {
+        if (algorithm == null) {
+            try {
+                return SecureRandom.getInstance(DEFAULT_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                return new SecureRandom(); //JDK 8
+            }
+        }
+        try {
+            return SecureRandom.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown SecureRandom algorithm: " + algorithm, e);
+        }
+    }
+
+    public String generate() {
+        byte[] bytes = new byte[length];
+        Thread thread = Thread.currentThread();
+        if (isVirtual(thread)) {
+            sharedPool(thread).next(bytes);
+        } else {
+            pools.get().next(bytes);
+        }
+        return encoding == SessionIdEncoding.HEX ? hex(bytes) : BASE64_URL.encodeToString(bytes);
+    }
+
+    private SharedEntropyPool sharedPool(Thread thread) {
+        SharedEntropyPool[] shared = sharedPools;
+        if (shared == null) {
+            synchronized (this) {
+                shared = sharedPools;
+                if (shared == null) {
+                    shared = new SharedEntropyPool[SHARED_POOLS];
+                    for (int i = 0; i < shared.length; i++) {
+                        shared[i] = new SharedEntropyPool(newSecureRandom());
+                    }
+                    sharedPools = shared;
+                }
+            }
+        }
+        return shared[(int) thread.getId() & (SHARED_POOLS - 1)];
+    }
+
+    /**
+     * 通过反射查找JDK 21的Thread.isVirtual()，项目本身按Java 8编译
+     *
+     * @return JDK不支持时返回null
+     */
+    private static MethodHandle isVirtualHandle() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 一个线程的熵缓冲区，只在所属线程中访问
+     */
+    private static class EntropyPool {
+        private final SecureRandom random;
+        private final byte[] buffer = new byte[ENTROPY_BUFFER_BYTES];
+        private int position = ENTROPY_BUFFER_BYTES; //已用完，第一次使用时填充
+
+        private EntropyPool(SecureRandom random) {
+            this.random = random;
+        }
+
+        void next(byte[] bytes) {
+            if (position + bytes.length > buffer.length) {
+                random.nextBytes(buffer);
+                position = 0;
+            }
+            System.arraycopy(buffer, position, bytes, 0, bytes.length);
+            position += bytes.length;
+        }
+    }
+
+    /**
+     * 多个虚拟线程共享的熵缓冲区，用ReentrantLock而不是synchronized，填充缓冲区时不会占住虚拟线程的载体线程
+     */
+    private static final class SharedEntropyPool extends EntropyPool {
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private SharedEntropyPool(SecureRandom random) {
+            super(random);
+        }
+
+        @Override
+        void next(byte[] bytes) {
+            lock.lock();
+            try {
+                super.next(bytes);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
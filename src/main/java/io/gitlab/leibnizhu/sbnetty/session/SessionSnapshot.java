@@ -0,0 +1,383 @@
+package io.gitlab.leibnizhu.sbnetty.session;
+
+import com.google.common.hash.Hashing;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 内存映射的Session快照文件，容器停止时保存，下次启动时按需加载
+ * 文件结构：文件头(魔数、版本、索引位置、索引条数)，若干Session记录，最后是按ID哈希排序的索引(哈希、记录位置、到期时间、记录长度)
+ * 启动时只映射文件、读取文件头，不读取记录和索引；某个Session第一次被访问时在映射的索引中二分查找，
+ * 复制出这条记录，属性保持序列化的形式，由NettyHttpSession在第一次getAttribute()时反序列化
+ * 保存是增量、只追加的：本次运行中没有被加载过(也就没有被修改或无效化)且没有过期的记录保留在原位置，
+ * 只追加内存中的Session和新的索引，最后才更新文件头，中途失败时旧的快照仍然完整；
+ * 保留的记录不到记录区一半时，把有效记录复制到新文件再替换(压缩)
+ * 映射按CHUNK_BYTES分块，每块多映射MAX_RECORD_BYTES，不超过这个长度的记录从起始位置所在的块中就能完整读取
+ *
+ * @author Leibniz
+ */
+final class SessionSnapshot implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SessionSnapshot.class);
+    private static final int MAGIC = 0x53424e53; //"SBNS"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32; //魔数、版本、索引位置、索引条数，其余保留
+    private static final int INDEX_OFFSET_POSITION = 8;
+    private static final int INDEX_COUNT_POSITION = 16;
+    private static final int ENTRY_BYTES = 28; //ID哈希、记录位置、到期时间、记录长度
+    private static final int MAX_RECORD_BYTES = 64 << 20;
+    private static final long CHUNK_BYTES = 1L << 30;
+    private static final int WRITE_WINDOW_BYTES = 16 << 20;
+
+    private final Path file;
+    private final FileChannel channel; //没有有效的快照时为null
+    private final MappedByteBuffer[] chunks;
+    private final long chunkBytes;
+    private final long indexOffset;
+    private final int indexCount;
+    private final Set<Long> taken = ConcurrentHashMap.newKeySet(); //本次运行中已经加载过的记录位置
+
+    private SessionSnapshot(Path file, FileChannel channel, MappedByteBuffer[] chunks, long chunkBytes, long indexOffset, int indexCount) {
+        this.file = file;
+        this.channel = channel;
+        this.chunks = chunks;
+        this.chunkBytes = chunkBytes;
+        this.indexOffset = indexOffset;
+        this.indexCount = indexCount;
+    }
+
+    /**
+     * 映射快照文件，文件不存在或无效时返回空的快照，保存时重新创建文件
+     */
+    static SessionSnapshot open(Path file) throws IOException {
+        return open(file, CHUNK_BYTES);
+    }
+
+    /**
+     * @param chunkBytes 每块映射的长度，测试时用较小的值让记录和索引跨块
+     */
+    static SessionSnapshot open(Path file, long chunkBytes) throws IOException {
+        if (!Files.exists(file)) {
+            return empty(file, chunkBytes);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((size + chunkBytes - 1) / chunkBytes)];
+        for (int i = 0; i < chunks.length; i++) {
+            long start = i * chunkBytes;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, chunkBytes + MAX_RECORD_BYTES));
+        }
+        //文件头总在第一块中
+        SessionSnapshot snapshot = new SessionSnapshot(file, channel, chunks, chunkBytes,
+                size >= HEADER_BYTES ? chunks[0].getLong(INDEX_OFFSET_POSITION) : 0,
+                size >= HEADER_BYTES ? chunks[0].getInt(INDEX_COUNT_POSITION) : 0);
+        if (size < HEADER_BYTES || chunks[0].getInt(0) != MAGIC || chunks[0].getInt(4) != VERSION
+                || snapshot.indexOffset < HEADER_BYTES || snapshot.indexCount < 0
+                || snapshot.indexOffset + (long) snapshot.indexCount * ENTRY_BYTES > size) {
+            log.warn("Ignore invalid session snapshot " + file);
+            snapshot.close();
+            return empty(file, chunkBytes);
+        }
+        return snapshot;
+    }
+
+    private static SessionSnapshot empty(Path file, long chunkBytes) {
+        return new SessionSnapshot(file, null, new MappedByteBuffer[0], chunkBytes, HEADER_BYTES, 0);
+    }
+
+    /**
+     * @return 快照中的Session数，包括已经过期的
+     */
+    int size() {
+        return indexCount;
+    }
+
+    /**
+     * 取出快照中的Session，每条记录只能取出一次，之后由NettySessionManager管理
+     *
+     * @return 不存在、已过期或已经取出过时返回null
+     */
+    StoredSession take(String id, long now) {
+        long offset = find(id, now);
+        return offset >= 0 && taken.add(offset) ? readRecord(offset) : null;
+    }
+
+    /**
+     * @return 快照中是否有还没有取出、没有过期的这个Session
+     */
+    boolean contains(String id, long now) {
+        return find(id, now) >= 0;
+    }
+
+    /**
+     * @return 还没有取出、没有过期的记录位置，没有时返回-1
+     */
+    private long find(String id, long now) {
+        long hash = hash(id);
+        int low = 0;
+        int high = indexCount;
+        while (low < high) { //第一条哈希不小于hash的索引
+            int middle = (low + high) >>> 1;
+            if (getLong(entryOffset(middle)) < hash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (int i = low; i < indexCount && getLong(entryOffset(i)) == hash; i++) {
+            long entry = entryOffset(i);
+            long offset = getLong(entry + 8);
+            if (getLong(entry + 16) > now && !taken.contains(offset) && id.equals(readString(slice(offset + 4)))) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private long entryOffset(int index) {
+        return indexOffset + (long) index * ENTRY_BYTES;
+    }
+
+    private StoredSession readRecord(long offset) {
+        ByteBuffer record = slice(offset);
+        record.getInt(); //记录长度，之后是ID
+        String id = readString(record);
+        long creationTime = record.getLong();
+        long lastAccessedTime = record.getLong();
+        int interval = record.getInt();
+        int count = record.getInt();
+        Map<String, byte[]> attributes = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String name = readString(record);
+            byte[] value = new byte[record.getInt()];
+            record.get(value);
+            attributes.put(name, value);
+        }
+        return new StoredSession(id, creationTime, lastAccessedTime, interval, attributes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 保存内存中的Session，之后这个快照对象不能再使用
+     *
+     * @return 快照中的Session数
+     */
+    int write(Collection<NettyHttpSession> sessions, long now) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long keptBytes = 0;
+        for (int i = 0; i < indexCount; i++) {
+            long entry = entryOffset(i);
+            long offset = getLong(entry + 8);
+            long expiryTime = getLong(entry + 16);
+            if (expiryTime > now && !taken.contains(offset)) {
+                int length = getInt(entry + 24);
+                entries.add(new Entry(getLong(entry), offset, expiryTime, length));
+                keptBytes += length;
+            }
+        }
+        boolean compact = channel == null || keptBytes * 2 < indexOffset - HEADER_BYTES;
+        Path target = compact ? file.resolveSibling(file.getFileName() + ".tmp") : file;
+        try (FileChannel out = compact ? FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE) : FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //增量保存时从旧索引之后开始追加，旧的文件头和索引在更新文件头之前一直有效
+            Appender appender = new Appender(out, compact ? HEADER_BYTES : entryOffset(indexCount));
+            try {
+                if (compact) {
+                    for (Entry entry : entries) {
+                        long offset = appender.position;
+                        ByteBuffer record = slice(entry.offset);
+                        record.limit(record.position() + entry.length);
+                        appender.reserve(entry.length).put(record);
+                        entry.offset = offset;
+                    }
+                }
+                writeSessions(sessions, now, appender, entries);
+                entries.sort(Comparator.comparingLong(entry -> entry.hash));
+                long newIndexOffset = appender.position;
+                for (Entry entry : entries) {
+                    appender.reserve(ENTRY_BYTES).putLong(entry.hash).putLong(entry.offset).putLong(entry.expiryTime).putInt(entry.length);
+                }
+                appender.finish();
+                MappedByteBuffer header = out.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).putLong(newIndexOffset).putInt(entries.size());
+                header.force();
+                PlatformDependent.freeDirectBuffer(header);
+            } finally {
+                appender.close();
+            }
+        } finally {
+            close();
+        }
+        if (compact) {
+            Files.move(target, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return entries.size();
+    }
+
+    private void writeSessions(Collection<NettyHttpSession> sessions, long now, Appender appender, List<Entry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        List<String> skipped = new ArrayList<>();
+        for (NettyHttpSession session : sessions) {
+            long expiryTime = session.expiryTime();
+            if (!session.isValid() || expiryTime <= now) {
+                continue;
+            }
+            Map<String, byte[]> attributes = session.serializeAttributes(skipped);
+            if (!skipped.isEmpty()) {
+                log.warn("Attributes " + skipped + " of session " + session.getId() + " can not be serialized and are not saved");
+                skipped.clear();
+            }
+            bytes.reset();
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeInt(0); //记录长度，写完后填入
+            writeString(record, session.getId());
+            record.writeLong(session.getCreationTime());
+            record.writeLong(session.getLastAccessedTime());
+            record.writeInt(session.getMaxInactiveInterval());
+            record.writeInt(attributes.size());
+            for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+                writeString(record, attribute.getKey());
+                record.writeInt(attribute.getValue().length);
+                record.write(attribute.getValue());
+            }
+            int length = bytes.size();
+            if (length > MAX_RECORD_BYTES) {
+                log.warn("Session " + session.getId() + " of " + length + " bytes is too large to be saved");
+                continue;
+            }
+            long offset = appender.position;
+            ByteBuffer target = appender.reserve(length);
+            int start = target.position();
+            target.put(bytes.toByteArray()).putInt(start, length);
+            entries.add(new Entry(hash(session.getId()), offset, expiryTime, length));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static long hash(String id) {
+        return Hashing.murmur3_128().hashString(id, StandardCharsets.UTF_8).asLong();
+    }
+
+    private ByteBuffer slice(long offset) {
+        ByteBuffer chunk = chunks[(int) (offset / chunkBytes)].duplicate();
+        chunk.position((int) (offset % chunkBytes));
+        return chunk;
+    }
+
+    private long getLong(long offset) {
+        return chunks[(int) (offset / chunkBytes)].getLong((int) (offset % chunkBytes));
+    }
+
+    private int getInt(long offset) {
+        return chunks[(int) (offset / chunkBytes)].getInt((int) (offset % chunkBytes));
+    }
+
+    /**
+     * 解除映射，关闭文件
+     */
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] != null) {
+                PlatformDependent.freeDirectBuffer(chunks[i]);
+                chunks[i] = null;
+            }
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private static final class Entry {
+        private final long hash;
+        private long offset;
+        private final long expiryTime;
+        private final int length;
+
+        private Entry(long hash, long offset, long expiryTime, int length) {
+            this.hash = hash;
+            this.offset = offset;
+            this.expiryTime = expiryTime;
+            this.length = length;
+        }
+    }
+
+    /**
+     * 通过逐段映射的窗口向文件追加数据，结束时把文件截断到实际长度
+     */
+    private static final class Appender implements Closeable {
+        private final FileChannel channel;
+        private long position;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        private Appender(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        /**
+         * @return 写入位置已设置好的窗口，调用方写入bytes个字节
+         */
+        private ByteBuffer reserve(int bytes) throws IOException {
+            if (window == null || position + bytes > windowStart + window.capacity()) {
+                unmap();
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(WRITE_WINDOW_BYTES, bytes));
+            }
+            window.position((int) (position - windowStart));
+            position += bytes;
+            return window;
+        }
+
+        private void finish() throws IOException {
+            unmap();
+            channel.truncate(position);
+            channel.force(true);
+        }
+
+        private void unmap() {
+            if (window != null) {
+                window.force();
+                PlatformDependent.freeDirectBuffer(window);
+                window = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            unmap();
+        }
+    }
+}
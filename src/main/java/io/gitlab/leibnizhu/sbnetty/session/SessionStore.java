@@ -0,0 +1,44 @@
+package io.gitlab.leibnizhu.sbnetty.session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Session存储SPI，多个实例共用一个外部存储时，请求不需要粘性路由到创建Session的实例
+ * NettySessionManager在本地保留最近访问的Session(近端缓存)，缓存中没有时才load()；
+ * 请求结束时只把修改过的属性序列化，和最后访问时间等一起放入写回队列，由后台线程批量save()
+ * 实现需要线程安全：load()在Servlet线程中调用，save()只在写回线程中调用
+ * 内置实现：InMemorySessionStore(默认，Session只保存在本实例，不序列化)、
+ * KeyValueSessionStore(Redis、Hazelcast等键值存储的适配基类)、EmbeddedSessionStore(进程内的替身，用于测试)、
+ * OffHeapSessionStore(序列化后保存在本进程的堆外内存，减少大量长期Session占用的堆)
+ *
+ * @author Leibniz
+ */
+public interface SessionStore extends Closeable {
+    /**
+     * @return 存储中的Session，不存在或已过期时返回null
+     */
+    StoredSession load(String id);
+
+    /**
+     * 批量写入Session的修改，同一个Session的修改按发生顺序排列
+     */
+    void save(List<SessionDelta> deltas);
+
+    /**
+     * @return 是否把Session保存在NettySessionManager的Session Map之外(其他进程或堆外内存)，
+     * false时Session只保存在Map中，不序列化也不写回
+     */
+    default boolean isRemote() {
+        return true;
+    }
+
+    /**
+     * 容器停止、写回队列写完后调用，释放存储占用的资源；容器可能再次启动并继续使用这个存储
+     * 默认什么都不做，作为Spring Bean提供的存储一般交给Spring关闭
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
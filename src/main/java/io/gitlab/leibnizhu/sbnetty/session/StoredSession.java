@@ -0,0 +1,45 @@
+package io.gitlab.leibnizhu.sbnetty.session;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * SessionStore中保存的一个Session：元数据及序列化后的属性
+ *
+ * @author Leibniz
+ */
+public final class StoredSession {
+    private final String id;
+    private final long creationTime;
+    private final long lastAccessedTime;
+    private final int maxInactiveInterval;
+    private final Map<String, byte[]> attributes; //属性名->序列化后的值
+
+    public StoredSession(String id, long creationTime, long lastAccessedTime, int maxInactiveInterval, Map<String, byte[]> attributes) {
+        this.id = id;
+        this.creationTime = creationTime;
+        this.lastAccessedTime = lastAccessedTime;
+        this.maxInactiveInterval = maxInactiveInterval;
+        this.attributes = Collections.unmodifiableMap(attributes);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public long getLastAccessedTime() {
+        return lastAccessedTime;
+    }
+
+    public int getMaxInactiveInterval() {
+        return maxInactiveInterval;
+    }
+
+    public Map<String, byte[]> getAttributes() {
+        return attributes;
+    }
+}
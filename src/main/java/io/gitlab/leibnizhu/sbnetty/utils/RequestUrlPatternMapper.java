@@ -5,11 +5,15 @@ import org.slf4j.LoggerFactory;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
-import java.io.IOException;
-import java.util.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * 保存，计算URL-pattern与请求路径的匹配关系
+ * 精确匹配和路径匹配的pattern编译为同一棵按字符分支的前缀树，扩展名匹配的pattern反转后编译为另一棵
+ * 前缀树不可变，addServlet()/removeServlet()时只复制修改路径上的节点(copy-on-write)后整体替换，
+ * 请求线程无锁读取，匹配过程不产生新的对象
  *
  * @author Leibniz.Hu
  * Created on 2017-08-25 11:32.
@@ -17,11 +21,12 @@ import java.util.*;
 public class RequestUrlPatternMapper {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
-    private UrlPatternContext urlPatternContext;
-    private String contextPath;
+    private volatile UrlPatternContext urlPatternContext; //请求线程读取的快照
+    private final Map<String, MappedServlet> registeredPatterns = new HashMap<>(); //已注册的urlPattern，只在修改时使用，用于检查冲突
+    private final String contextPath;
 
     public RequestUrlPatternMapper(String contextPath) {
-        this.urlPatternContext = new UrlPatternContext();
+        this.urlPatternContext = new UrlPatternContext(Node.EMPTY, Node.EMPTY, null);
         this.contextPath = contextPath;
     }
 
@@ -32,49 +37,14 @@ public class RequestUrlPatternMapper {
      * @param servlet     servlet对象
      * @param servletName servletName
      */
-    public void addServlet(String urlPattern, Servlet servlet, String servletName) throws ServletException {
-        if (urlPattern.endsWith("/*")) {
-            // 路径匹配
-            String pattern = urlPattern.substring(0, urlPattern.length() - 1);
-            for (MappedServlet ms : urlPatternContext.wildcardServlets) {
-                if (ms.pattern.equals(pattern)) {
-                    throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
-                }
-            }
-            MappedServlet newServlet = new MappedServlet(pattern, servlet, servletName);
-            urlPatternContext.wildcardServlets.add(newServlet);
-            urlPatternContext.wildcardServlets.sort((o1, o2) -> o2.pattern.compareTo(o1.pattern));
-            log.debug("Curretn Wildcard URL Pattern List = " + Arrays.toString(urlPatternContext.wildcardServlets.toArray()));
-        } else if (urlPattern.startsWith("*.")) {
-            // 扩展名匹配
-            String pattern = urlPattern.substring(2);
-            if (urlPatternContext.extensionServlets.get(pattern) != null) {
-                throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
-            }
-            MappedServlet newServlet = new MappedServlet(pattern, servlet, servletName);
-            urlPatternContext.extensionServlets.put(pattern, newServlet);
-            log.debug("Curretn Extension URL Pattern List = " + Arrays.toString(urlPatternContext.extensionServlets.keySet().toArray()));
-        } else if (urlPattern.equals("/")) {
-            // Default资源匹配
-            if (urlPatternContext.defaultServlet != null) {
-                throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
-            }
-            urlPatternContext.defaultServlet = new MappedServlet("", servlet, servletName);
-        } else {
-            // 精确匹配
-            String pattern;
-            if (urlPattern.length() == 0) {
-                pattern = "/";
-            } else {
-                pattern = urlPattern;
-            }
-            if (urlPatternContext.exactServlets.get(pattern) != null) {
-                throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
-            }
-            MappedServlet newServlet = new MappedServlet(pattern, servlet, servletName);
-            urlPatternContext.exactServlets.put(pattern, newServlet);
-            log.debug("Curretn Exact URL Pattern List = " + Arrays.toString(urlPatternContext.exactServlets.keySet().toArray()));
+    public synchronized void addServlet(String urlPattern, Servlet servlet, String servletName) throws ServletException {
+        if (registeredPatterns.containsKey(urlPattern)) {
+            throw new ServletException("URL Pattern('" + urlPattern + "') already exists!");
         }
+        MappedServlet newServlet = new MappedServlet(urlPattern, servlet, servletName);
+        urlPatternContext = update(urlPatternContext, urlPattern, newServlet);
+        registeredPatterns.put(urlPattern, newServlet);
+        log.debug("Added URL Pattern " + urlPattern + " -> " + servletName + ", " + registeredPatterns.size() + " patterns in total");
     }
 
     /**
@@ -82,171 +52,212 @@ public class RequestUrlPatternMapper {
      *
      * @param urlPattern
      */
-    public void removeServlet(String urlPattern) {
+    public synchronized void removeServlet(String urlPattern) {
+        if (registeredPatterns.remove(urlPattern) != null) {
+            urlPatternContext = update(urlPatternContext, urlPattern, null);
+        }
+    }
+
+    /**
+     * @param servlet 为null时删除映射
+     * @return 修改后新的快照
+     */
+    private UrlPatternContext update(UrlPatternContext current, String urlPattern, MappedServlet servlet) {
         if (urlPattern.endsWith("/*")) {
-            //路径匹配
-            String pattern = urlPattern.substring(0, urlPattern.length() - 2);
-            urlPatternContext.wildcardServlets.removeIf(mappedServlet -> mappedServlet.pattern.equals(pattern));
+            // 路径匹配，"/a/*"以"/a"为key，"/*"以空字符串为key
+            String key = urlPattern.substring(0, urlPattern.length() - 2);
+            return new UrlPatternContext(current.pathTrie.put(key, 0, Node.WILDCARD, servlet), current.extensionTrie, current.defaultServlet);
         } else if (urlPattern.startsWith("*.")) {
-            // 扩展名匹配
-            String pattern = urlPattern.substring(2);
-            urlPatternContext.extensionServlets.remove(pattern);
+            // 扩展名匹配，从请求路径末尾往前匹配，所以key是反转后的扩展名
+            String key = new StringBuilder(urlPattern.substring(2)).reverse().toString();
+            return new UrlPatternContext(current.pathTrie, current.extensionTrie.put(key, 0, Node.EXACT, servlet), current.defaultServlet);
         } else if (urlPattern.equals("/")) {
             // Default资源匹配
-            urlPatternContext.defaultServlet = null;
+            return new UrlPatternContext(current.pathTrie, current.extensionTrie, servlet);
         } else {
             // 精确匹配
-            String pattern;
-            if (urlPattern.length() == 0) {
-                pattern = "/";
-            } else {
-                pattern = urlPattern;
-            }
-            urlPatternContext.exactServlets.remove(pattern);
+            String key = urlPattern.isEmpty() ? "/" : urlPattern;
+            return new UrlPatternContext(current.pathTrie.put(key, 0, Node.EXACT, servlet), current.extensionTrie, current.defaultServlet);
         }
     }
 
     public String getServletNameByRequestURI(String absoluteUri) {
-        MappingData mappingData = new MappingData();
-        try {
-            matchRequestPath(absoluteUri, mappingData);
-        } catch (IOException e) {
-            log.error("Throwing exception when getting Servlet Name by request URI, maybe cause by lacking of buffer size.", e);
-        }
-        return mappingData.servletName;
+        MappedServlet servlet = matchRequestPath(absoluteUri);
+        return servlet == null ? null : servlet.servletName;
     }
 
     /**
-     * Wrapper mapping.
-     *
-     * @throws IOException buffer大小不足
+     * @return 请求路径是否匹配到默认Servlet("/")，即没有更具体的映射
      */
-    private void matchRequestPath(String absolutePath, MappingData mappingData) throws IOException {
-        // 处理ContextPath，获取访问的相对URI
-        boolean noServletPath = absolutePath.equals(contextPath) || absolutePath.equals(contextPath + "/");
+    public boolean isDefaultServletMatch(String absoluteUri) {
+        MappedServlet servlet = matchRequestPath(absoluteUri);
+        return servlet != null && "/".equals(servlet.pattern);
+    }
+
+    /**
+     * 匹配请求路径，只使用调用时的快照，不加锁，不产生新的对象
+     */
+    private MappedServlet matchRequestPath(String absolutePath) {
+        UrlPatternContext patterns = urlPatternContext;
+        // 处理ContextPath，只匹配contextPath之后、查询字符串之前的部分
         if (!absolutePath.startsWith(contextPath)) {
-            return;
+            return null;
+        }
+        String path = absolutePath;
+        int start = contextPath.length();
+        int end = absolutePath.indexOf('?', start);
+        if (end < 0) {
+            end = absolutePath.length();
         }
-        String path = noServletPath ? "/" : absolutePath.substring(contextPath.length());
-        //去掉查询字符串
-        int queryInx = path.indexOf('?');
-        if(queryInx > -1){
-            path = path.substring(0, queryInx);
+        if (start < end && path.charAt(start) != '/') {
+            return null; //只是以contextPath开头的其他路径
+        }
+        boolean noServletPath = end - start <= 1;
+        if (noServletPath) {
+            path = "/";
+            start = 0;
+            end = 1;
         }
 
-        // 优先进行精确匹配
-        internalMapExactWrapper(urlPatternContext.exactServlets, path, mappingData);
+        // 优先进行精确匹配，同时记录最长的路径匹配
+        Node node = patterns.pathTrie;
+        MappedServlet wildcard = node.wildcard; // "/*"
+        for (int i = start; i < end && node != null; i++) {
+            node = node.child(path.charAt(i));
+            if (node != null && node.wildcard != null && (i + 1 == end || path.charAt(i + 1) == '/')) {
+                wildcard = node.wildcard;
+            }
+        }
+        if (node != null && node.exact != null) {
+            return node.exact;
+        }
 
         // 然后进行路径匹配
-        if (mappingData.servlet == null) {
-            internalMapWildcardWrapper(urlPatternContext.wildcardServlets, path, mappingData);
+        if (wildcard != null) {
+            return wildcard;
             //TODO 暂不考虑JSP的处理
         }
 
-        if (mappingData.servlet == null && noServletPath) {
+        if (noServletPath) {
             // 路径为空时，重定向到“/”
-            mappingData.servlet = urlPatternContext.defaultServlet.object;
-            mappingData.servletName = urlPatternContext.defaultServlet.servletName;
-            return;
+            return patterns.defaultServlet;
         }
 
-        // 后缀名匹配
-        if (mappingData.servlet == null) {
-            internalMapExtensionWrapper(urlPatternContext.extensionServlets, path, mappingData);
+        // 后缀名匹配，扩展名是最后一段路径中最后一个"."之后的部分
+        node = patterns.extensionTrie;
+        for (int i = end - 1; i > start && node != null; i--) {
+            char c = path.charAt(i);
+            if (c == '/') {
+                break;
+            }
+            if (c == '.') {
+                if (node.exact != null) {
+                    return node.exact;
+                }
+                break;
+            }
+            node = node.child(c);
         }
 
         //TODO 暂不考虑Welcome资源
 
         // Default Servlet
-        if (mappingData.servlet == null) {
-            if (urlPatternContext.defaultServlet != null) {
-                mappingData.servlet = urlPatternContext.defaultServlet.object;
-                mappingData.servletName = urlPatternContext.defaultServlet.servletName;
-            }
-            //TODO 暂不考虑请求静态目录资源
-            if (path.charAt(path.length() - 1) != '/') {
-            }
-        }
+        //TODO 暂不考虑请求静态目录资源
+        return patterns.defaultServlet;
     }
 
-
-    /**
-     * 精确匹配
+    /*
+     * 以下是用到的内部类
      */
-    private void internalMapExactWrapper(Map<String, MappedServlet> servlets, String path, MappingData mappingData) {
-        MappedServlet servlet = servlets.get(path);
-        if (servlet != null) {
-            mappingData.servlet = servlet.object;
-            mappingData.servletName = servlet.servletName;
-        }
-    }
 
     /**
-     * 路径匹配
+     * 某一时刻所有映射关系的不可变快照
      */
-    private void internalMapWildcardWrapper(List<MappedServlet> servlets, String path, MappingData mappingData) {
-        if (!path.endsWith("/")) {
-            path = path + "/";
-        }
-        MappedServlet result = null;
-        for (MappedServlet ms : servlets) {
-            if (path.startsWith(ms.pattern)) {
-                result = ms;
-                break;
-            }
-        }
-        if (result != null) {
-            mappingData.servlet = result.object;
-            mappingData.servletName = result.servletName;
-        }
-    }
+    private static final class UrlPatternContext {
+        final Node pathTrie; //精确匹配和路径匹配
+        final Node extensionTrie; //扩展名匹配
+        final MappedServlet defaultServlet; //默认Servlet
 
-    /**
-     * 后缀名匹配
-     */
-    private void internalMapExtensionWrapper(Map<String, MappedServlet> servlets, String path, MappingData mappingData) {
-        int dotInx = path.lastIndexOf('.');
-        path = path.substring(dotInx + 1);
-        MappedServlet servlet = servlets.get(path);
-        if (servlet != null) {
-            mappingData.servlet = servlet.object;
-            mappingData.servletName = servlet.servletName;
+        UrlPatternContext(Node pathTrie, Node extensionTrie, MappedServlet defaultServlet) {
+            this.pathTrie = pathTrie;
+            this.extensionTrie = extensionTrie;
+            this.defaultServlet = defaultServlet;
         }
     }
 
-    /*
-     * 以下是用到的内部类
+    /**
+     * 前缀树的不可变节点，子节点按字符排序，查找时二分
      */
+    private static final class Node {
+        static final int EXACT = 0;
+        static final int WILDCARD = 1;
+        static final Node EMPTY = new Node(new char[0], new Node[0], null, null);
 
-    private class UrlPatternContext {
-        MappedServlet defaultServlet = null; //默认Servlet
-        Map<String, MappedServlet> exactServlets = new HashMap<>(); //精确匹配
-        List<MappedServlet> wildcardServlets = new LinkedList<>(); //路径匹配
-        Map<String, MappedServlet> extensionServlets = new HashMap<>(); //扩展名匹配
-    }
+        final char[] keys;
+        final Node[] children;
+        final MappedServlet exact; //key在此结束的精确匹配(扩展名树中为扩展名匹配)
+        final MappedServlet wildcard; //key在此结束的路径匹配
 
-    private class MappedServlet extends MapElement<Servlet> {
-        @Override
-        public String toString() {
-            return pattern;
+        Node(char[] keys, Node[] children, MappedServlet exact, MappedServlet wildcard) {
+            this.keys = keys;
+            this.children = children;
+            this.exact = exact;
+            this.wildcard = wildcard;
         }
 
-        String servletName;
+        Node child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
 
-        MappedServlet(String name, Servlet servlet, String servletName) {
-            super(name, servlet);
-            this.servletName = servletName;
+        /**
+         * 复制从当前节点到key结束处路径上的节点，其他节点共享
+         *
+         * @param type    EXACT或WILDCARD
+         * @param servlet 为null时删除
+         * @return 新的节点
+         */
+        Node put(String key, int index, int type, MappedServlet servlet) {
+            if (index == key.length()) {
+                return type == EXACT ? new Node(keys, children, servlet, wildcard) : new Node(keys, children, exact, servlet);
+            }
+            char c = key.charAt(index);
+            int pos = Arrays.binarySearch(keys, c);
+            if (pos >= 0) {
+                Node[] newChildren = children.clone();
+                newChildren[pos] = children[pos].put(key, index + 1, type, servlet);
+                return new Node(keys, newChildren, exact, wildcard);
+            }
+            if (servlet == null) {
+                return this;
+            }
+            int insert = -pos - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insert);
+            System.arraycopy(children, 0, newChildren, 0, insert);
+            newKeys[insert] = c;
+            newChildren[insert] = EMPTY.put(key, index + 1, type, servlet);
+            System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+            System.arraycopy(children, insert, newChildren, insert + 1, children.length - insert);
+            return new Node(newKeys, newChildren, exact, wildcard);
         }
     }
 
-    private class MapElement<T> {
+    private static final class MappedServlet {
         final String pattern;
-        final T object;
+        final Servlet object;
+        final String servletName;
 
-        MapElement(String pattern, T object) {
+        MappedServlet(String pattern, Servlet servlet, String servletName) {
             this.pattern = pattern;
-            this.object = object;
+            this.object = servlet;
+            this.servletName = servletName;
         }
-    }
 
+        @Override
+        public String toString() {
+            return pattern;
+        }
+    }
 }
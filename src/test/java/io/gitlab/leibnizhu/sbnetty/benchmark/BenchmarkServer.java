@@ -0,0 +1,28 @@
+package io.gitlab.leibnizhu.sbnetty.benchmark;
+
+import io.gitlab.leibnizhu.sbnetty.functional.TestWebApp;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.Arrays;
+
+/**
+ * 在基准测试进程内启动TestWebApp，监听localhost:9999，contextPath为/netty
+ *
+ * @author Leibniz
+ */
+final class BenchmarkServer {
+    static final String BASE_URL = "http://localhost:9999/netty";
+
+    private BenchmarkServer() {
+    }
+
+    /**
+     * @param properties 额外的启动参数，如 --server.netty.transport=nio
+     */
+    static ConfigurableApplicationContext start(String... properties) {
+        String[] args = Arrays.copyOf(new String[]{"--server.port=9999", "--server.servlet.context-path=/netty"}, 2 + properties.length);
+        System.arraycopy(properties, 0, args, 2, properties.length);
+        return SpringApplication.run(TestWebApp.class, args);
+    }
+}
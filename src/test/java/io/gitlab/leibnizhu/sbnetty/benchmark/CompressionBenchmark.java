@@ -0,0 +1,124 @@
+package io.gitlab.leibnizhu.sbnetty.benchmark;
+
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.gitlab.leibnizhu.sbnetty.core.ResponseCompressor;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ResponseCompressor压缩一个分块JSON响应的吞吐量(ops/s)和单线程CPU耗时(us/op)，按压缩级别对比
+ * 响应体是随机生成的JSON数组，大小为payloadKb，每个响应分为8KB(输出缓冲区大小)的分块
+ * Setup时打印压缩后的大小，用于权衡压缩率和CPU开销
+ *
+ * @author Leibniz
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CompressionBenchmark {
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    @Param({"1", "6", "9"})
+    private int level;
+
+    @Param({"gzip", "deflate"})
+    private String encoding;
+
+    @Param({"20", "200"})
+    private int payloadKb;
+
+    private EmbeddedChannel channel;
+    private ByteBuf payload;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        NettyServerProperties.Compression config = new NettyServerProperties.Compression();
+        config.setEnabled(true);
+        config.setLevel(level);
+        channel = new EmbeddedChannel(new ResponseCompressor(new ResponseCompressor.Settings(config)));
+        payload = PooledByteBufAllocator.DEFAULT.directBuffer().writeBytes(json(payloadKb * 1024).getBytes(CharsetUtil.UTF_8));
+        System.out.println("\nlevel=" + level + ", encoding=" + encoding + ", " + payload.readableBytes()
+                + " bytes -> " + compressOnce() + " bytes");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        payload.release();
+    }
+
+    @Benchmark
+    public long compress() {
+        return compressOnce();
+    }
+
+    /**
+     * @return 压缩后的字节数
+     */
+    private long compressOnce() {
+        HttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/netty/json");
+        request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, encoding);
+        channel.writeInbound(request);
+        ReferenceCountUtil.release(channel.readInbound());
+
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json;charset=UTF-8");
+        response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+        channel.write(response);
+        for (int offset = 0; offset < payload.readableBytes(); offset += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, payload.readableBytes() - offset);
+            channel.write(new DefaultHttpContent(payload.retainedSlice(offset, length)));
+        }
+        channel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+
+        long compressed = 0;
+        for (Object msg; (msg = channel.readOutbound()) != null; ) {
+            if (msg instanceof ByteBufHolder) {
+                compressed += ((ByteBufHolder) msg).content().readableBytes();
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        return compressed;
+    }
+
+    /**
+     * 生成接近业务接口的JSON，字段名重复、字段值随机
+     */
+    private static String json(int size) {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(size + 256).append('[');
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append(i == 0 ? "" : ",")
+                    .append("{\"id\":").append(i)
+                    .append(",\"name\":\"user").append(random.nextInt(100000))
+                    .append("\",\"email\":\"u").append(Long.toHexString(random.nextLong())).append("@example.com\"")
+                    .append(",\"score\":").append(random.nextDouble())
+                    .append(",\"active\":").append(random.nextBoolean())
+                    .append(",\"tags\":[\"tag").append(random.nextInt(20)).append("\",\"tag").append(random.nextInt(20)).append("\"]}");
+        }
+        return sb.append(']').toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + CompressionBenchmark.class.getSimpleName() + ".*")
+                .forks(1)
+                .build();
+        new Runner(opt).run();
+    }
+}
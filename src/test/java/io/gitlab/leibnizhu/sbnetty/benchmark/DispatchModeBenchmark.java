@@ -0,0 +1,59 @@
+package io.gitlab.leibnizhu.sbnetty.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比不同server.netty.dispatch.mode下/plaintext(纯CPU)和/sleepy(阻塞500ms)的吞吐量
+ * 每个mode启动一次TestWebApp，并发线程数固定为64
+ *
+ * @author Leibniz
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(64)
+public class DispatchModeBenchmark {
+    @Param({"pinned", "event-loop", "work-stealing", "virtual-thread"})
+    private String mode;
+
+    private ConfigurableApplicationContext app;
+
+    @Setup(Level.Trial)
+    public void startServer() {
+        app = BenchmarkServer.start("--server.netty.dispatch.mode=" + mode);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        app.close();
+    }
+
+    @Benchmark
+    @Warmup(iterations = 3, time = 5)
+    @Measurement(iterations = 5, time = 5)
+    public void plaintext() {
+        NettyServletBenchmark.getUrl(BenchmarkServer.BASE_URL + "/plaintext", false);
+    }
+
+    @Benchmark
+    @Warmup(iterations = 1, time = 5)
+    @Measurement(iterations = 3, time = 5)
+    public void sleepy() {
+        NettyServletBenchmark.getUrl(BenchmarkServer.BASE_URL + "/sleepy", false);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + DispatchModeBenchmark.class.getSimpleName() + ".*")
+                .forks(1)
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,93 @@
+package io.gitlab.leibnizhu.sbnetty.benchmark;
+
+import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+import io.gitlab.leibnizhu.sbnetty.core.NettyRequestDispatcher;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServlet;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测量不经过网络时，一次请求查找分发器并走完过滤器链的开销
+ * 所有Filter和Servlet都是空实现，mapping=all时所有Filter都映射到"/*"，
+ * mapping=mixed时一半映射到"/*"，另一半交替映射到"/api/*"和"*.json"
+ *
+ * @author Leibniz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FilterChainBenchmark {
+    private static final String CONTEXT_PATH = "/netty";
+    private static final String REQUEST_URI = CONTEXT_PATH + "/api/user.json";
+
+    @Param({"10", "30"})
+    private int filters;
+
+    @Param({"all", "mixed"})
+    private String mapping;
+
+    private NettyContext context;
+    private MockHttpServletRequest request;
+    private MockHttpServletResponse response;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = new NettyContext(CONTEXT_PATH, getClass().getClassLoader(), "Benchmark");
+        context.addServlet("dispatcherServlet", new NoopServlet()).addMapping("/");
+        for (int i = 0; i < filters; i++) {
+            String urlPattern = "all".equals(mapping) || i % 2 == 0 ? "/*" : i % 4 == 1 ? "/api/*" : "*.json";
+            context.addFilter("filter" + i, new PassFilter())
+                    .addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST), false, urlPattern);
+        }
+        request = new MockHttpServletRequest(context, "GET", REQUEST_URI);
+        response = new MockHttpServletResponse();
+    }
+
+    @Benchmark
+    public ServletRequest dispatch() throws ServletException, IOException {
+        NettyRequestDispatcher dispatcher = (NettyRequestDispatcher) context.getRequestDispatcher(REQUEST_URI);
+        dispatcher.dispatch(request, response);
+        return request;
+    }
+
+    private static class PassFilter implements Filter {
+        @Override
+        public void init(FilterConfig filterConfig) {
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+            chain.doFilter(request, response);
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    private static class NoopServlet extends HttpServlet {
+        @Override
+        public void service(ServletRequest req, ServletResponse res) {
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + FilterChainBenchmark.class.getSimpleName() + ".*")
+                .forks(1)
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -42,7 +42,7 @@ public class NettyServletBenchmark {
         new Runner(opt).run();
     }
 
-    private String getUrl(String url, boolean read) {
+    static String getUrl(String url, boolean read) {
         BufferedReader br = null;
         InputStream is = null;
         StringBuilder sbuf = new StringBuilder();
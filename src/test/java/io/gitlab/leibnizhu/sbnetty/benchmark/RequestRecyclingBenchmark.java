@@ -0,0 +1,132 @@
+package io.gitlab.leibnizhu.sbnetty.benchmark;
+
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContainer;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.Promise;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 开启/关闭请求对象回收(server.netty.recycler.enabled)时每个请求的内存分配量和吞吐量
+ * 需要配合-prof gc查看每个请求分配的内存(gc.alloc.rate.norm)，统计的是整个进程，包括同一进程中的客户端，
+ * 两组参数下客户端的分配相同，差值即服务端节省的分配
+ * 客户端在一个keep-alive连接上每次pipelining发送BATCH个请求并等待全部响应，
+ * Servlet读取请求头、参数，设置属性，用getWriter()写出一个小响应
+ *
+ * @author Leibniz
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RequestRecyclingBenchmark {
+    private static final int BATCH = 16; //不超过server.netty.http.max-in-flight-requests的默认值
+
+    @Param({"false", "true"})
+    private boolean recycle;
+
+    private NettyContainer container;
+    private NioEventLoopGroup clientGroup;
+    private Channel channel;
+    private volatile Promise<Void> batchDone;
+    private int pending; //只在客户端IO线程中访问
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        NettyContext context = new NettyContext("/bench", RequestRecyclingBenchmark.class.getClassLoader(), "Netty@SpringBoot");
+        context.addServlet("hello", new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                req.setAttribute("user-agent", req.getHeader("User-Agent"));
+                resp.setContentType("text/plain;charset=UTF-8");
+                resp.getWriter().write("Hello, " + req.getParameter("name"));
+            }
+        }).addMapping("/*");
+        NettyServerProperties properties = new NettyServerProperties();
+        properties.getRecycler().setEnabled(recycle);
+        container = new NettyContainer(new InetSocketAddress(port), context, properties);
+        container.start();
+
+        clientGroup = new NioEventLoopGroup(1);
+        channel = new Bootstrap().group(clientGroup).channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpClientCodec(), new SimpleChannelInboundHandler<HttpObject>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+                                if (msg instanceof LastHttpContent && --pending == 0) {
+                                    batchDone.trySuccess(null);
+                                }
+                            }
+
+                            @Override
+                            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                batchDone.tryFailure(cause);
+                            }
+                        });
+                    }
+                })
+                .connect("localhost", port).sync().channel();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.close().sync();
+        clientGroup.shutdownGracefully().await();
+        container.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void pipelinedGet() throws Exception {
+        Promise<Void> done = channel.eventLoop().newPromise();
+        batchDone = done;
+        channel.eventLoop().execute(() -> {
+            pending = BATCH;
+            for (int i = 0; i < BATCH; i++) {
+                FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/bench/hello?name=jmh");
+                request.headers().set(HttpHeaderNames.HOST, "localhost");
+                request.headers().set(HttpHeaderNames.USER_AGENT, "jmh");
+                channel.write(request);
+            }
+            channel.flush();
+        });
+        done.sync();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + RequestRecyclingBenchmark.class.getSimpleName() + ".*")
+                .addProfiler("gc")
+                .forks(1)
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,83 @@
+package io.gitlab.leibnizhu.sbnetty.benchmark;
+
+import io.gitlab.leibnizhu.sbnetty.core.AutoReadGate;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+import io.gitlab.leibnizhu.sbnetty.core.RequestSession;
+import io.gitlab.leibnizhu.sbnetty.response.NettyHttpServletResponse;
+import io.gitlab.leibnizhu.sbnetty.response.ResponseSequencer;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个空响应从创建到写出响应头(ensureResponseHeader)并结束的开销，不经过网络
+ * 需要配合-prof gc查看每次操作分配的内存(gc.alloc.rate.norm)
+ * contentType=none时不设置Content-Type，否则设置为text/plain;charset=UTF-8
+ *
+ * @author Leibniz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ResponseHeaderBenchmark {
+    @Param({"none", "text/plain"})
+    private String contentType;
+
+    private NettyContext context;
+    private EmbeddedChannel channel;
+    private ChannelHandlerContext ctx;
+    private ResponseSequencer sequencer;
+    private FullHttpRequest request;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = new NettyContext("/netty", getClass().getClassLoader(), "Netty@SpringBoot");
+        channel = new EmbeddedChannel();
+        sequencer = new ResponseSequencer(16, 0, new AutoReadGate(channel), context.getMetrics());
+        channel.pipeline().addLast("sequencer", sequencer);
+        ctx = channel.pipeline().context(sequencer);
+        request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/netty/plaintext", Unpooled.EMPTY_BUFFER);
+        request.headers().set(HttpHeaderNames.HOST, "localhost");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public HttpResponse ensureResponseHeader() {
+        RequestSession session = new RequestSession(ctx, request, context, sequencer);
+        NettyHttpServletResponse response = session.getServletResponse();
+        if (!"none".equals(contentType)) {
+            response.setContentType("text/plain;charset=UTF-8");
+        }
+        response.ensureResponseHeader(false);
+        session.destroy();
+        HttpResponse written = channel.readOutbound();
+        for (Object msg; (msg = channel.readOutbound()) != null; ) {
+            ReferenceCountUtil.release(msg);
+        }
+        return written;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + ResponseHeaderBenchmark.class.getSimpleName() + ".*")
+                .addProfiler("gc")
+                .forks(1)
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,104 @@
+package io.gitlab.leibnizhu.sbnetty.benchmark;
+
+import io.gitlab.leibnizhu.sbnetty.core.AutoReadGate;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+import io.gitlab.leibnizhu.sbnetty.core.RequestSession;
+import io.gitlab.leibnizhu.sbnetty.response.ResponseSequencer;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.servlet.ServletOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 响应体从Servlet写入输出流到交给pipeline的开销，不经过网络，写出的数据读出后直接释放
+ * 需要配合-prof gc查看每次操作分配的内存(gc.alloc.rate.norm)
+ * body=json：像JSON序列化器那样分几次写出约100字节的小响应体；
+ * body=1m：像拷贝文件那样以8KB为单位写出1MB的响应体
+ *
+ * @author Leibniz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ResponseOutputStreamBenchmark {
+    private static final byte[][] JSON_PARTS = {
+            "{\"id\":".getBytes(StandardCharsets.UTF_8),
+            "12345".getBytes(StandardCharsets.UTF_8),
+            ",\"message\":\"".getBytes(StandardCharsets.UTF_8),
+            "Hello, World! This is a small JSON response".getBytes(StandardCharsets.UTF_8),
+            "\",\"ok\":true}".getBytes(StandardCharsets.UTF_8)};
+    private static final int LARGE_SIZE = 1024 * 1024;
+    private static final int COPY_CHUNK = 8192;
+
+    @Param({"json", "1m"})
+    private String body;
+
+    private NettyContext context;
+    private EmbeddedChannel channel;
+    private ChannelHandlerContext ctx;
+    private ResponseSequencer sequencer;
+    private FullHttpRequest request;
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = new NettyContext("/netty", getClass().getClassLoader(), "Netty@SpringBoot");
+        channel = new EmbeddedChannel();
+        sequencer = new ResponseSequencer(16, 0, new AutoReadGate(channel), context.getMetrics());
+        channel.pipeline().addLast("sequencer", sequencer);
+        ctx = channel.pipeline().context(sequencer);
+        request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/netty/" + body, Unpooled.EMPTY_BUFFER);
+        request.headers().set(HttpHeaderNames.HOST, "localhost");
+        chunk = new byte[COPY_CHUNK];
+        Arrays.fill(chunk, (byte) 'x');
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public int writeResponse() throws IOException {
+        RequestSession session = new RequestSession(ctx, request, context, sequencer);
+        ServletOutputStream out = session.getServletResponse().getOutputStream();
+        if ("json".equals(body)) {
+            for (byte[] part : JSON_PARTS) {
+                out.write(part);
+            }
+        } else {
+            for (int written = 0; written < LARGE_SIZE; written += COPY_CHUNK) {
+                out.write(chunk);
+            }
+        }
+        session.destroy();
+        int messages = 0;
+        for (Object msg; (msg = channel.readOutbound()) != null; messages++) {
+            ReferenceCountUtil.release(msg);
+        }
+        return messages;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + ResponseOutputStreamBenchmark.class.getSimpleName() + ".*")
+                .addProfiler("gc")
+                .forks(1)
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,77 @@
+package io.gitlab.leibnizhu.sbnetty.benchmark;
+
+import io.gitlab.leibnizhu.sbnetty.session.SessionIdEncoding;
+import io.gitlab.leibnizhu.sbnetty.session.SessionIdGenerator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 64个线程同时生成Session ID的吞吐量(ID/秒)
+ * legacy：原来的实现，反转的毫秒时间加上每次新建的Random生成的6位数
+ * sharedSecureRandom：所有线程共用一个SecureRandom，每个ID调用一次nextBytes()
+ * buffered：SessionIdGenerator，每个线程自己的SecureRandom及熵缓冲区
+ * NativePRNG只在Linux/macOS上可用，DRBG需要JDK 9及以上
+ * 这个基准在单核环境下也能运行，但只有多核时才能体现共用SecureRandom时的锁竞争
+ *
+ * @author Leibniz
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(64)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SessionIdGeneratorBenchmark {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    @Param({"NativePRNG", "DRBG"})
+    private String algorithm;
+
+    private SecureRandom sharedRandom;
+    private SessionIdGenerator generator;
+
+    @Setup(Level.Trial)
+    public void setup() throws NoSuchAlgorithmException {
+        sharedRandom = SecureRandom.getInstance(algorithm);
+        generator = new SessionIdGenerator(16, SessionIdEncoding.HEX, algorithm);
+    }
+
+    @Benchmark
+    public String legacy() {
+        String prefix = String.valueOf(100000 + new Random().nextInt(899999));
+        return new StringBuilder().append(System.currentTimeMillis()).reverse().append(prefix).toString();
+    }
+
+    @Benchmark
+    public String sharedSecureRandom() {
+        byte[] bytes = new byte[16];
+        sharedRandom.nextBytes(bytes);
+        char[] chars = new char[32];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    @Benchmark
+    public String buffered() {
+        return generator.generate();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + SessionIdGeneratorBenchmark.class.getSimpleName() + ".*")
+                .forks(1)
+                .build();
+        new Runner(opt).run();
+    }
+}
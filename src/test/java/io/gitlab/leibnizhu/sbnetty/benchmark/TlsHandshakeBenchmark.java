@@ -0,0 +1,155 @@
+package io.gitlab.leibnizhu.sbnetty.benchmark;
+
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContainer;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContainerMetrics;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+import io.gitlab.leibnizhu.sbnetty.core.SslProviderType;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.concurrent.Promise;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.web.server.Ssl;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本机回环上TLS握手的吞吐量(连接/秒)：完整握手和恢复会话的握手，按服务端TLS引擎和协议版本对比
+ * 证书是启动时用keytool生成的自签名ECDSA P-256证书；客户端优先用OpenSSL，减少客户端在同一进程中占用的CPU
+ * 每次操作：建立连接、完成握手、发送一个请求并读完响应、关闭连接
+ * 服务端在握手完成后第一次写出时才发送TLSv1.3的会话票据，所以每个连接都要有一次请求响应，客户端才能拿到下次恢复用的票据
+ * resumed=true时客户端按host:port缓存会话，否则每次都是完整握手；Netty的OpenSSL客户端在TLSv1.3下约一半连接能用上票据，以打印的恢复次数为准
+ * TearDown时打印服务端统计的握手次数及恢复会话次数(JDK SSL无法统计，为-1)
+ *
+ * @author Leibniz
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TlsHandshakeBenchmark {
+    private static final String PASSWORD = "changeit";
+
+    @Param({"OPENSSL", "JDK"})
+    private SslProviderType provider;
+
+    @Param({"TLSv1.2", "TLSv1.3"})
+    private String protocol;
+
+    @Param({"false", "true"})
+    private boolean resumed;
+
+    private Path keyStore;
+    private NettyContainer container;
+    private NioEventLoopGroup clientGroup;
+    private SslContext clientContext;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        keyStore = Files.createTempDirectory("tls-bench").resolve("keystore.p12");
+        Process keytool = new ProcessBuilder(System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool",
+                "-genkeypair", "-alias", "bench", "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+                "-validity", "1", "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", PASSWORD)
+                .inheritIO().start();
+        if (keytool.waitFor() != 0) {
+            throw new IllegalStateException("keytool failed");
+        }
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Ssl ssl = new Ssl();
+        ssl.setKeyStore(keyStore.toString());
+        ssl.setKeyStorePassword(PASSWORD);
+        ssl.setKeyStoreType("PKCS12");
+        ssl.setEnabledProtocols(new String[]{protocol});
+        NettyServerProperties properties = new NettyServerProperties();
+        properties.getSsl().setProvider(provider);
+        container = new NettyContainer(new InetSocketAddress(port), new NettyContext("/bench",
+                TlsHandshakeBenchmark.class.getClassLoader(), "Netty@SpringBoot"), properties, ssl, null);
+        container.start();
+
+        clientGroup = new NioEventLoopGroup(1);
+        clientContext = SslContextBuilder.forClient()
+                .sslProvider(OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK)
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .protocols(protocol)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        NettyContainerMetrics metrics = container.getMetrics();
+        System.out.println("\nserver handshakes=" + metrics.getTlsHandshakes() + ", resumed=" + metrics.getTlsResumedHandshakes()
+                + ", failures=" + metrics.getTlsHandshakeFailures());
+        clientGroup.shutdownGracefully().await();
+        container.stop();
+        Files.deleteIfExists(keyStore);
+        Files.deleteIfExists(keyStore.getParent());
+    }
+
+    @Benchmark
+    public void handshake() throws Exception {
+        Promise<Void> responded = clientGroup.next().newPromise();
+        Channel channel = new Bootstrap().group(clientGroup).channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        //指定对端host:port时客户端才会查找可恢复的会话
+                        ch.pipeline().addLast(resumed ? clientContext.newHandler(ch.alloc(), "localhost", port)
+                                : clientContext.newHandler(ch.alloc()), new HttpClientCodec(), new SimpleChannelInboundHandler<HttpObject>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+                                if (msg instanceof LastHttpContent) {
+                                    responded.trySuccess(null);
+                                }
+                            }
+
+                            @Override
+                            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                responded.tryFailure(cause);
+                            }
+                        });
+                    }
+                })
+                .connect("localhost", port).sync().channel();
+        try {
+            FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/bench/");
+            request.headers().set(HttpHeaderNames.HOST, "localhost");
+            channel.writeAndFlush(request);
+            responded.sync();
+        } finally {
+            channel.close().sync();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + TlsHandshakeBenchmark.class.getSimpleName() + ".*")
+                .forks(1)
+                .build();
+        new Runner(opt).run();
+    }
+}
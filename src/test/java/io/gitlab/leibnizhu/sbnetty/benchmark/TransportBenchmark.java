@@ -0,0 +1,57 @@
+package io.gitlab.leibnizhu.sbnetty.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在同一台Linux机器上通过loopback对比nio/epoll/io_uring传输处理小请求(/plaintext)的吞吐量
+ * 服务端和压测线程在同一进程内，为了结果可复现，建议固定worker线程数并用taskset绑定CPU，如:
+ * taskset -c 0-7 java -cp ... io.gitlab.leibnizhu.sbnetty.benchmark.TransportBenchmark
+ * 当前环境不支持的传输会回退到AUTO，启动日志中的"Using xxx transport"是实际使用的传输
+ *
+ * @author Leibniz
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(32)
+public class TransportBenchmark {
+    @Param({"nio", "epoll", "io-uring"})
+    private String transport;
+
+    private ConfigurableApplicationContext app;
+
+    @Setup(Level.Trial)
+    public void startServer() {
+        app = BenchmarkServer.start(
+                "--server.netty.transport=" + transport,
+                "--server.netty.worker-threads=4",
+                "--server.netty.dispatch.mode=event-loop");
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        app.close();
+    }
+
+    @Benchmark
+    @Warmup(iterations = 3, time = 5)
+    @Measurement(iterations = 5, time = 5)
+    public void plaintext() {
+        NettyServletBenchmark.getUrl(BenchmarkServer.BASE_URL + "/plaintext", false);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + TransportBenchmark.class.getSimpleName() + ".*")
+                .forks(1)
+                .build();
+        new Runner(opt).run();
+    }
+}
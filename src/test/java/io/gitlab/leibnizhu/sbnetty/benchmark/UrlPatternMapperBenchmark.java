@@ -0,0 +1,85 @@
+package io.gitlab.leibnizhu.sbnetty.benchmark;
+
+import io.gitlab.leibnizhu.sbnetty.utils.RequestUrlPatternMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RequestUrlPatternMapper在不同映射数量下的匹配耗时
+ * 注册的pattern中精确匹配、路径匹配、扩展名匹配各占三分之一，另有一个默认Servlet
+ * 建议加上-prof gc确认匹配过程没有对象分配
+ *
+ * @author Leibniz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UrlPatternMapperBenchmark {
+    private static final String CONTEXT_PATH = "/netty";
+
+    @Param({"10", "1000", "10000"})
+    private int patterns;
+
+    private RequestUrlPatternMapper mapper;
+    private String exactUri;
+    private String wildcardUri;
+    private String extensionUri;
+    private String defaultUri;
+
+    @Setup(Level.Trial)
+    public void setup() throws ServletException {
+        mapper = new RequestUrlPatternMapper(CONTEXT_PATH);
+        HttpServlet servlet = new HttpServlet() {
+        };
+        int perType = Math.max(1, patterns / 3);
+        for (int i = 0; i < perType; i++) {
+            mapper.addServlet("/api/v1/resource" + i, servlet, "exact" + i);
+            mapper.addServlet("/service/" + i + "/*", servlet, "wildcard" + i);
+            mapper.addServlet("*.ext" + i, servlet, "extension" + i);
+        }
+        mapper.addServlet("/", servlet, "default");
+        int last = perType - 1;
+        exactUri = CONTEXT_PATH + "/api/v1/resource" + last;
+        wildcardUri = CONTEXT_PATH + "/service/" + last + "/user/profile?id=1";
+        extensionUri = CONTEXT_PATH + "/static/js/app.ext" + last;
+        defaultUri = CONTEXT_PATH + "/unmapped/path/to/resource";
+    }
+
+    @Benchmark
+    public String exact() {
+        return mapper.getServletNameByRequestURI(exactUri);
+    }
+
+    @Benchmark
+    public String wildcard() {
+        return mapper.getServletNameByRequestURI(wildcardUri);
+    }
+
+    @Benchmark
+    public String extension() {
+        return mapper.getServletNameByRequestURI(extensionUri);
+    }
+
+    @Benchmark
+    public String fallback() {
+        return mapper.getServletNameByRequestURI(defaultUri);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(".*" + UrlPatternMapperBenchmark.class.getSimpleName() + ".*")
+                .addProfiler("gc")
+                .forks(1)
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,168 @@
+package io.gitlab.leibnizhu.sbnetty.functional;
+
+import com.google.common.io.ByteStreams;
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContainer;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Promise;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 用Netty自带的HTTP/2客户端测试h2c：prior knowledge和Upgrade两种方式，多个流并发，
+ * 以及超过初始流控窗口(64KB)的请求体和响应体
+ *
+ * @author Leibniz
+ */
+public class Http2ClientTest {
+    private static final int BIG_SIZE = 1024 * 1024;
+
+    private static NettyContainer container;
+    private static NioEventLoopGroup clientGroup;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        NettyContext context = TestServers.newContext(Http2ClientTest.class);
+        context.addServlet("echo", new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                resp.setContentType("text/plain");
+                if (req.getRequestURI().endsWith("/big")) {
+                    resp.getOutputStream().write(new byte[BIG_SIZE]);
+                } else {
+                    resp.getWriter().write(req.getProtocol() + " " + req.getRequestURI());
+                }
+            }
+
+            @Override
+            protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                long received = ByteStreams.exhaust(req.getInputStream());
+                resp.getWriter().write("received " + received);
+            }
+        }).addMapping("/*");
+        NettyServerProperties properties = new NettyServerProperties();
+        properties.getHttp2().setEnabled(true);
+        container = TestServers.start(context, properties);
+        clientGroup = new NioEventLoopGroup(1);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        clientGroup.shutdownGracefully();
+        container.stop();
+    }
+
+    @Test
+    public void priorKnowledgeConcurrentStreams() throws Exception {
+        Channel connection = connect(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                ch.pipeline().addLast(Http2FrameCodecBuilder.forClient().build(),
+                        new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+            }
+        });
+        List<Promise<FullHttpResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            responses.add(request(connection, new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/netty/stream/" + i)));
+        }
+        for (int i = 0; i < responses.size(); i++) {
+            assertEquals("HTTP/2.0 /netty/stream/" + i, content(responses.get(i)));
+        }
+
+        assertEquals(BIG_SIZE, content(request(connection, new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/netty/big"))).length());
+        FullHttpRequest post = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/netty/upload",
+                Unpooled.wrappedBuffer(new byte[BIG_SIZE]));
+        post.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/octet-stream");
+        assertEquals("received " + BIG_SIZE, content(request(connection, post)));
+        connection.close().sync();
+    }
+
+    @Test
+    public void upgradeFromHttp1() throws Exception {
+        Promise<FullHttpResponse> upgraded = clientGroup.next().newPromise();
+        Channel connection = connect(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                HttpClientCodec sourceCodec = new HttpClientCodec();
+                //Upgrade请求的响应在流1上返回
+                Http2ConnectionHandler frameCodec = Http2FrameCodecBuilder.forClient().build();
+                Http2MultiplexHandler multiplexHandler = new Http2MultiplexHandler(new ChannelInboundHandlerAdapter(), responseHandler(upgraded));
+                Http2ClientUpgradeCodec upgradeCodec = new Http2ClientUpgradeCodec(frameCodec, multiplexHandler);
+                ch.pipeline().addLast(sourceCodec, new HttpClientUpgradeHandler(sourceCodec, upgradeCodec, 65536));
+            }
+        });
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/netty/upgraded");
+        request.headers().set(HttpHeaderNames.HOST, "localhost");
+        connection.writeAndFlush(request);
+        assertEquals("HTTP/2.0 /netty/upgraded", content(upgraded));
+        assertEquals("HTTP/2.0 /netty/after", content(request(connection, new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/netty/after"))));
+        connection.close().sync();
+    }
+
+    private static Channel connect(ChannelInitializer<SocketChannel> initializer) throws InterruptedException {
+        return new Bootstrap().group(clientGroup).channel(NioSocketChannel.class).handler(initializer)
+                .connect("localhost", container.getPort()).sync().channel();
+    }
+
+    /**
+     * 在连接上新开一个流发送请求
+     */
+    private static Promise<FullHttpResponse> request(Channel connection, FullHttpRequest request) throws InterruptedException {
+        request.headers().set(HttpHeaderNames.HOST, "localhost");
+        request.headers().set(HttpConversionUtil.ExtensionHeaderNames.SCHEME.text(), "http");
+        Promise<FullHttpResponse> response = connection.eventLoop().newPromise();
+        Http2StreamChannel stream = new Http2StreamChannelBootstrap(connection).handler(responseHandler(response)).open().sync().getNow();
+        stream.writeAndFlush(request);
+        return response;
+    }
+
+    private static ChannelHandler responseHandler(Promise<FullHttpResponse> response) {
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) {
+                ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false), new HttpObjectAggregator(2 * BIG_SIZE),
+                        new SimpleChannelInboundHandler<FullHttpResponse>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) {
+                                response.trySuccess(msg.retain());
+                            }
+
+                            @Override
+                            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                response.tryFailure(cause);
+                            }
+                        });
+            }
+        };
+    }
+
+    private static String content(Promise<FullHttpResponse> response) throws Exception {
+        FullHttpResponse msg = response.get(10, TimeUnit.SECONDS);
+        try {
+            assertEquals(HttpResponseStatus.OK, msg.status());
+            return msg.content().toString(CharsetUtil.UTF_8);
+        } finally {
+            msg.release();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package io.gitlab.leibnizhu.sbnetty.functional;
+
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContainer;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 非阻塞读写：用原始Socket发送请求，控制请求体发送到哪里、何时断开连接
+ * 请求体完整时ReadListener只回调onAllDataRead，请求体未接收完连接就断开时只回调onError；
+ * 客户端读取慢于WriteListener写出时，isReady()返回false，连接恢复可写后再回调onWritePossible
+ *
+ * @author Leibniz
+ */
+public class NonBlockingIoTest {
+    private static final BlockingQueue<String> events = new LinkedBlockingQueue<>(); //Servlet中发生的事件
+    private static NettyContainer container;
+
+    @BeforeClass
+    public static void startServer() {
+        NettyContext context = TestServers.newContext(NonBlockingIoTest.class);
+        context.addServlet("upload", new HttpServlet() {
+            @Override
+            protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                AsyncContext asyncContext = req.startAsync(req, resp);
+                ServletInputStream inputStream = req.getInputStream();
+                inputStream.setReadListener(new ReadListener() {
+                    private final byte[] bytes = new byte[8192];
+                    private long total;
+
+                    @Override
+                    public void onDataAvailable() throws IOException {
+                        while (inputStream.isReady()) {
+                            int read = inputStream.read(bytes);
+                            if (read == -1) {
+                                break;
+                            }
+                            total += read;
+                        }
+                    }
+
+                    @Override
+                    public void onAllDataRead() throws IOException {
+                        events.add("allDataRead " + total);
+                        resp.getWriter().write(String.valueOf(total));
+                        asyncContext.complete();
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        events.add("error");
+                        asyncContext.complete();
+                    }
+                });
+                events.add("listening");
+            }
+        }).addMapping("/upload");
+        context.addServlet("download", new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                long total = Long.parseLong(req.getParameter("size"));
+                resp.setContentLengthLong(total);
+                AsyncContext asyncContext = req.startAsync(req, resp);
+                ServletOutputStream outputStream = resp.getOutputStream();
+                outputStream.setWriteListener(new WriteListener() {
+                    private final byte[] bytes = new byte[64 * 1024];
+                    private long written;
+                    private int callbacks;
+
+                    @Override
+                    public void onWritePossible() throws IOException {
+                        callbacks++;
+                        while (outputStream.isReady()) {
+                            int len = (int) Math.min(bytes.length, total - written);
+                            outputStream.write(bytes, 0, len);
+                            written += len;
+                            if (written >= total) {
+                                events.add("written " + written + " in " + callbacks + " callbacks");
+                                asyncContext.complete();
+                                return;
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        events.add("error");
+                    }
+                });
+            }
+        }).addMapping("/download");
+        NettyServerProperties properties = new NettyServerProperties();
+        properties.getHttp().setEarlyDispatch(true); //收到请求头就分发，请求体边接收边回调
+        container = TestServers.start(context, properties);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        container.stop();
+    }
+
+    @Before
+    public void clearEvents() {
+        events.clear();
+    }
+
+    @Test
+    public void completeBodyCallsOnAllDataRead() throws Exception {
+        try (Socket socket = new Socket("localhost", container.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(uploadHeaders(100));
+            out.flush();
+            assertEquals("listening", events.poll(10, TimeUnit.SECONDS));
+            out.write(new byte[100]);
+            out.flush();
+            assertEquals("allDataRead 100", events.poll(10, TimeUnit.SECONDS));
+        }
+        assertEquals(null, events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void truncatedBodyCallsOnError() throws Exception {
+        try (Socket socket = new Socket("localhost", container.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(uploadHeaders(100));
+            out.write(new byte[10]);
+            out.flush();
+            assertEquals("listening", events.poll(10, TimeUnit.SECONDS));
+        }
+        //请求体只发送了10字节连接就关闭了
+        assertEquals("error", events.poll(10, TimeUnit.SECONDS));
+        assertEquals(null, events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void slowReaderResumesWriteListener() throws Exception {
+        int size = 16 * 1024 * 1024;
+        long received = 0;
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(64 * 1024); //接收缓冲区很小，服务端很快就不可写
+            socket.connect(new InetSocketAddress("localhost", container.getPort()));
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(("GET /netty/download?size=" + size + " HTTP/1.1\r\n"
+                    + "Host: localhost\r\n"
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            Thread.sleep(300);
+            InputStream in = socket.getInputStream();
+            int matched = 0; //已匹配的头部结束符"\r\n\r\n"字符数
+            while (matched < 4) {
+                int b = in.read();
+                assertTrue("connection closed before the response body", b != -1);
+                matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : (b == '\r' ? 1 : 0);
+            }
+            byte[] bytes = new byte[64 * 1024];
+            for (int read; received < size && (read = in.read(bytes)) != -1; ) {
+                received += read;
+            }
+        }
+        assertEquals(size, received);
+        String event = events.poll(10, TimeUnit.SECONDS);
+        assertTrue(event, event != null && event.startsWith("written " + size + " in ") && !event.endsWith(" 1 callbacks"));
+    }
+
+    private static byte[] uploadHeaders(int contentLength) {
+        return ("POST /netty/upload HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Length: " + contentLength + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+}
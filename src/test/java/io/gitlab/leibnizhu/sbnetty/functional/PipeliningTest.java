@@ -0,0 +1,175 @@
+package io.gitlab.leibnizhu.sbnetty.functional;
+
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.gitlab.leibnizhu.sbnetty.core.DispatchMode;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContainer;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.CharsetUtil;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * HTTP/1.1 pipelining：一次发出多个请求，不等待响应，响应必须按请求顺序返回
+ * 用work-stealing模式分发，同一连接上的请求并发执行，后面的请求可能先处理完；
+ * pinned模式下同一连接的请求在同一个线程上执行，第一个响应在AsyncContext.start()中写出时要等后面的请求先执行完
+ *
+ * @author Leibniz
+ */
+public class PipeliningTest {
+    private static NettyContainer container;
+    private static NioEventLoopGroup clientGroup;
+
+    @BeforeClass
+    public static void startServer() {
+        NettyContext context = TestServers.newContext(PipeliningTest.class);
+        context.addServlet("echo", new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                String delay = req.getParameter("delay");
+                if (delay != null) {
+                    try {
+                        Thread.sleep(Long.parseLong(delay));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                resp.getWriter().write(req.getParameter("name"));
+            }
+        }).addMapping("/*");
+        NettyServerProperties properties = new NettyServerProperties();
+        properties.getDispatch().setMode(DispatchMode.WORK_STEALING);
+        container = TestServers.start(context, properties);
+        clientGroup = new NioEventLoopGroup(1);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        clientGroup.shutdownGracefully();
+        container.stop();
+    }
+
+    @Test
+    public void responsesFollowRequestOrder() throws Exception {
+        BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+        Channel connection = connect(container, responses);
+        //第一个请求最慢，后面的响应先生成，要在重排缓冲区中等待第一个响应结束
+        connection.write(get("/netty/echo?name=0&delay=300"));
+        for (int i = 1; i < 10; i++) {
+            connection.write(get("/netty/echo?name=" + i));
+        }
+        connection.flush();
+        for (int i = 0; i < 10; i++) {
+            assertEquals("200 " + i, responses.poll(10, TimeUnit.SECONDS));
+        }
+        connection.close().sync();
+    }
+
+    /**
+     * 第一个响应在AsyncContext.start()中阻塞写出，pinned模式下它排在第二个请求之后在同一个线程上执行；
+     * 第二个响应超过写缓冲高水位，没轮到时只能进入重排缓冲区，如果等待轮到自己，两个请求会互相等待直到写超时
+     */
+    @Test
+    public void asyncFirstResponseDoesNotBlockNextResponse() throws Exception {
+        NettyContext context = TestServers.newContext(PipeliningTest.class);
+        context.addServlet("download", new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                int size = Integer.parseInt(req.getParameter("size"));
+                if (req.getParameter("async") == null) {
+                    writeBytes(resp, size);
+                    return;
+                }
+                AsyncContext asyncContext = req.startAsync(req, resp);
+                asyncContext.start(() -> {
+                    try {
+                        writeBytes(resp, size);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        asyncContext.complete();
+                    }
+                });
+            }
+        }).addMapping("/*");
+        NettyServerProperties properties = new NettyServerProperties();
+        properties.getDispatch().setMode(DispatchMode.PINNED);
+        properties.getHttp().setWriteTimeout(5000);
+        NettyContainer pinned = TestServers.start(context, properties);
+        try {
+            BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+            Channel connection = connect(pinned, responses);
+            connection.write(get("/netty/download?size=1048576&async=true"));
+            connection.writeAndFlush(get("/netty/download?size=524288"));
+            assertEquals("200 1048576", length(responses.poll(10, TimeUnit.SECONDS)));
+            assertEquals("200 524288", length(responses.poll(10, TimeUnit.SECONDS)));
+            connection.close().sync();
+        } finally {
+            pinned.stop();
+        }
+    }
+
+    private static void writeBytes(HttpServletResponse resp, int size) throws IOException {
+        ServletOutputStream outputStream = resp.getOutputStream();
+        byte[] bytes = new byte[8192];
+        for (int written = 0; written < size; written += bytes.length) {
+            outputStream.write(bytes, 0, Math.min(bytes.length, size - written));
+        }
+    }
+
+    /**
+     * @return "状态码 响应体长度"，响应为null时返回null
+     */
+    private static String length(String response) {
+        if (response == null) {
+            return null;
+        }
+        int space = response.indexOf(' ');
+        return response.substring(0, space) + " " + (response.length() - space - 1);
+    }
+
+    private static FullHttpRequest get(String uri) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        request.headers().set(HttpHeaderNames.HOST, "localhost");
+        return request;
+    }
+
+    /**
+     * 收到的响应按到达顺序以"状态码 响应体"的形式放入队列
+     */
+    private static Channel connect(NettyContainer server, BlockingQueue<String> responses) throws InterruptedException {
+        return new Bootstrap().group(clientGroup).channel(NioSocketChannel.class).handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                ch.pipeline().addLast(new HttpClientCodec(), new HttpObjectAggregator(16 * 1024 * 1024),
+                        new SimpleChannelInboundHandler<FullHttpResponse>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) {
+                                responses.add(msg.status().code() + " " + msg.content().toString(CharsetUtil.UTF_8));
+                            }
+                        });
+            }
+        }).connect("localhost", server.getPort()).sync().channel();
+    }
+}
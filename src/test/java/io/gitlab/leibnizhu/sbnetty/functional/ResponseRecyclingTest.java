@@ -0,0 +1,73 @@
+package io.gitlab.leibnizhu.sbnetty.functional;
+
+import com.google.common.io.CharStreams;
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.gitlab.leibnizhu.sbnetty.core.DispatchMode;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContainer;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 启用对象回收时，Servlet关闭过的Writer不能被下一个请求重用，否则下一个响应体会丢失
+ * 只有一个IO线程并在IO线程上分发，保证请求对象回收后被下一个请求取到
+ *
+ * @author Leibniz
+ */
+public class ResponseRecyclingTest {
+    private static NettyContainer container;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        NettyContext context = TestServers.newContext(ResponseRecyclingTest.class);
+        context.addServlet("echo", new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                PrintWriter writer = resp.getWriter();
+                writer.write(req.getParameter("name"));
+                if (req.getParameter("close") != null) {
+                    writer.close();
+                }
+            }
+        }).addMapping("/*");
+        NettyServerProperties properties = new NettyServerProperties();
+        properties.setWorkerThreads(1);
+        properties.getDispatch().setMode(DispatchMode.EVENT_LOOP);
+        properties.getRecycler().setEnabled(true);
+        container = TestServers.start(context, properties);
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        container.stop();
+    }
+
+    @Test
+    public void closedWriterIsNotReused() throws Exception {
+        assertEquals("first", get("/echo?name=first&close=true"));
+        assertEquals("second", get("/echo?name=second"));
+        assertEquals("third", get("/echo?name=third&close=true"));
+        assertEquals("fourth", get("/echo?name=fourth&close=true"));
+    }
+
+    private static String get(String path) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + container.getPort() + "/netty" + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try (InputStreamReader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            return CharStreams.toString(reader);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package io.gitlab.leibnizhu.sbnetty.functional;
+
+import com.google.common.io.CharStreams;
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContainer;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+import io.gitlab.leibnizhu.sbnetty.session.EmbeddedSessionStore;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * 两个容器共用一个EmbeddedSessionStore：在一个容器创建的Session，不需要粘性路由就能在另一个容器读取和修改
+ *
+ * @author Leibniz
+ */
+public class SessionStoreTest {
+    private static final EmbeddedSessionStore store = new EmbeddedSessionStore();
+    private static NettyContainer first;
+    private static NettyContainer second;
+
+    @BeforeClass
+    public static void startServers() throws Exception {
+        first = startServer();
+        second = startServer();
+    }
+
+    private static NettyContainer startServer() throws Exception {
+        NettyContext context = TestServers.newContext(SessionStoreTest.class);
+        context.addServlet("counter", new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+                HttpSession session = req.getSession();
+                if (req.getRequestURI().endsWith("/logout")) {
+                    session.invalidate();
+                    return;
+                }
+                Integer count = (Integer) session.getAttribute("count");
+                count = count == null ? 1 : count + 1;
+                session.setAttribute("count", count);
+                resp.getWriter().write(String.valueOf(count));
+            }
+        }).addMapping("/*");
+        NettyServerProperties properties = new NettyServerProperties();
+        context.getSessionManager().setStore(store, properties.getSession());
+        return TestServers.start(context, properties);
+    }
+
+    @AfterClass
+    public static void stopServers() {
+        first.stop();
+        second.stop();
+    }
+
+    @Test
+    public void sessionIsSharedWithoutStickyRouting() throws Exception {
+        HttpURLConnection created = get(first, "/count", null);
+        assertEquals("1", read(created));
+        String cookie = created.getHeaderField("Set-Cookie");
+        assertNotNull(cookie);
+        cookie = cookie.split(";")[0];
+        awaitWrites(first, 1);
+
+        assertEquals("2", read(get(second, "/count", cookie)));
+        assertEquals("3", read(get(second, "/count", cookie)));
+        awaitWrites(second, 2);
+        assertEquals(1, store.size());
+
+        read(get(second, "/logout", cookie));
+        awaitWrites(second, 3);
+        assertEquals(0, store.size());
+    }
+
+    private static HttpURLConnection get(NettyContainer container, String path, String cookie) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + container.getPort() + "/netty" + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (cookie != null) {
+            connection.setRequestProperty("Cookie", cookie);
+        }
+        return connection;
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        try (InputStreamReader reader = new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8)) {
+            return CharStreams.toString(reader);
+        }
+    }
+
+    /**
+     * 写回是异步的，等待容器写回指定数量的修改
+     */
+    private static void awaitWrites(NettyContainer container, long writes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (container.getMetrics().getSessionWrites() < writes && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(writes, container.getMetrics().getSessionWrites());
+    }
+}
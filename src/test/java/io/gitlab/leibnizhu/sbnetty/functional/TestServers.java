@@ -0,0 +1,31 @@
+package io.gitlab.leibnizhu.sbnetty.functional;
+
+import io.gitlab.leibnizhu.sbnetty.bootstrap.NettyServerProperties;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContainer;
+import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+
+import java.net.InetSocketAddress;
+
+/**
+ * 功能测试共用的容器启动方法
+ * 绑定0端口由系统分配，启动后通过NettyContainer.getPort()读取服务端Channel实际绑定的端口；
+ * 不用ServerSocket(0)预先探测空闲端口，因为探测之后、绑定之前端口可能被其他进程占用
+ *
+ * @author Leibniz
+ */
+final class TestServers {
+    static final String CONTEXT_PATH = "/netty";
+
+    private TestServers() {
+    }
+
+    static NettyContext newContext(Class<?> testClass) {
+        return new NettyContext(CONTEXT_PATH, testClass.getClassLoader(), "Netty@SpringBoot");
+    }
+
+    static NettyContainer start(NettyContext context, NettyServerProperties properties) {
+        NettyContainer container = new NettyContainer(new InetSocketAddress(0), context, properties);
+        container.start();
+        return container;
+    }
+}
@@ -3,8 +3,12 @@ package io.gitlab.leibnizhu.sbnetty.functional;
 import java.io.IOException;
 import java.util.concurrent.Callable;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -84,6 +88,18 @@ public class TestWebApp extends WebMvcConfigurerAdapter {
         return "Total bytes received: " + total;
     }
 
+    @RequestMapping(value = "/download")
+    public void download(HttpServletResponse response, @RequestParam(defaultValue = "16") long size) throws IOException {
+        long total = size * 1024 * 1024;
+        response.setContentType("application/octet-stream");
+        response.setContentLengthLong(total);
+        ServletOutputStream outputStream = response.getOutputStream();
+        byte[] bytes = new byte[64 * 1024];
+        for (long written = 0; written < total; written += bytes.length) {
+            outputStream.write(bytes, 0, (int) Math.min(bytes.length, total - written));
+        }
+    }
+
     @RequestMapping("/sleepy")
     @ResponseBody
     public String sleepy() throws InterruptedException {
@@ -97,6 +113,94 @@ public class TestWebApp extends WebMvcConfigurerAdapter {
         return new ServletRegistrationBean(new TestServlet(), "/null/*");
     }
 
+    @Bean
+    public ServletRegistrationBean nonBlockingUploadServletRegistration() {
+        return new ServletRegistrationBean(new NonBlockingUploadServlet(), "/upload-nb/*");
+    }
+
+    /**
+     * 用ReadListener非阻塞读取请求体
+     */
+    private class NonBlockingUploadServlet extends HttpServlet {
+        @Override
+        protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            AsyncContext asyncContext = req.startAsync(req, resp);
+            ServletInputStream inputStream = req.getInputStream();
+            inputStream.setReadListener(new ReadListener() {
+                private final byte[] bytes = new byte[8192];
+                private long total;
+
+                @Override
+                public void onDataAvailable() throws IOException {
+                    while (inputStream.isReady()) {
+                        int read = inputStream.read(bytes);
+                        if (read == -1) {
+                            break;
+                        }
+                        total += read;
+                    }
+                }
+
+                @Override
+                public void onAllDataRead() throws IOException {
+                    resp.getOutputStream().write(("Total bytes received: " + total).getBytes());
+                    asyncContext.complete();
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    log.error("Non-blocking upload failed", t);
+                    asyncContext.complete();
+                }
+            });
+        }
+    }
+
+    @Bean
+    public ServletRegistrationBean nonBlockingDownloadServletRegistration() {
+        return new ServletRegistrationBean(new NonBlockingDownloadServlet(), "/download-nb/*");
+    }
+
+    /**
+     * 用WriteListener非阻塞写出size(默认16)MB的响应
+     */
+    private class NonBlockingDownloadServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            String size = req.getParameter("size");
+            long total = (size == null ? 16 : Long.parseLong(size)) * 1024 * 1024;
+            resp.setContentType("application/octet-stream");
+            resp.setContentLengthLong(total);
+            AsyncContext asyncContext = req.startAsync(req, resp);
+            ServletOutputStream outputStream = resp.getOutputStream();
+            outputStream.setWriteListener(new WriteListener() {
+                private final byte[] bytes = new byte[64 * 1024];
+                private long written;
+                private int callbacks;
+
+                @Override
+                public void onWritePossible() throws IOException {
+                    callbacks++;
+                    while (outputStream.isReady()) {
+                        int len = (int) Math.min(bytes.length, total - written);
+                        outputStream.write(bytes, 0, len);
+                        written += len;
+                        if (written >= total) {
+                            log.info("Non-blocking download finished after {} onWritePossible callbacks", callbacks);
+                            asyncContext.complete();
+                            return;
+                        }
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    log.error("Non-blocking download failed", t);
+                }
+            });
+        }
+    }
+
     private class TestServlet extends HttpServlet{
         @Override
         protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
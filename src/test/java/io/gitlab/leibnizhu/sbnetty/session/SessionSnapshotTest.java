@@ -0,0 +1,207 @@
+package io.gitlab.leibnizhu.sbnetty.session;
+
+import io.gitlab.leibnizhu.sbnetty.core.NettyContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 快照文件的保存和加载：往返、增量追加后压缩、过期记录、跨映射块的记录，以及损坏或被截断的文件
+ *
+ * @author Leibniz
+ */
+public class SessionSnapshotTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NettySessionManager manager;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        NettyContext context = new NettyContext("/netty", SessionSnapshotTest.class.getClassLoader(), "Netty@SpringBoot");
+        manager = context.getSessionManager();
+        file = folder.getRoot().toPath().resolve("sessions.snapshot");
+    }
+
+    @Test
+    public void writeOpenTakeRoundTrip() throws IOException {
+        NettyHttpSession first = session("first", "user", "leibniz");
+        first.setMaxInactiveInterval(600);
+        NettyHttpSession second = session("second", "cart", "3 items");
+        long now = System.currentTimeMillis();
+        assertEquals(2, SessionSnapshot.open(file).write(Arrays.asList(first, second), now));
+
+        try (SessionSnapshot snapshot = SessionSnapshot.open(file)) {
+            assertEquals(2, snapshot.size());
+            assertTrue(snapshot.contains("first", now));
+            assertFalse(snapshot.contains("unknown", now));
+            assertNull(snapshot.take("unknown", now));
+
+            StoredSession stored = snapshot.take("first", now);
+            assertEquals("first", stored.getId());
+            assertEquals(first.getCreationTime(), stored.getCreationTime());
+            assertEquals(first.getLastAccessedTime(), stored.getLastAccessedTime());
+            assertEquals(600, stored.getMaxInactiveInterval());
+            assertEquals("leibniz", attribute(stored, "user"));
+            //每条记录只能取出一次
+            assertNull(snapshot.take("first", now));
+            assertFalse(snapshot.contains("first", now));
+
+            assertEquals("3 items", attribute(snapshot.take("second", now), "cart"));
+        }
+    }
+
+    @Test
+    public void appendThenCompact() throws IOException {
+        long now = System.currentTimeMillis();
+        SessionSnapshot.open(file).write(Arrays.asList(session("a", "version", "1"), session("b", "version", "1"),
+                session("c", "version", "1")), now);
+        long written = Files.size(file);
+
+        //取出一条，保留的两条超过记录区一半，只追加修改后的Session和新索引
+        SessionSnapshot snapshot = SessionSnapshot.open(file);
+        assertNotNull(snapshot.take("a", now));
+        assertEquals(3, snapshot.write(Collections.singletonList(session("a", "version", "2")), now));
+        long appended = Files.size(file);
+        assertTrue(appended > written);
+        assertFalse(Files.exists(tmpFile()));
+
+        //再取出两条，保留的一条不到记录区一半，有效记录复制到新文件后替换
+        snapshot = SessionSnapshot.open(file);
+        assertEquals(3, snapshot.size());
+        assertNotNull(snapshot.take("b", now));
+        assertNotNull(snapshot.take("c", now));
+        assertEquals(1, snapshot.write(Collections.<NettyHttpSession>emptyList(), now));
+        assertTrue(Files.size(file) < appended);
+        assertFalse(Files.exists(tmpFile()));
+
+        try (SessionSnapshot compacted = SessionSnapshot.open(file)) {
+            assertEquals(1, compacted.size());
+            assertNull(compacted.take("b", now));
+            assertEquals("2", attribute(compacted.take("a", now), "version"));
+        }
+    }
+
+    @Test
+    public void expiredRecordsAreNotTakenAndDroppedOnSave() throws IOException {
+        NettyHttpSession expired = session("expired", "user", "nobody");
+        expired.setMaxInactiveInterval(60);
+        NettyHttpSession expiring = session("expiring", "user", "leibniz");
+        expiring.setMaxInactiveInterval(120);
+        NettyHttpSession lasting = session("lasting", "user", "hu");
+        lasting.setMaxInactiveInterval(3600);
+        long now = System.currentTimeMillis() + 90 * 1000L;
+        long later = now + 110 * 1000L;
+        //保存时已经过期的Session不写入
+        assertEquals(2, SessionSnapshot.open(file).write(Arrays.asList(expired, expiring, lasting), now));
+
+        SessionSnapshot snapshot = SessionSnapshot.open(file);
+        assertNull(snapshot.take("expired", now));
+        assertTrue(snapshot.contains("expiring", now));
+        assertFalse(snapshot.contains("expiring", later));
+        assertNull(snapshot.take("expiring", later));
+        //再次保存时丢弃已经过期的记录
+        assertEquals(1, snapshot.write(Collections.<NettyHttpSession>emptyList(), later));
+
+        try (SessionSnapshot saved = SessionSnapshot.open(file)) {
+            assertEquals(1, saved.size());
+            assertEquals("hu", attribute(saved.take("lasting", later), "user"));
+        }
+    }
+
+    @Test
+    public void recordsCrossingChunkBoundaries() throws IOException {
+        long chunkBytes = 4096;
+        long now = System.currentTimeMillis();
+        Random random = new Random(42);
+        byte[][] values = new byte[20][];
+        NettyHttpSession[] sessions = new NettyHttpSession[values.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new byte[1000 + random.nextInt(3000)];
+            random.nextBytes(values[i]);
+            sessions[i] = new NettyHttpSession("session-" + i, manager);
+            sessions[i].setAttribute("data", values[i]);
+        }
+        SessionSnapshot.open(file, chunkBytes).write(Arrays.asList(sessions), now);
+        assertTrue(Files.size(file) > 4 * chunkBytes);
+
+        //按小块映射后记录和索引都会跨块，取出一半后增量保存，另一半仍能完整读取
+        SessionSnapshot snapshot = SessionSnapshot.open(file, chunkBytes);
+        for (int i = 0; i < values.length; i += 2) {
+            assertArrayEquals(values[i], (byte[]) attribute(snapshot.take("session-" + i, now), "data"));
+        }
+        snapshot.write(Collections.<NettyHttpSession>emptyList(), now);
+        try (SessionSnapshot saved = SessionSnapshot.open(file, chunkBytes)) {
+            assertEquals(values.length / 2, saved.size());
+            for (int i = 1; i < values.length; i += 2) {
+                assertArrayEquals(values[i], (byte[]) attribute(saved.take("session-" + i, now), "data"));
+            }
+        }
+    }
+
+    @Test
+    public void corruptFileIsIgnoredAndReplaced() throws IOException {
+        byte[] garbage = new byte[1024];
+        new Random(7).nextBytes(garbage);
+        Files.write(file, garbage);
+        long now = System.currentTimeMillis();
+        SessionSnapshot snapshot = SessionSnapshot.open(file);
+        assertEquals(0, snapshot.size());
+        assertNull(snapshot.take("anything", now));
+        assertEquals(1, snapshot.write(Collections.singletonList(session("fresh", "user", "leibniz")), now));
+
+        try (SessionSnapshot saved = SessionSnapshot.open(file)) {
+            assertEquals("leibniz", attribute(saved.take("fresh", now), "user"));
+        }
+    }
+
+    @Test
+    public void truncatedFileIsIgnored() throws IOException {
+        long now = System.currentTimeMillis();
+        SessionSnapshot.open(file).write(Arrays.asList(session("a", "user", "x"), session("b", "user", "y")), now);
+        //索引在文件末尾，截断后文件头指向的索引不完整
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 10);
+        }
+        try (SessionSnapshot snapshot = SessionSnapshot.open(file)) {
+            assertEquals(0, snapshot.size());
+            assertNull(snapshot.take("a", now));
+        }
+        //连文件头都不完整
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(10);
+        }
+        try (SessionSnapshot snapshot = SessionSnapshot.open(file)) {
+            assertEquals(0, snapshot.size());
+            assertFalse(snapshot.contains("b", now));
+        }
+    }
+
+    private NettyHttpSession session(String id, String name, Object value) {
+        NettyHttpSession session = new NettyHttpSession(id, manager);
+        session.setAttribute(name, value);
+        return session;
+    }
+
+    private static Object attribute(StoredSession stored, String name) {
+        assertNotNull(stored);
+        return SessionAttributeSerializer.deserialize(stored.getAttributes().get(name), SessionSnapshotTest.class.getClassLoader());
+    }
+
+    private Path tmpFile() {
+        return file.resolveSibling(file.getFileName() + ".tmp");
+    }
+}